@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Retrieval and insertion on a full cache, inserts always evict. The grouped benchmark runs lookups concurrently with inserts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnounceNodeCacheBenchmark {
+
+	@Param({"100000", "400000"})
+	int size;
+
+	AnnounceNodeCache cache;
+	KBucketEntry[] pool;
+
+	static KBucketEntry randomEntry() throws UnknownHostException {
+		byte[] ip = new byte[4];
+		ThreadLocalRandom.current().nextBytes(ip);
+		KBucketEntry e = new KBucketEntry(new InetSocketAddress(InetAddress.getByAddress(ip), 1024 + ThreadLocalRandom.current().nextInt(60000)), Key.createRandomKey());
+		e.signalResponse(10 + ThreadLocalRandom.current().nextInt(500));
+		return e;
+	}
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		cache = new AnnounceNodeCache(size);
+		for(int i=0;i<size;i++)
+			cache.add(randomEntry());
+		for(int i=0;i<64;i++)
+			cache.register(Key.createRandomKey(), false);
+
+		pool = new KBucketEntry[64 * 1024];
+		for(int i=0;i<pool.length;i++)
+			pool[i] = randomEntry();
+	}
+
+	@Benchmark
+	public List<KBucketEntry> closest8() {
+		return cache.get(Key.createRandomKey(), DHTConstants.MAX_ENTRIES_PER_BUCKET);
+	}
+
+	@Benchmark
+	public List<KBucketEntry> closest20() {
+		return cache.get(Key.createRandomKey(), DHTConstants.MAX_CONCURRENT_REQUESTS * 2);
+	}
+
+	@Benchmark
+	public int addEvicting() {
+		// evicted entries from the pool can be reinserted, so this keeps exercising the eviction path
+		cache.add(pool[ThreadLocalRandom.current().nextInt(pool.length)]);
+		return cache.size();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public List<KBucketEntry> mixedGet() {
+		return cache.get(Key.createRandomKey(), DHTConstants.MAX_CONCURRENT_REQUESTS);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public int mixedAdd() {
+		cache.add(pool[ThreadLocalRandom.current().nextInt(pool.length)]);
+		return cache.size();
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static the8472.utils.Arrays.mismatch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorting by XOR distance to a target, word based {@link Key.DistanceOrder} vs. the byte-wise comparison and
+ * allocating {@link Key#distance(Key)} approaches used before keys were packed into words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDistanceBenchmark {
+
+	@Param({"16", "256", "4096"})
+	int size;
+
+	Key target;
+	Key[] keys;
+	Key[] scratch;
+
+	byte[] targetBytes;
+	byte[][] keyBytes;
+	byte[][] scratchBytes;
+
+	Comparator<Key> packed;
+	Comparator<Key> allocating;
+	Comparator<byte[]> bytewise;
+
+	@Setup
+	public void setup() {
+		target = Key.createRandomKey();
+		keys = new Key[size];
+		keyBytes = new byte[size][];
+		for(int i=0;i<size;i++) {
+			keys[i] = Key.createRandomKey();
+			keyBytes[i] = keys[i].getHash();
+		}
+		targetBytes = target.getHash();
+		scratch = new Key[size];
+		scratchBytes = new byte[size][];
+
+		packed = new Key.DistanceOrder(target);
+		allocating = (a, b) -> target.distance(a).compareTo(target.distance(b));
+		bytewise = (h1, h2) -> {
+			int mmi = mismatch(h1, h2);
+			if(mmi == -1)
+				return 0;
+			int h = Byte.toUnsignedInt(targetBytes[mmi]);
+			return Integer.compareUnsigned(Byte.toUnsignedInt(h1[mmi]) ^ h, Byte.toUnsignedInt(h2[mmi]) ^ h);
+		};
+	}
+
+	@Benchmark
+	public Key[] sortPacked() {
+		System.arraycopy(keys, 0, scratch, 0, size);
+		Arrays.sort(scratch, packed);
+		return scratch;
+	}
+
+	@Benchmark
+	public Key[] sortAllocatingDistance() {
+		System.arraycopy(keys, 0, scratch, 0, size);
+		Arrays.sort(scratch, allocating);
+		return scratch;
+	}
+
+	@Benchmark
+	public byte[][] sortBytewise() {
+		System.arraycopy(keyBytes, 0, scratchBytes, 0, size);
+		Arrays.sort(scratchBytes, bytewise);
+		return scratchBytes;
+	}
+
+	@Benchmark
+	public int approxDistance() {
+		int sum = 0;
+		for(Key k : keys)
+			sum += target.findApproxKeyDistance(k);
+		return sum;
+	}
+
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import the8472.bencode.BDecoder;
+import the8472.bencode.BEncoder;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * Receive path decoding of typical packets, map based {@link MessageDecoder} vs. {@link StreamingMessageDecoder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecodeBenchmark {
+
+	@Param({"get_peers_request", "find_node_response"})
+	String message;
+
+	ByteBuffer packet;
+	Method method;
+
+	BDecoder bdecoder = new BDecoder();
+	StreamingMessageDecoder streaming = new StreamingMessageDecoder();
+	Function<byte[], Optional<Method>> mapper = mtid -> Optional.of(method);
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	@Setup
+	public void setup() {
+		Map<String, Object> root = new TreeMap<>();
+		Map<String, Object> body = new TreeMap<>();
+		root.put("t", random(6));
+		root.put("v", "ml\u0001\u0002");
+		body.put("id", random(20));
+
+		switch(message) {
+			case "get_peers_request":
+				root.put("y", "q");
+				root.put("q", "get_peers");
+				root.put("a", body);
+				body.put("info_hash", random(20));
+				body.put("want", Arrays.asList("n4"));
+				method = Method.UNKNOWN;
+				break;
+			case "find_node_response":
+				root.put("y", "r");
+				root.put("ip", random(6));
+				root.put("r", body);
+				body.put("nodes", random(26 * 8));
+				method = Method.FIND_NODE;
+				break;
+		}
+
+		packet = new BEncoder().encode(root, 1500);
+	}
+
+	@Benchmark
+	public MessageBase mapDecoder() throws MessageException, IOException {
+		packet.rewind();
+		Map<String, Object> map = bdecoder.decode(packet);
+		packet.rewind();
+		MessageDecoder dec = new MessageDecoder(mapper, DHTtype.IPV4_DHT);
+		dec.toDecode(packet, map);
+		return dec.parseMessage();
+	}
+
+	@Benchmark
+	public MessageBase streamingDecoder() {
+		packet.rewind();
+		return streaming.decode(packet, mapper, DHTtype.IPV4_DHT);
+	}
+
+}
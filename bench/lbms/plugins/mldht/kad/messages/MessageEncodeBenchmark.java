@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import the8472.bencode.BEncoder;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+
+/**
+ * Send path encoding of a get_peers response, via {@link MessageBase#getBase()} vs. the direct writers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodeBenchmark {
+
+	GetPeersResponse msg;
+	ByteBuffer buf = ByteBuffer.allocate(1500);
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	@Setup
+	public void setup() {
+		DHTConstants.setVersion(0x0102);
+		msg = new GetPeersResponse(random(6));
+		msg.setID(Key.createRandomKey());
+		msg.setToken(random(4));
+		msg.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(random(26 * 8)), AddressType.V4));
+	}
+
+	@Benchmark
+	public ByteBuffer mapEncoding() {
+		buf.clear();
+		new BEncoder().encodeInto(msg.getBase(), buf);
+		return buf;
+	}
+
+	@Benchmark
+	public ByteBuffer directEncoding() throws IOException {
+		buf.clear();
+		msg.encode(buf);
+		return buf;
+	}
+
+}
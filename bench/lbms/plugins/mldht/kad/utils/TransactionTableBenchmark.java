@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+
+/**
+ * Response matching against a table filled with {@link DHTConstants#MAX_ACTIVE_CALLS} pending calls.
+ * Each operation is a lookup followed by a removal and re-insertion of the same call, as seen on the response path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionTableBenchmark {
+
+	byte[][] mtids;
+	Object[] calls;
+	int idx;
+
+	ConcurrentHashMap<ByteWrapper, Object> map;
+	TransactionTable<Object> table;
+
+	@Setup
+	public void setup() {
+		int n = DHTConstants.MAX_ACTIVE_CALLS;
+		mtids = new byte[n][];
+		calls = new Object[n];
+		map = new ConcurrentHashMap<>(n);
+		table = new TransactionTable<>(n);
+
+		for(int i=0;i<n;i++) {
+			byte[] mtid = new byte[TransactionTable.MTID_LENGTH];
+			do {
+				ThreadLocalRandom.current().nextBytes(mtid);
+			} while(!table.putIfAbsent(TransactionTable.pack(mtid), mtid));
+			mtids[i] = mtid;
+			calls[i] = mtid;
+			map.put(new ByteWrapper(mtid), mtid);
+		}
+	}
+
+	int next() {
+		int i = idx;
+		idx = (i + 1) & (mtids.length - 1);
+		return i;
+	}
+
+	@Benchmark
+	public Object concurrentHashMap() {
+		int i = next();
+		// a fresh wrapper for every step, just like RPCServer used to do
+		Object c = map.get(new ByteWrapper(mtids[i]));
+		map.remove(new ByteWrapper(mtids[i]), c);
+		map.putIfAbsent(new ByteWrapper(mtids[i]), c);
+		return c;
+	}
+
+	@Benchmark
+	public Object transactionTable() {
+		int i = next();
+		long key = TransactionTable.pack(mtids[i]);
+		Object c = table.get(key);
+		table.remove(key, c);
+		table.putIfAbsent(key, c);
+		return c;
+	}
+
+}
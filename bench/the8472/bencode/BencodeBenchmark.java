@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+
+/**
+ * Tokenizing, decoding, encoding, path matching and pretty printing over a corpus of typical DHT messages and a torrent.
+ *
+ * Run with -prof gc to see allocation rates, e.g. mvn -P jmh test-compile exec:exec -Djmh.args="BencodeBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BencodeBenchmark {
+
+	@Param({"ping", "get_peers_values", "find_node_nodes6", "sample_infohashes", "torrent"})
+	String corpus;
+
+	ByteBuffer encoded;
+	Map<String, Object> decoded;
+	String[] path;
+	ByteBuffer target;
+
+	Tokenizer tokenizer = new Tokenizer();
+	BDecoder decoder = new BDecoder();
+	LazyBDecoder lazyDecoder = new LazyBDecoder();
+	BDecoder.Incremental incrementalDecoder = new BDecoder.Incremental(256, Long.MAX_VALUE);
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	static Map<String, Object> response(Map<String, Object> body) {
+		Map<String, Object> root = new TreeMap<>();
+		body.put("id", random(20));
+		root.put("ip", random(6));
+		root.put("r", body);
+		root.put("t", random(6));
+		root.put("v", "ml\u0001\u0002");
+		root.put("y", "r");
+		return root;
+	}
+
+	static Map<String, Object> torrent() {
+		Map<String, Object> info = new TreeMap<>();
+		List<Object> files = new ArrayList<>();
+		for(int i=0;i<50;i++) {
+			Map<String, Object> file = new TreeMap<>();
+			file.put("length", ThreadLocalRandom.current().nextLong(1 << 30));
+			file.put("path", Arrays.asList("Some Directory", "file number " + i + ".mkv"));
+			files.add(file);
+		}
+		info.put("files", files);
+		info.put("name", "Some Torrent Name");
+		info.put("piece length", 1L << 20);
+		// ~1.5GB worth of 1MiB pieces
+		info.put("pieces", random(20 * 1500));
+
+		Map<String, Object> root = new TreeMap<>();
+		root.put("announce", "udp://tracker.example.com:1337/announce");
+		root.put("creation date", 1500000000L);
+		root.put("info", info);
+		return root;
+	}
+
+	@Setup
+	public void setup() {
+		Map<String, Object> root;
+		Map<String, Object> body = new TreeMap<>();
+
+		switch(corpus) {
+			case "ping":
+				root = response(body);
+				path = new String[] {"r", "id"};
+				break;
+			case "get_peers_values":
+				List<Object> values = new ArrayList<>();
+				for(int i=0;i<50;i++)
+					values.add(random(6));
+				body.put("token", random(8));
+				body.put("values", values);
+				root = response(body);
+				path = new String[] {"r", "token"};
+				break;
+			case "find_node_nodes6":
+				body.put("nodes6", random(38 * 8));
+				root = response(body);
+				path = new String[] {"r", "nodes6"};
+				break;
+			case "sample_infohashes":
+				body.put("interval", 21600L);
+				body.put("nodes", random(26 * 8));
+				body.put("num", 12345L);
+				body.put("samples", random(20 * 20));
+				root = response(body);
+				path = new String[] {"r", "samples"};
+				break;
+			case "torrent":
+				root = torrent();
+				path = new String[] {"info"};
+				break;
+			default:
+				throw new IllegalArgumentException(corpus);
+		}
+
+		encoded = new BEncoder().encode(root, 64 * 1024);
+		decoded = new BDecoder().decode(encoded.duplicate());
+		target = ByteBuffer.allocate(encoded.capacity());
+	}
+
+	static final class CountingConsumer implements TokenConsumer {
+		int count;
+
+		@Override
+		public void push(Token st) {
+			count++;
+		}
+
+		@Override
+		public void pop(Token st) {
+			count++;
+		}
+	}
+
+	CountingConsumer counter = new CountingConsumer();
+
+	@Benchmark
+	public int tokenize() {
+		counter.count = 0;
+		tokenizer.consumer(counter);
+		tokenizer.inputBuffer(encoded.duplicate());
+		try {
+			tokenizer.tokenize();
+		} finally {
+			tokenizer.reset();
+		}
+		return counter.count;
+	}
+
+	@Benchmark
+	public Map<String, Object> decode() {
+		return decoder.decode(encoded.duplicate());
+	}
+
+	@Benchmark
+	public Map<String, Object> lazyDecode() {
+		return lazyDecoder.decode(encoded.duplicate());
+	}
+
+	@Benchmark
+	public Object incrementalDecode() {
+		// MTU-sized fragments
+		ByteBuffer input = encoded.duplicate();
+		ByteBuffer fragment = input.duplicate();
+		while(input.hasRemaining()) {
+			fragment.limit(Math.min(input.limit(), input.position() + 1400)).position(input.position());
+			incrementalDecoder.feed(fragment);
+			input.position(fragment.position());
+		}
+		return incrementalDecoder.take();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeInto() {
+		target.clear();
+		new BEncoder().encodeInto(decoded, target);
+		return target;
+	}
+
+	@Benchmark
+	public ByteBuffer pathMatch() {
+		// matchers are single-use, same as in TorrentUtils.infohash
+		Tokenizer t = new Tokenizer();
+		PathMatcher m = new PathMatcher(path);
+		m.tokenizer(t);
+		return m.match(encoded.duplicate());
+	}
+
+	@Benchmark
+	public void prettyPrint(Blackhole bh) {
+		PrettyPrinter p = new PrettyPrinter();
+		p.guessHumanReadableStringValues(true);
+		p.truncateHex(true);
+		p.append(decoded);
+		bh.consume(p.toString());
+	}
+
+}
@@ -52,4 +52,37 @@ public interface DHTConfiguration {
 	public default Predicate<InetAddress> filterBindAddress() {
 		return (unused) -> true;
 	}
+	
+	/**
+	 * Number of sockets opened per bind address, each served by its own selector thread. Values above 1 rely on SO_REUSEPORT
+	 * to let the kernel spread incoming packets across them and are ignored on platforms or JVMs that don't support it.
+	 * 
+	 * The default implementation uses a single socket.
+	 */
+	public default int getReceiveShards() {
+		return 1;
+	}
+	
+	/**
+	 * Maximum time in milliseconds that received requests from nodes outside the routing table may wait for processing when the
+	 * executor is backlogged. Older ones are dropped in favor of responses and requests from known nodes. Values <= 0 disable shedding.
+	 */
+	public default int getReceiveLatencyBudget() {
+		return 1000;
+	}
+	
+	/**
+	 * Maximum number of queued messages that get encoded into the send buffer before they are flushed to the socket. 1 encodes and sends one message at a time.
+	 */
+	public default int getSendBatchSize() {
+		return 32;
+	}
+	
+	/**
+	 * If true the routing table is persisted as a binary snapshot plus an append-only journal of changes instead of being rewritten
+	 * as a whole periodically, which also allows restoring it without re-splitting buckets. An existing table cache is imported on first start.
+	 */
+	public default boolean isJournalingRoutingTable() {
+		return false;
+	}
 }
@@ -5,20 +5,42 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Nodes that recently responded to lookups, ordered by ID.
+ *
+ * The number of entries is bounded. Inserting into a full cache evicts the worst of a few randomly sampled entries,
+ * weighing the time since they were last seen by their RTT. Sampling picks the entry following a random key, which favors
+ * entries in sparsely populated parts of the keyspace, entries close to registered lookup targets are discounted further.
+ * Only one entry per IP is kept, a new ID from the same address replaces the old one.
+ *
+ * Retrieval finds the smallest prefix around the target that contains enough entries and visits that key range once, all
+ * entries outside of it are farther away by the XOR metric.
+ */
 public class AnnounceNodeCache {
 	
 	private static class CacheAnchorPoint extends Key {
@@ -30,23 +52,34 @@ public class AnnounceNodeCache {
 		long expirationTime;
 	}
 	
-	private static class CacheBucket {
+	static final int DEFAULT_CAPACITY = 32 * 1024;
+	static final int EVICTION_SAMPLES = 5;
 	
-		Prefix prefix;
-		ConcurrentLinkedQueue<KBucketEntry> entries = new ConcurrentLinkedQueue<>();
-		
-		public CacheBucket(Prefix p) {
-			prefix = p;
-		}
-	}
+	final int capacity;
+	// entries sharing at least this many leading bits with an anchor are discounted during eviction
+	private final int anchorProtectionBits;
 	
 	ConcurrentSkipListMap<Key, CacheAnchorPoint> anchors = new ConcurrentSkipListMap<>();
-	ConcurrentSkipListMap<Key, CacheBucket> cache = new ConcurrentSkipListMap<>();
+	ConcurrentSkipListMap<Key, KBucketEntry> entries = new ConcurrentSkipListMap<>();
+	// one entry per IP, otherwise a host answering under many IDs never times out and could fill the cache
+	ConcurrentHashMap<InetAddress, Key> byAddress = new ConcurrentHashMap<>();
+	// skip list sizes are not constant time
+	private final AtomicInteger size = new AtomicInteger();
+	
+	// only used by cleanup
+	private Key sweepCursor = Key.MIN_KEY;
 	
 	
 	public AnnounceNodeCache() {
-		CacheBucket rootBucket = new CacheBucket(new Prefix());
-		cache.put(rootBucket.prefix, rootBucket);
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public AnnounceNodeCache(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.capacity = capacity;
+		// roughly the depth at which a full cache holds MAX_CONCURRENT_REQUESTS entries per prefix
+		this.anchorProtectionBits = 31 - Integer.numberOfLeadingZeros(Math.max(1, capacity / DHTConstants.MAX_CONCURRENT_REQUESTS));
 	}
 	
 	public void register(Key target, boolean isFastLookup)
@@ -62,21 +95,10 @@ public class AnnounceNodeCache {
 			if(nodeId == null)
 				return;
 			
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(nodeId);
-			
-			if(targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(nodeId))
-				return;
-			
-			for(Iterator<KBucketEntry> it = targetEntry.getValue().entries.iterator();it.hasNext();)
-			{
-				KBucketEntry e = it.next();
-				// remove an entry if the id matches
-				// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
-				if(e.getID().equals(nodeId) && (e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1))
-					it.remove();
-			}
-
-			
+			KBucketEntry e = entries.get(nodeId);
+			// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
+			if(e != null && (e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1))
+				remove(e);
 		}
 		
 		public void onStall(RPCCall c) {
@@ -95,226 +117,279 @@ public class AnnounceNodeCache {
 	public RPCCallListener getRPCListener() {
 		return cl;
 	}
-
-	/*
-	 * this insert procedure might cause minor inconsistencies (duplicate entries, too-large lists)
-	 * but those are self-healing under merge/split operations
-	 */
+	
 	public void add(KBucketEntry entryToInsert)
 	{
-		Key target = entryToInsert.getID();
+		KBucketEntry existing = entries.putIfAbsent(entryToInsert.getID(), entryToInsert);
+		if(existing != null) {
+			// refresh timestamp, this is checked for removals
+			existing.mergeInTimestamps(entryToInsert);
+			return;
+		}
 		
-		outer: while(true)
-		{
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(target);
-			
-			if(targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(target))
-			{ // split/merge operation ongoing, retry
-				Thread.yield();
-				continue;
-			}
-			
-			CacheBucket targetBucket = targetEntry.getValue();
-			
-			int size = 0;
-			
-			for(Iterator<KBucketEntry> it = targetBucket.entries.iterator();it.hasNext();)
-			{
-				KBucketEntry e = it.next();
-				size++;
-				if(e.getID().equals(entryToInsert.getID()))
-				{ // refresh timestamp, this is checked for removals
-					e.mergeInTimestamps(entryToInsert);
-					break outer;
-				}
-			}
+		InetAddress ip = entryToInsert.getAddress().getAddress();
+		Key previous = byAddress.put(ip, entryToInsert.getID());
+		if(previous != null && !previous.equals(entryToInsert.getID())) {
+			// the newer ID replaces the older one
+			KBucketEntry old = entries.get(previous);
+			if(old != null && old.getAddress().getAddress().equals(ip))
+				remove(old);
+		}
+		
+		if(size.incrementAndGet() > capacity)
+			evict();
+	}
+	
+	private boolean remove(KBucketEntry e) {
+		if(!entries.remove(e.getID(), e))
+			return false;
+		byAddress.remove(e.getAddress().getAddress(), e.getID());
+		size.decrementAndGet();
+		return true;
+	}
+	
+	private void evict() {
+		long now = System.currentTimeMillis();
+		
+		// concurrent inserts may each evict one, so this converges towards the capacity without coordination
+		for(int attempt=0;attempt<EVICTION_SAMPLES && size.get() > capacity;attempt++) {
+			KBucketEntry victim = null;
+			double worst = Double.NEGATIVE_INFINITY;
 			
-			if(size >= DHTConstants.MAX_CONCURRENT_REQUESTS)
-			{
-				// cache entry full, see if we this bucket prefix covers any anchor
-				Map.Entry<Key, CacheAnchorPoint> anchorEntry = anchors.ceilingEntry(targetBucket.prefix);
-											
-				if(anchorEntry == null || !targetBucket.prefix.isPrefixOf(anchorEntry.getValue()))
-				{
-					// if this bucket is full and cannot be split
-					for(Iterator<KBucketEntry> it=targetBucket.entries.iterator();it.hasNext();)
-					{
-						KBucketEntry kbe = it.next();
-						if(entryToInsert.getRTT() < kbe.getRTT())
-						{
-							targetBucket.entries.add(entryToInsert);
-							it.remove();
-							break outer;
-						}
-					}
-					break;
-				}
-					
-				
-				synchronized (targetBucket)
-				{
-					// check for concurrent split/merge
-					if(cache.get(targetBucket.prefix) != targetBucket)
-						continue;
-					// perform split operation
-					CacheBucket lowerBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(false));
-					CacheBucket upperBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(true));
-					
-					// remove old entry. this leads to a temporary gap in the cache-keyspace!
-					if(!cache.remove(targetEntry.getKey(),targetBucket))
-						continue;
-
-					cache.put(upperBucket.prefix, upperBucket);
-					cache.put(lowerBucket.prefix, lowerBucket);
-
-					for(KBucketEntry e : targetBucket.entries)
-						add(e);
+			for(int i=0;i<EVICTION_SAMPLES;i++) {
+				Map.Entry<Key, KBucketEntry> sample = entries.ceilingEntry(Key.createRandomKey());
+				if(sample == null)
+					sample = entries.firstEntry();
+				if(sample == null)
+					return;
+				KBucketEntry e = sample.getValue();
+				double score = evictionScore(e, now);
+				if(score > worst) {
+					worst = score;
+					victim = e;
 				}
-
-				continue;
 			}
 			
-			targetBucket.entries.add(entryToInsert);
-			break;
-			
-			
+			if(victim != null && remove(victim))
+				return;
 		}
 	}
-
 	
+	/**
+	 * higher is worse, RTT-weighted time since the entry was last seen
+	 */
+	private double evictionScore(KBucketEntry e, long now) {
+		if(expired(e, now))
+			return Double.MAX_VALUE;
+		// lastSeen can be in the future if the clock stepped back since the entries were persisted
+		double score = (double) (Math.max(0, now - e.getLastSeen()) + 1000) * e.getRTT();
+		if(nearAnchor(e.getID()))
+			score /= 4;
+		return score;
+	}
+	
+	private boolean nearAnchor(Key id) {
+		Key below = anchors.floorKey(id);
+		Key above = anchors.ceilingKey(id);
+		return sharesPrefix(id, below) || sharesPrefix(id, above);
+	}
+	
+	private boolean sharesPrefix(Key id, Key anchor) {
+		if(anchor == null)
+			return false;
+		int firstDifferentBit = id.findApproxKeyDistance(anchor);
+		return firstDifferentBit == -1 || firstDifferentBit >= anchorProtectionBits;
+	}
+	
+	private static boolean expired(KBucketEntry e, long now) {
+		return now - e.getLastSeen() > DHTConstants.ANNOUNCE_CACHE_MAX_AGE;
+	}
+	
+	/**
+	 * @return up to targetSize entries closest to the target, in ascending XOR distance
+	 */
 	public List<KBucketEntry> get(Key target, int targetSize)
 	{
-		ArrayList<KBucketEntry> closestSet = new ArrayList<>(2 * targetSize);
+		if(targetSize <= 0)
+			return Collections.emptyList();
 		
-		Map.Entry<Key, CacheBucket> ceil = cache.ceilingEntry(target);
-		Map.Entry<Key, CacheBucket> floor = cache.floorEntry(target);
+		long now = System.currentTimeMillis();
 		
-		do
-		{
-			if(floor != null)
-			{
-				closestSet.addAll(floor.getValue().entries);
-				floor = cache.lowerEntry(floor.getKey());
-			}
-				
-			if(ceil != null)
-			{
-				closestSet.addAll(ceil.getValue().entries);
-				ceil = cache.higherEntry(ceil.getKey());
+		// grow the prefix around the target until it covers enough entries, jumping straight to the next populated level
+		int depth = Key.KEY_BITS - 1;
+		ConcurrentNavigableMap<Key, KBucketEntry> range;
+		while(true) {
+			Prefix p = new Prefix(target, depth);
+			range = entries.subMap(p.first(), true, p.last(), true);
+			if(depth == -1 || countLive(range, targetSize, now) >= targetSize)
+				break;
+			
+			Key below = entries.lowerKey(p.first());
+			Key above = entries.higherKey(p.last());
+			int nextDepth = -1;
+			if(below != null)
+				nextDepth = Math.max(nextDepth, target.findApproxKeyDistance(below) - 1);
+			if(above != null)
+				nextDepth = Math.max(nextDepth, target.findApproxKeyDistance(above) - 1);
+			depth = nextDepth;
+		}
+		
+		// max-heap, farthest entry at the head
+		Comparator<KBucketEntry> closerFirst = new KBucketEntry.DistanceOrder(target);
+		PriorityQueue<KBucketEntry> closest = new PriorityQueue<>(targetSize + 1, closerFirst.reversed());
+		
+		for(KBucketEntry e : range.values()) {
+			if(expired(e, now))
+				continue;
+			if(closest.size() < targetSize) {
+				closest.add(e);
+			} else if(closerFirst.compare(e, closest.peek()) < 0) {
+				closest.poll();
+				closest.add(e);
 			}
-		} while (closestSet.size() / 2 < targetSize && (floor != null || ceil != null));
+		}
 		
-		return closestSet;
+		List<KBucketEntry> result = new ArrayList<>(closest);
+		result.sort(closerFirst);
+		return result;
 	}
 	
+	private static int countLive(Map<Key, KBucketEntry> range, int limit, long now) {
+		int count = 0;
+		for(Iterator<KBucketEntry> it = range.values().iterator();it.hasNext() && count < limit;)
+			if(!expired(it.next(), now))
+				count++;
+		return count;
+	}
+	
+	/**
+	 * drops expired anchors and sweeps over a slice of the entries, a full pass takes about {@link DHTConstants#ANNOUNCE_CACHE_MAX_AGE}
+	 * when called every {@link DHTConstants#CHECK_FOR_EXPIRED_ENTRIES}
+	 */
 	public void cleanup(long now)
 	{
-		// first pass, eject old anchors
 		for(Iterator<CacheAnchorPoint> it = anchors.values().iterator();it.hasNext();)
 			if(now - it.next().expirationTime > 0)
 				it.remove();
 		
-		Set<Key> seenIDs = new HashSet<>();
-		Set<InetAddress> seenIPs = new HashSet<>();
+		int budget = Math.max(1024, capacity / (DHTConstants.ANNOUNCE_CACHE_MAX_AGE / DHTConstants.CHECK_FOR_EXPIRED_ENTRIES));
 		
-		// 2nd pass, eject old and/or duplicate entries
-		for(Iterator<CacheBucket> it = cache.values().iterator();it.hasNext();)
-		{
-			CacheBucket b = it.next();
+		Key cursor = sweepCursor;
+		Iterator<KBucketEntry> it = entries.tailMap(cursor).values().iterator();
+		for(int i=0;i<budget;i++) {
+			if(!it.hasNext()) {
+				// wrap around
+				it = entries.values().iterator();
+				if(!it.hasNext())
+					break;
+			}
+			KBucketEntry e = it.next();
+			cursor = e.getID();
+			if(expired(e, now))
+				remove(e);
+		}
+		sweepCursor = cursor;
+	}
+	
+	public int size() {
+		return size.get();
+	}
+	
+	static final int PERSISTENCE_MAGIC = 0x4d4c4143;
+	static final int FORMAT_VERSION = 1;
+	
+	/**
+	 * Writes anchors and entries in binary form.
+	 */
+	void saveTo(Path file) throws IOException {
+		// don't persist in test mode
+		if(!Files.isDirectory(file.getParent()))
+			return;
+		
+		List<CacheAnchorPoint> anchorList = new ArrayList<>(anchors.values());
+		List<KBucketEntry> entryList = new ArrayList<>(entries.values());
+		
+		Path tempFile = Files.createTempFile(file.getParent(), "announceCache", ".tmp");
+		
+		try(FileChannel chan = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocate(16 + anchorList.size() * (Key.SHA1_HASH_LENGTH + 8) + 4 + entryList.size() * KBucketEntry.MAX_BINARY_LENGTH);
+			
+			buf.putInt(PERSISTENCE_MAGIC);
+			buf.putInt(FORMAT_VERSION);
+			buf.putLong(System.currentTimeMillis());
 			
-			for(Iterator<KBucketEntry> it2 = b.entries.iterator();it2.hasNext();)
-			{
-				KBucketEntry kbe = it2.next();
-				if(now - kbe.getLastSeen() > DHTConstants.ANNOUNCE_CACHE_MAX_AGE || seenIDs.contains(kbe.getID()) || seenIPs.contains(kbe.getAddress().getAddress()))
-					it2.remove();
-				seenIDs.add(kbe.getID());
-				seenIPs.add(kbe.getAddress().getAddress());
+			buf.putInt(anchorList.size());
+			for(CacheAnchorPoint a : anchorList) {
+				a.toBuffer(buf);
+				buf.putLong(a.expirationTime);
 			}
 			
-			// IDs go into the appropriate buckets. no need to check across buckets
-			seenIDs.clear();
-
+			buf.putInt(entryList.size());
+			for(KBucketEntry e : entryList)
+				e.writeTo(buf);
+			
+			buf.flip();
+			while(buf.hasRemaining())
+				chan.write(buf);
 		}
-
 		
-		// merge buckets that aren't full or don't have anchors
+		Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Restores anchors and entries that have not expired yet. The entries are usable right away but should be verified,
+	 * responses and timeouts reported through {@link #getRPCListener()} refresh or evict them.
+	 * 
+	 * @return the restored entries
+	 */
+	List<KBucketEntry> loadFrom(Path file, DHTtype type) {
+		List<KBucketEntry> restored = new ArrayList<>();
 		
-		Entry<Key,CacheBucket> entry = cache.firstEntry();
-		if(entry == null)
-			return;
+		if(!Files.isRegularFile(file))
+			return restored;
 		
-		CacheBucket current = null;
-		CacheBucket next = entry.getValue();
-
-		while(true)
-		{
-			current = next;
-			
-			entry = cache.higherEntry(current.prefix);
-			if(entry == null)
-				return;
-			next = entry.getValue();
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
 			
+			if(buf.getInt() != PERSISTENCE_MAGIC || buf.getInt() != FORMAT_VERSION) {
+				DHT.log("ignoring announce cache " + file + ", unknown format", LogLevel.Info);
+				return restored;
+			}
 			
-			if(!current.prefix.isSiblingOf(next.prefix))
-				continue;
+			long now = System.currentTimeMillis();
+			buf.getLong();
 			
+			int anchorCount = buf.getInt();
+			for(int i=0;i<anchorCount;i++) {
+				CacheAnchorPoint anchor = new CacheAnchorPoint(new Key(buf));
+				anchor.expirationTime = buf.getLong();
+				if(anchor.expirationTime > now)
+					anchors.put(anchor, anchor);
+			}
 			
-			Prefix parent = current.prefix.getParentPrefix();
-			Map.Entry<Key, CacheAnchorPoint> anchor = anchors.ceilingEntry(parent);
-			if(anchor == null || !parent.isPrefixOf(anchor.getValue()) || current.entries.size()+next.entries.size() < DHTConstants.MAX_CONCURRENT_REQUESTS)
-			{
-				synchronized (current)
-				{
-					synchronized (next)
-					{
-						// check for concurrent split/merge
-						if(cache.get(current.prefix) != current || cache.get(next.prefix) != next)
-							continue;
-						
-						cache.remove(current.prefix, current);
-						cache.remove(next.prefix,next);
-						
-						cache.put(parent, new CacheBucket(parent));
-						
-						for(KBucketEntry e : current.entries)
-							add(e);
-						for(KBucketEntry e : next.entries)
-							add(e);
-					}
-				}
-				
-				// move backwards if possible to cascade merges backwards if necessary
-				entry = cache.lowerEntry(current.prefix);
-				if(entry == null)
+			int entryCount = buf.getInt();
+			for(int i=0;i<entryCount;i++) {
+				KBucketEntry e = KBucketEntry.readFrom(buf);
+				if(expired(e, now) || !type.canUseSocketAddress(e.getAddress()))
 					continue;
-				next = entry.getValue();
+				add(e);
+				restored.add(e);
 			}
+		} catch (IOException | RuntimeException e) {
+			DHT.log(e, LogLevel.Error);
 		}
-					
+		
+		return restored;
 	}
 	
-	
 	public void printDiagnostics(PrintWriter b) {
 		b.append("anchors ("+anchors.size()+"):\n");
 		// no need to print out all anchors for now
 		//for(CacheAnchorPoint a : anchors.values())
 		//	b.println(a);
 		
-		int bucketCount = 0;
-		int entryCount = 0;
-		for(CacheBucket buck : cache.values())
-		{
-			bucketCount++;
-			entryCount+= buck.entries.size();
-		}
-		
-		b.println("buckets ("+bucketCount+") / entries ("+entryCount+"):\n");
-		
-		for(CacheBucket buck : cache.values())
-			b.println(buck.prefix+" entries: "+buck.entries.size());
-
+		b.println("entries ("+size.get()+" / "+capacity+")\n");
 	}
- 	
+	
 	
 }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Node.RoutingTable;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+
+/**
+ * Builds the nodes/nodes6 lists of responses, a leaner variant of {@link KClosestNodesSearch} that is reused per thread.
+ *
+ * Buckets are visited in ascending XOR distance to the target. Their keyspaces are disjoint, so every entry of a bucket
+ * is closer than all entries of later buckets and the walk can stop as soon as a bucket fills up the top-K heap.
+ * The result is packed into compact node info, the only allocation per call is the packed array itself.
+ */
+final class ClosestNodesCollector {
+
+	private static final ThreadLocal<ClosestNodesCollector> context = ThreadLocal.withInitial(ClosestNodesCollector::new);
+
+	static ClosestNodesCollector get() {
+		return context.get();
+	}
+
+	private final Key scratch = new Key();
+
+	// max-heap, farthest entry at the root
+	private KBucketEntry[] heap = new KBucketEntry[DHTConstants.MAX_ENTRIES_PER_BUCKET];
+	private int size;
+	private int k;
+	private Key target;
+
+	/**
+	 * @param includeOurself adds our own contact if there are fewer than k entries, e.g. when filling a list for the other address family
+	 * @return the k closest entries eligible for node lists, sorted by ascending distance
+	 */
+	NodeList collect(Key target, int k, DHT dht, boolean includeOurself) {
+		Node node = dht.getNode();
+
+		this.target = target;
+		this.k = k;
+		this.size = 0;
+		if(heap.length < k)
+			heap = new KBucketEntry[k];
+
+		try {
+			if(node != null && k > 0)
+				walk(node.table());
+
+			InetAddress ownAddress = null;
+			Key ownId = null;
+			int ownPort = 0;
+			RPCServerManager serverManager = dht.getServerManager();
+			if(includeOurself && size < k && serverManager != null) {
+				RPCServer srv = serverManager.getRandomActiveServer(true);
+				if(srv != null && srv.getPublicAddress() != null) {
+					ownAddress = srv.getPublicAddress();
+					ownId = srv.getDerivedID();
+					ownPort = srv.getPort();
+				}
+			}
+
+			int count = size + (ownId != null ? 1 : 0);
+			DHTtype type = dht.getType();
+			ByteBuffer packed = ByteBuffer.wrap(new byte[count * type.NODES_ENTRY_LENGTH]);
+
+			sort();
+			for(int i=0;i<size;i++) {
+				KBucketEntry e = heap[i];
+				InetSocketAddress addr = e.getAddress();
+				e.getID().toBuffer(packed);
+				packed.put(addr.getAddress().getAddress());
+				packed.putShort((short) addr.getPort());
+			}
+
+			if(ownId != null) {
+				ownId.toBuffer(packed);
+				packed.put(ownAddress.getAddress());
+				packed.putShort((short) ownPort);
+			}
+
+			packed.flip();
+			return NodeList.fromBuffer(packed, type == DHTtype.IPV4_DHT ? AddressType.V4 : AddressType.V6);
+		} finally {
+			// don't keep entries alive
+			Arrays.fill(heap, 0, size, null);
+			this.target = null;
+		}
+	}
+
+	private void walk(RoutingTable table) {
+		Node.RoutingTableEntry initial = table.entryForId(target);
+		Node.RoutingTableEntry current = initial;
+
+		while(true) {
+			List<KBucketEntry> entries = current.getBucket().entriesRef();
+			for(int i=0, n=entries.size();i<n;i++)
+				offer(entries.get(i));
+
+			if(size >= k)
+				break;
+
+			current = KClosestNodesSearch.nextBucket(table, target, current, scratch);
+
+			// wrapped around, no buckets left
+			if(current == initial)
+				break;
+		}
+	}
+
+	private void offer(KBucketEntry e) {
+		if(!e.eligibleForNodesList())
+			return;
+		if(size < k) {
+			heap[size] = e;
+			siftUp(size++);
+			return;
+		}
+		if(farther(heap[0], e)) {
+			heap[0] = e;
+			siftDown(0, size);
+		}
+	}
+
+	private boolean farther(KBucketEntry a, KBucketEntry b) {
+		return target.threeWayDistance(a.getID(), b.getID()) > 0;
+	}
+
+	private void siftUp(int i) {
+		KBucketEntry e = heap[i];
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(!farther(e, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = e;
+	}
+
+	private void siftDown(int i, int end) {
+		KBucketEntry e = heap[i];
+		int half = end >>> 1;
+		while(i < half) {
+			int child = 2 * i + 1;
+			if(child + 1 < end && farther(heap[child + 1], heap[child]))
+				child++;
+			if(!farther(heap[child], e))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = e;
+	}
+
+	/**
+	 * in-place heapsort, closest entry first
+	 */
+	private void sort() {
+		for(int end=size-1;end>0;end--) {
+			KBucketEntry farthest = heap[0];
+			heap[0] = heap[end];
+			heap[end] = farthest;
+			siftDown(0, end);
+		}
+	}
+
+}
@@ -57,12 +57,14 @@ import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
@@ -161,6 +163,7 @@ public class DHT implements DHTBase {
 	IDMismatchDetector						mismatchDetector;
 	NonReachableCache						unreachableCache;
 	private Path							table_file;
+	private Path							cache_file;
 	private boolean							useRouterBootstrapping;
 
 	private List<DHTStatsListener>			statsListeners;
@@ -171,6 +174,8 @@ public class DHT implements DHTBase {
 	private PopulationEstimator				estimator;
 	private AnnounceNodeCache				cache;
 	NIOConnectionManager					connectionManager;
+	// selectors for additional SO_REUSEPORT sockets, shared by all servers so that rebinding doesn't open new ones
+	private final List<NIOConnectionManager>	shardConnectionManagers = new ArrayList<>();
 	
 	RPCStats								serverStats;
 
@@ -279,17 +284,13 @@ public class DHT implements DHTBase {
 	void populateResponse(Key target, AbstractLookupResponse rsp, int v4, int v6) {
 		if(v4 > 0) {
 			getSiblingByType(DHTtype.IPV4_DHT).filter(DHT::isRunning).ifPresent(sib -> {
-				KClosestNodesSearch kns = new KClosestNodesSearch(target, v4, sib);
-				kns.fill(DHTtype.IPV4_DHT != type);
-				rsp.setNodes(kns.asNodeList());
+				rsp.setNodes(ClosestNodesCollector.get().collect(target, v4, sib, DHTtype.IPV4_DHT != type));
 			});
 		}
 		
 		if(v6 > 0) {
 			getSiblingByType(DHTtype.IPV6_DHT).filter(DHT::isRunning).ifPresent(sib -> {
-				KClosestNodesSearch kns = new KClosestNodesSearch(target, v6, sib);
-				kns.fill(DHTtype.IPV6_DHT != type);
-				rsp.setNodes(kns.asNodeList());
+				rsp.setNodes(ClosestNodesCollector.get().collect(target, v6, sib, DHTtype.IPV6_DHT != type));
 			});
 		}
 	}
@@ -584,6 +585,19 @@ public class DHT implements DHTBase {
 		return connectionManager;
 	}
 	
+	/**
+	 * @param shard socket index within a server, 0 is the primary one using {@link #getConnectionManager()}
+	 */
+	NIOConnectionManager getConnectionManager(int shard) {
+		if(shard == 0)
+			return connectionManager;
+		synchronized (shardConnectionManagers) {
+			while(shardConnectionManagers.size() < shard)
+				shardConnectionManagers.add(new NIOConnectionManager("mlDHT "+type.shortName+" NIO Selector shard " + (shardConnectionManagers.size() + 1)));
+			return shardConnectionManagers.get(shard - 1);
+		}
+	}
+	
 	public PopulationEstimator getEstimator() {
 		return estimator;
 	}
@@ -648,6 +662,12 @@ public class DHT implements DHTBase {
 		srv.onEnqueue((c) -> {
 			c.addListener(rpcListener);
 		});
+
+		// don't wait for the periodic bind check to move off a wildcard bind
+		srv.onConsensusAddressChange((addr) -> {
+			if(srv.getBindAddress().isAnyLocalAddress())
+				scheduler.execute(serverManager::startNewServers);
+		});
 	};
 
 
@@ -691,6 +711,7 @@ public class DHT implements DHTBase {
 			DHT.log("Warning: storage path " + config.getStoragePath() +" is not a directory. DHT will not be able to persist state" , LogLevel.Info);
 		
 		table_file = config.getStoragePath().resolve(type.shortName+"-table.cache");
+		cache_file = config.getStoragePath().resolve(type.shortName+"-announce.cache");
 
 		setStatus(DHTStatus.Stopped, DHTStatus.Initializing);
 		stats.resetStartedTimestamp();
@@ -705,7 +726,15 @@ public class DHT implements DHTBase {
 		populate();
 		
 		node.initKey(config);
-		node.loadTable(table_file);
+		if(config.isJournalingRoutingTable())
+			node.openJournal(new TableJournal(config.getStoragePath().resolve(type.shortName+"-table.snapshot"), config.getStoragePath().resolve(type.shortName+"-table.journal")), table_file);
+		else
+			node.loadTable(table_file);
+		
+		// usable right away, stale entries get weeded out by the verification pings once servers are up
+		Queue<KBucketEntry> toVerify = new ArrayDeque<>(cache.loadFrom(cache_file, type));
+		if(!toVerify.isEmpty())
+			scheduler.schedule(() -> verifyCacheEntries(toVerify), 5, TimeUnit.SECONDS);
 		
 
 		// these checks query the available network interfaces, which can be expensive on some platforms
@@ -742,6 +771,32 @@ public class DHT implements DHTBase {
 	
 
 
+	// restored announce cache entries, spread out to not burst on startup
+	static final int CACHE_VERIFICATION_PINGS_PER_SECOND = 20;
+	
+	void verifyCacheEntries(Queue<KBucketEntry> toVerify) {
+		if(!running)
+			return;
+		
+		AnnounceNodeCache currentCache = cache;
+		for(int i=0;i<CACHE_VERIFICATION_PINGS_PER_SECOND && !toVerify.isEmpty();i++) {
+			RPCServer srv = serverManager.getRandomActiveServer(false);
+			if(srv == null)
+				break;
+			KBucketEntry entry = toVerify.poll();
+			PingRequest req = new PingRequest();
+			req.setDestination(entry.getAddress());
+			RPCCall call = new RPCCall(req);
+			call.builtFromEntry(entry);
+			call.setExpectedID(entry.getID());
+			call.addListener(currentCache.getRPCListener());
+			srv.doCall(call);
+		}
+		
+		if(!toVerify.isEmpty())
+			scheduler.schedule(() -> verifyCacheEntries(toVerify), 1, TimeUnit.SECONDS);
+	}
+	
 	public void started () {
 		
 		for(RoutingTableEntry bucket : node.table().list()) {
@@ -820,13 +875,23 @@ public class DHT implements DHTBase {
 			}
 			
 			try {
-				if(!node.isInSurvivalMode())
+				if(!node.isInSurvivalMode()) {
 					node.saveTable(table_file);
+					cache.saveTo(cache_file);
+				}
 			} catch (IOException e2) {
 				e2.printStackTrace();
 			}
 		}, DHTConstants.RANDOM_LOOKUP_INTERVAL, DHTConstants.RANDOM_LOOKUP_INTERVAL, TimeUnit.MILLISECONDS));
 		
+		scheduledActions.add(scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				node.flushJournal();
+			} catch (IOException e) {
+				log(e, LogLevel.Error);
+			}
+		}, 10, 10, TimeUnit.SECONDS));
+		
 		scheduledActions.add(scheduler.scheduleWithFixedDelay(mismatchDetector::purge, 2, 3, TimeUnit.MINUTES));
 		scheduledActions.add(scheduler.scheduleWithFixedDelay(unreachableCache::cleanStaleEntries, 2, 3, TimeUnit.MINUTES));
 	}
@@ -869,6 +934,8 @@ public class DHT implements DHTBase {
 		try {
 			logInfo("persisting routing table on shutdown");
 			node.saveTable(table_file);
+			node.closeJournal();
+			cache.saveTo(cache_file);
 			logInfo("table persisted");
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -23,6 +23,9 @@ public class DHTConstants {
 	public static final int		MAX_CONCURRENT_REQUESTS					= 10;
 	public static final	int		MAX_CONCURRENT_REQUESTS_LOWPRIO			= 3;
 	public static final int		RECEIVE_BUFFER_SIZE						= 5 * 1024;
+	public static final int		RECEIVE_POOL_SLOTS						= 1024;
+	public static final int		RECEIVE_POOL_SLOT_SIZE					= 2048;
+	public static final int		RECEIVE_QUEUE_CAPACITY					= 4096;
 
 	public static final int		CHECK_FOR_EXPIRED_ENTRIES				= 5 * 60 * 1000;
 	public static final int		MAX_ITEM_AGE							= 60 * 60 * 1000;
@@ -475,7 +475,7 @@ public class Database {
 		bb.put(ip.getAddress());
 		bb.putShort((short) port);
 		bb.putLong(timeStamp);
-		bb.put(lookupKey.getHash());
+		lookupKey.toBuffer(bb);
 		bb.put(sessionSecret);
 		
 		byte[] rawToken = Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
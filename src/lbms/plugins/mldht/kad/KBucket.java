@@ -10,12 +10,8 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.messages.MessageBase;
@@ -31,6 +27,25 @@ import lbms.plugins.mldht.kad.messages.MessageBase.Type;
  * @author Damokles
  */
 public class KBucket {
+	
+	/**
+	 * Notified of changes to the bucket. Main list changes are reported while holding the bucket's lock, the others are not synchronized
+	 */
+	interface BucketListener {
+		void mainListChanged(KBucket bucket, KBucketEntry entry, boolean added);
+		
+		/**
+		 * timestamps or RTT of a main list entry changed
+		 */
+		default void entryRefreshed(KBucket bucket, KBucketEntry entry) {}
+		
+		/**
+		 * a request to a main list entry timed out
+		 */
+		default void entryTimedOut(KBucket bucket, KBucketEntry entry) {}
+		
+		default void replacementAdded(KBucket bucket, KBucketEntry entry) {}
+	}
 
 	
 	/**
@@ -39,17 +54,31 @@ public class KBucket {
 	 */
 	private volatile List<KBucketEntry>	entries;
 	
-	private AtomicInteger						currentReplacementPointer;
-	private AtomicReferenceArray<KBucketEntry>	replacementBucket;
+	/**
+	 * replacements are passive until promoted and only modified through the bucket, so they are kept in packed form.
+	 * the instance doubles as lock for the replacement slots and the pointer
+	 */
+	private final PackedEntries			replacements;
+	private int							currentReplacementPointer;
 	
 	private long						lastRefresh;
 	
+	private volatile BucketListener	listener;
+	
+	// guarded by the maintenance queue
+	MaintenanceQueue.Slot maintenanceSlot;
+	Key maintenanceKey;
+	
 	public KBucket () {
+		this(null);
+	}
+	
+	KBucket(BucketListener listener) {
+		this.listener = listener;
 		entries = new ArrayList<>(); // using arraylist here since reading/iterating is far more common than writing.
-		currentReplacementPointer = new AtomicInteger(0);
-		replacementBucket = new AtomicReferenceArray<>(DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		replacements = new PackedEntries(DHTConstants.MAX_ENTRIES_PER_BUCKET);
 		// needed for bitmasking
-		assert(Integer.bitCount(replacementBucket.length()) == 1);
+		assert(Integer.bitCount(replacements.capacity()) == 1);
 	}
 
 	/**
@@ -65,6 +94,7 @@ public class KBucket {
 		for(KBucketEntry existing : entriesRef) {
 			if(existing.equals(newEntry)) {
 				existing.mergeInTimestamps(newEntry);
+				refreshed(existing);
 				return;
 			}
 			
@@ -106,11 +136,17 @@ public class KBucket {
 	public void refresh(KBucketEntry toRefresh) {
 		entries.stream().filter(toRefresh::equals).findAny().ifPresent(e -> {
 			e.mergeInTimestamps(toRefresh);
+			refreshed(e);
 		});
 		
-		replacementsStream().filter(toRefresh::equals).findAny().ifPresent(e -> {
-			e.mergeInTimestamps(toRefresh);
-		});
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++) {
+				if(replacements.matches(i, toRefresh)) {
+					replacements.mergeInTimestamps(i, toRefresh);
+					break;
+				}
+			}
+		}
 		
 	}
 
@@ -129,6 +165,7 @@ public class KBucket {
 			List<KBucketEntry> newEntries = new ArrayList<>(entries);
 			boolean removed = false;
 			boolean added = false;
+			BucketListener l = listener;
 			
 			// removal never violates ordering constraint, no checks required
 			if(toRemove != null)
@@ -156,15 +193,39 @@ public class KBucket {
 					Collections.sort(newEntries,KBucketEntry.AGE_ORDER);
 				
 				if(wasFull && added)
-					while(newEntries.size() > DHTConstants.MAX_ENTRIES_PER_BUCKET)
-						insertInReplacementBucket(newEntries.remove(newEntries.size()-1));
+					while(newEntries.size() > DHTConstants.MAX_ENTRIES_PER_BUCKET) {
+						KBucketEntry evicted = newEntries.remove(newEntries.size()-1);
+						insertInReplacementBucket(evicted);
+						if(l != null)
+							l.mainListChanged(this, evicted, false);
+					}
 			}
 			
 			// make changes visible
 			if(added || removed)
 				entries = newEntries;
+			
+			if(l != null) {
+				if(removed)
+					l.mainListChanged(this, toRemove, false);
+				if(added)
+					l.mainListChanged(this, toInsert, true);
+			}
 		}
 	}
+	
+	private void refreshed(KBucketEntry e) {
+		BucketListener l = listener;
+		if(l != null)
+			l.entryRefreshed(this, e);
+	}
+	
+	/**
+	 * @param listener null to stop notifications, e.g. once the bucket has been removed from the routing table
+	 */
+	void setListener(BucketListener listener) {
+		this.listener = listener;
+	}
 
 	/**
 	 * Get the number of entries.
@@ -181,9 +242,11 @@ public class KBucket {
 	
 	public int getNumReplacements() {
 		int c = 0;
-		for(int i=0;i<replacementBucket.length();i++)
-			if(replacementBucket.get(i) != null)
-				c++;
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++)
+				if(!replacements.isEmpty(i))
+					c++;
+		}
 		return c;
 	}
 
@@ -194,24 +257,62 @@ public class KBucket {
 		return new ArrayList<>(entries);
 	}
 	
+	/**
+	 * @return the current copy-on-write list, must not be modified
+	 */
+	List<KBucketEntry> entriesRef() {
+		return entries;
+	}
+	
 	public Stream<KBucketEntry> entriesStream() {
 		return entries.stream();
 	}
 	
+	/**
+	 * @return number of replacements that are {@link KBucketEntry#eligibleForNodesList() eligible for node lists}
+	 */
+	int getNumEligibleReplacements() {
+		int c = 0;
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++)
+				if(!replacements.isEmpty(i) && replacements.eligibleForNodesList(i))
+					c++;
+		}
+		return c;
+	}
+	
+	private boolean hasUncontactedReplacement() {
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++)
+				if(!replacements.isEmpty(i) && replacements.neverContacted(i))
+					return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return detached copies of the replacements, changes to them are not reflected in the bucket
+	 */
 	Stream<KBucketEntry> replacementsStream() {
-		return IntStream.range(0, replacementBucket.length()).mapToObj(replacementBucket::get).filter(Objects::nonNull);
+		return getReplacementEntries().stream();
 	}
 	
+	/**
+	 * @return detached copies of the replacements, oldest insertion first
+	 */
 	public List<KBucketEntry> getReplacementEntries() {
-		List<KBucketEntry> repEntries = new ArrayList<>(replacementBucket.length());
-		int current = currentReplacementPointer.get();
-		for(int i=1;i<=replacementBucket.length();i++)
-		{
-			KBucketEntry e = replacementBucket.get((current + i) % replacementBucket.length());
-			if(e != null)
-				repEntries.add(e);
+		synchronized (replacements) {
+			int n = replacements.capacity();
+			List<KBucketEntry> repEntries = new ArrayList<>(n);
+			int current = currentReplacementPointer;
+			for(int i=1;i<=n;i++)
+			{
+				KBucketEntry e = replacements.get((current + i) & (n - 1));
+				if(e != null)
+					repEntries.add(e);
+			}
+			return repEntries;
 		}
-		return repEntries;
 	}
 
 	/**
@@ -226,20 +327,23 @@ public class KBucket {
 			if (e.getAddress().equals(addr))
 			{
 				e.signalRequestTimeout();
+				BucketListener l = listener;
+				if(l != null)
+					l.entryTimedOut(this, e);
 				//only removes the entry if it is bad
 				removeEntryIfBad(e, false);
 				return;
 			}
 		}
 		
-		for(int i=0, n=replacementBucket.length();i<n;i++) {
-			KBucketEntry e = replacementBucket.get(i);
-			if(e != null && e.getAddress().equals(addr)) {
-				e.signalRequestTimeout();
-				return;
+		synchronized (replacements) {
+			for(int i=0, n=replacements.capacity();i<n;i++) {
+				if(replacements.hasAddress(i, addr)) {
+					replacements.signalRequestTimeout(i);
+					return;
+				}
 			}
 		}
-		return;
 	}
 
 	/**
@@ -255,10 +359,31 @@ public class KBucket {
 	
 	public static final long REPLACEMENT_PING_MIN_INTERVAL = 30*1000;
 	
+	/**
+	 * @return the earliest time after now at which {@link #needsToBeRefreshed()}, {@link #needsReplacementPing()} or the state of
+	 * entries may change by themselves, i.e. without responses, timeouts or modifications. Long.MAX_VALUE if never.
+	 */
+	long nextMaintenanceDue(long now) {
+		long due = Long.MAX_VALUE;
+		
+		List<KBucketEntry> entriesRef = entries;
+		for(int i=0,n=entriesRef.size();i<n;i++)
+			due = Math.min(due, entriesRef.get(i).nextMaintenanceChange(now));
+		
+		long refreshAllowed = lastRefresh + DHTConstants.BUCKET_REFRESH_INTERVAL + 1;
+		if(refreshAllowed > now)
+			due = Math.min(due, refreshAllowed);
+		long replacementPingAllowed = lastRefresh + REPLACEMENT_PING_MIN_INTERVAL + 1;
+		if(replacementPingAllowed > now)
+			due = Math.min(due, replacementPingAllowed);
+		
+		return due;
+	}
+	
 	boolean needsReplacementPing() {
 		long now = System.currentTimeMillis();
 		
-		return now - lastRefresh > REPLACEMENT_PING_MIN_INTERVAL && (entriesStream().anyMatch(KBucketEntry::needsReplacement) || entries.size() < DHTConstants.MAX_ENTRIES_PER_BUCKET) && replacementsStream().anyMatch(KBucketEntry::neverContacted);
+		return now - lastRefresh > REPLACEMENT_PING_MIN_INTERVAL && (entriesStream().anyMatch(KBucketEntry::needsReplacement) || entries.size() < DHTConstants.MAX_ENTRIES_PER_BUCKET) && hasUncontactedReplacement();
 	}
 
 
@@ -272,7 +397,7 @@ public class KBucket {
 
 	@Override
 	public String toString() {
-		return "entries: "+entries+" replacements: "+replacementBucket;
+		return "entries: "+entries+" replacements: "+getReplacementEntries();
 	}
 
 	/**
@@ -296,100 +421,113 @@ public class KBucket {
 	
 	private KBucketEntry pollVerifiedReplacementEntry()
 	{
-		while(true) {
+		synchronized (replacements) {
 			int bestIndex = -1;
-			KBucketEntry bestFound = null;
 			
-			for(int i=0;i<replacementBucket.length();i++) {
-				KBucketEntry entry = replacementBucket.get(i);
-				if(entry == null || !entry.verifiedReachable())
+			for(int i=0;i<replacements.capacity();i++) {
+				if(replacements.isEmpty(i) || !replacements.verifiedReachable(i))
 					continue;
-				boolean isBetter = bestFound == null || entry.getRTT() < bestFound.getRTT() || (entry.getRTT() == bestFound.getRTT() && entry.getLastSeen() > bestFound.getLastSeen());
+				boolean isBetter = bestIndex == -1 || replacements.rtt(i) < replacements.rtt(bestIndex) || (replacements.rtt(i) == replacements.rtt(bestIndex) && replacements.lastSeen(i) > replacements.lastSeen(bestIndex));
 				
-				if(isBetter) {
-					bestFound = entry;
+				if(isBetter)
 					bestIndex = i;
-				}
 			}
 			
-			if(bestFound == null)
+			if(bestIndex == -1)
 				return null;
 			
 			int newPointer = bestIndex-1;
 			if(newPointer < 0)
-				newPointer = replacementBucket.length()-1;
-			if(replacementBucket.compareAndSet(bestIndex, bestFound, null)) {
-				currentReplacementPointer.set(newPointer);
-				return bestFound;
-			}
+				newPointer = replacements.capacity()-1;
+			KBucketEntry bestFound = replacements.get(bestIndex);
+			replacements.clear(bestIndex);
+			currentReplacementPointer = newPointer;
+			return bestFound;
 		}
 	}
 	
 	private Optional<KBucketEntry> removeFromReplacement(KBucketEntry toRemove) {
-		for(int i=0;i<replacementBucket.length();i++) {
-			KBucketEntry e = replacementBucket.get(i);
-			if(e == null || !e.matchIPorID(toRemove))
-				continue;
-			replacementBucket.compareAndSet(i, e, null);
-			if(e.equals(toRemove))
-				return Optional.of(e);
-				
+		KBucketEntry found = null;
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++) {
+				if(!replacements.matchIPorID(i, toRemove))
+					continue;
+				if(replacements.matches(i, toRemove))
+					found = replacements.get(i);
+				replacements.clear(i);
+			}
 		}
 		
-		return Optional.empty();
+		return Optional.ofNullable(found);
 		
 	}
 	
 	public Optional<KBucketEntry> findPingableReplacement() {
-		for(int i=0; i<replacementBucket.length();i++) {
-			KBucketEntry e = replacementBucket.get(i);
-			if(e == null || !e.neverContacted())
-				continue;
-			return Optional.of(e);
+		synchronized (replacements) {
+			for(int i=0; i<replacements.capacity();i++) {
+				if(replacements.isEmpty(i) || !replacements.neverContacted(i))
+					continue;
+				return Optional.of(replacements.get(i));
+			}
 		}
 		
 		return Optional.empty();
 	}
 	
+	/**
+	 * records an outgoing request to a replacement, the main list entries are tracked by their objects
+	 */
+	void replacementRequestScheduled(InetSocketAddress addr) {
+		synchronized (replacements) {
+			for(int i=0;i<replacements.capacity();i++) {
+				if(replacements.hasAddress(i, addr)) {
+					replacements.signalScheduledRequest(i, System.currentTimeMillis());
+					return;
+				}
+			}
+		}
+	}
+	
 	void insertInReplacementBucket(KBucketEntry toInsert)
 	{
 		if(toInsert == null)
 			return;
 		
-		outer:
-		while(true)
-		{
-			int insertationPoint = currentReplacementPointer.incrementAndGet() & (replacementBucket.length() - 1);
-			
-			KBucketEntry toOverwrite = replacementBucket.get(insertationPoint);
+		synchronized (replacements) {
+			int n = replacements.capacity();
+			int insertationPoint = (currentReplacementPointer + 1) & (n - 1);
 			
 			boolean canOverwrite;
 			
-			if(toOverwrite == null) {
+			if(replacements.isEmpty(insertationPoint)) {
 				canOverwrite = true;
 			} else {
-				int lingerTime = toOverwrite.verifiedReachable() && !toInsert.verifiedReachable() ? 5*60*1000 : 1000;
-				canOverwrite = toInsert.getLastSeen() - toOverwrite.getLastSeen() > lingerTime || toInsert.getRTT() < toOverwrite.getRTT();
+				int lingerTime = replacements.verifiedReachable(insertationPoint) && !toInsert.verifiedReachable() ? 5*60*1000 : 1000;
+				canOverwrite = toInsert.getLastSeen() - replacements.lastSeen(insertationPoint) > lingerTime || toInsert.getRTT() < replacements.rtt(insertationPoint);
 			}
 			
+			currentReplacementPointer = insertationPoint;
+			
 			if(!canOverwrite)
-				break;
+				return;
 
-			for(int i=0;i<replacementBucket.length();i++)
+			for(int i=0;i<n;i++)
 			{
 				// don't insert if already present
-				KBucketEntry potentialDuplicate = replacementBucket.get(i);
-				if(toInsert.matchIPorID(potentialDuplicate)) {
-					if(toInsert.equals(potentialDuplicate))
-						potentialDuplicate.mergeInTimestamps(toInsert);
-					break outer;
+				if(replacements.matchIPorID(i, toInsert)) {
+					if(replacements.matches(i, toInsert))
+						replacements.mergeInTimestamps(i, toInsert);
+					return;
 				}
 
 			}
 
-			if(replacementBucket.compareAndSet(insertationPoint, toOverwrite, toInsert))
-				break;
+			replacements.set(insertationPoint, toInsert);
 		}
+		
+		BucketListener l = listener;
+		if(l != null)
+			l.replacementAdded(this, toInsert);
 	}
 	
 	/**
@@ -428,6 +566,7 @@ public class KBucket {
 			if(entry.getID().equals(msg.getID()))
 			{
 				entry.signalResponse(msg.getAssociatedCall().getRTT());
+				refreshed(entry);
 				return;
 			}
 		}
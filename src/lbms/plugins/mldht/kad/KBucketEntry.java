@@ -9,10 +9,12 @@ import static the8472.bencode.Utils.prettyPrint;
 import static the8472.utils.Functional.typedGet;
 
 import lbms.plugins.mldht.kad.utils.AddressUtils;
-import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Comparator;
@@ -20,6 +22,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.zip.Checksum;
 
 /**
@@ -34,6 +37,7 @@ public class KBucketEntry {
 	
 	
 	public static final Class<? extends Checksum> crc32c;
+	private static final Constructor<? extends Checksum> crc32cConstructor;
 	
 	static {
 		Class<? extends Checksum> clazz = null;
@@ -45,6 +49,16 @@ public class KBucketEntry {
 		}
 		
 		crc32c = clazz;
+		
+		Constructor<? extends Checksum> ctor = null;
+		if(clazz != null) {
+			try {
+				ctor = clazz.getConstructor();
+			} catch (NoSuchMethodException e) {
+				throw new Error(e);
+			}
+		}
+		crc32cConstructor = ctor;
 	}
 	
 	
@@ -90,7 +104,8 @@ public class KBucketEntry {
 	private int					failedQueries;
 	private long				timeCreated;
 	private byte[]				version;
-	private ExponentialWeightendMovingAverage avgRTT = new ExponentialWeightendMovingAverage().setWeight(RTT_EMA_WEIGHT);;
+	// exponentially weighted moving average, NaN if unknown
+	private double avgRTT = Double.NaN;
 	private long lastSendTime = -1;
 
 	
@@ -128,6 +143,73 @@ public class KBucketEntry {
 		
 		return map;
 	}
+	
+	static final int MAX_BINARY_LENGTH = Key.SHA1_HASH_LENGTH + 1 + 16 + 2 + 8 + 1 + 255 + 23;
+	
+	/**
+	 * compact binary form used by the routing table snapshot and journal
+	 */
+	void writeTo(ByteBuffer buf) {
+		nodeID.toBuffer(buf);
+		byte[] ip = addr.getAddress().getAddress();
+		buf.put((byte) ip.length);
+		buf.put(ip);
+		buf.putChar((char) addr.getPort());
+		buf.putLong(timeCreated);
+		if(version != null && version.length <= 255) {
+			buf.put((byte) version.length);
+			buf.put(version);
+		} else {
+			buf.put((byte) 0);
+		}
+		writeState(buf);
+	}
+	
+	static KBucketEntry readFrom(ByteBuffer buf) {
+		Key id = new Key(buf);
+		byte[] ip = new byte[Byte.toUnsignedInt(buf.get())];
+		if(ip.length != 4 && ip.length != 16)
+			throw new IllegalArgumentException("invalid address length " + ip.length);
+		buf.get(ip);
+		int port = buf.getChar();
+		InetSocketAddress addr;
+		try {
+			addr = new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+		
+		KBucketEntry built = new KBucketEntry(addr, id);
+		built.timeCreated = buf.getLong();
+		int versionLength = Byte.toUnsignedInt(buf.get());
+		if(versionLength > 0) {
+			byte[] version = new byte[versionLength];
+			buf.get(version);
+			built.setVersion(version);
+		}
+		built.readState(buf);
+		return built;
+	}
+	
+	/**
+	 * the mutable part of the binary form, i.e. what changes when the node responds or times out
+	 */
+	void writeState(ByteBuffer buf) {
+		buf.putLong(lastSeen);
+		buf.putLong(lastSendTime);
+		buf.putShort((short) Math.min(failedQueries, Short.MAX_VALUE));
+		buf.putInt(Double.isNaN(avgRTT) ? -1 : (int) avgRTT);
+		buf.put((byte) (verified ? 1 : 0));
+	}
+	
+	void readState(ByteBuffer buf) {
+		lastSeen = buf.getLong();
+		lastSendTime = buf.getLong();
+		failedQueries = buf.getShort();
+		int rtt = buf.getInt();
+		avgRTT = rtt >= 0 ? rtt : Double.NaN;
+		setVerified(buf.get() == 1);
+	}
 
 
 	/**
@@ -159,6 +241,21 @@ public class KBucketEntry {
 		this.nodeID = id;
 	}
 
+	/**
+	 * restores the full state, e.g. from {@link PackedEntries}
+	 */
+	KBucketEntry(InetSocketAddress addr, Key id, long created, long lastSeen, long lastSend, int failed, double rtt, boolean verified, byte[] version) {
+		this.addr = addr;
+		this.nodeID = id;
+		this.timeCreated = created;
+		this.lastSeen = lastSeen;
+		this.lastSendTime = lastSend;
+		this.failedQueries = failed;
+		this.avgRTT = rtt;
+		this.verified = verified;
+		this.version = version;
+	}
+
 	/**
 	 * Copy constructor.
 	 * @param other KBucketEntry to copy
@@ -224,6 +321,10 @@ public class KBucketEntry {
     public Optional<ByteBuffer> getVersion () {
     	return Optional.ofNullable(version).map(ByteBuffer::wrap).map(ByteBuffer::asReadOnlyBuffer);
     }
+    
+    byte[] rawVersion() {
+    	return version;
+    }
 
 	/**
 	 * @return the last_responded
@@ -256,9 +357,8 @@ public class KBucketEntry {
 			b.append(";fail:"+failedQueries);
 		if(verified)
 			b.append(";verified");
-		double rtt = avgRTT.getAverage();
-		if(!Double.isNaN(rtt))
-			b.append(";rtt:"+rtt);
+		if(!Double.isNaN(avgRTT))
+			b.append(";rtt:"+avgRTT);
 		if(version != null)
 			b.append(";ver:"+prettyPrint(version));
 			
@@ -325,6 +425,26 @@ public class KBucketEntry {
 		return withinBackoffWindow(System.currentTimeMillis());
 	}
 	
+	/**
+	 * @return the earliest time after now at which {@link #needsPing()} or {@link #needsReplacement()} may change without further
+	 * responses or timeouts, Long.MAX_VALUE if there is none
+	 */
+	long nextMaintenanceChange(long now) {
+		long due = Long.MAX_VALUE;
+		
+		long pingable = Math.max(lastSeen + 30*1000, backoffWindowEnd());
+		if(failedQueries == 0)
+			pingable = Math.max(pingable, lastSeen + OLD_AND_STALE_TIME + 1);
+		if(pingable > now)
+			due = pingable;
+		
+		long stale = lastSeen + OLD_AND_STALE_TIME + 1;
+		if(failedQueries > OLD_AND_STALE_TIMEOUTS && stale > now)
+			due = Math.min(due, stale);
+		
+		return due;
+	}
+	
 	public boolean needsPing() {
 		long now = System.currentTimeMillis();
 		
@@ -363,12 +483,22 @@ public class KBucketEntry {
 		timeCreated = Math.min(timeCreated, other.getCreationTime());
 		if(other.verifiedReachable())
 			setVerified(true);
-		if(!Double.isNaN(other.avgRTT.getAverage()) )
-			avgRTT.updateAverage(other.avgRTT.getAverage());
+		if(!Double.isNaN(other.avgRTT))
+			avgRTT = updateRTT(avgRTT, other.avgRTT);
+	}
+	
+	static double updateRTT(double average, double value) {
+		if(Double.isNaN(average))
+			return value;
+		return value * RTT_EMA_WEIGHT + average * (1.0 - RTT_EMA_WEIGHT);
 	}
 	
 	public int getRTT() {
-		return (int) avgRTT.getAverage(DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		return Double.isNaN(avgRTT) ? DHTConstants.RPC_CALL_TIMEOUT_MAX : (int) avgRTT;
+	}
+	
+	double rttAverage() {
+		return avgRTT;
 	}
 
 	/**
@@ -380,7 +510,7 @@ public class KBucketEntry {
 		failedQueries = 0;
 		verified = true;
 		if(rtt > 0)
-			avgRTT.updateAverage(rtt);
+			avgRTT = updateRTT(avgRTT, rtt);
 	}
 	
 	public void mergeRequestTime(long requestSent) {
@@ -400,64 +530,92 @@ public class KBucketEntry {
 	}
 	
 	
-	byte[] v4_mask = { 0x03, 0x0f, 0x3f, (byte) 0xff };
-	byte[] v6_mask = { 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, (byte) 0xff };
+	private static final byte[] V4_MASK = { 0x03, 0x0f, 0x3f, (byte) 0xff };
+	private static final byte[] V6_MASK = { 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, (byte) 0xff };
 	
-	public boolean hasSecureID() {
+	private static final int SECURE_PREFIX_MASK = 0xff_ff_f8_00;
+	private static final int SECURE_PREFIX_CACHE_BITS = 12;
+	// direct-mapped, slot = valid bit | masked input (40 bits) | top 21 bits of the CRC.
+	// races merely cause a recomputation since slots are written as a whole
+	private static final AtomicLongArray securePrefixCache = new AtomicLongArray(1 << SECURE_PREFIX_CACHE_BITS);
+	
+	/**
+	 * @return the top 21 bits of the CRC32C that BEP42 expects as ID prefix for the given address and random value
+	 */
+	static int expectedSecurePrefix(byte[] ip, int offset, int length, int r) {
+		byte[] mask = length == 4 ? V4_MASK : V6_MASK;
+		
+		// the masked octets plus r only have 23 (v4) or 39 (v6) significant bits, pack them into a cache key
+		long input = length == 4 ? 0 : 1;
+		for(int i=0;i<mask.length;i++)
+			input = input << Integer.bitCount(mask[i] & 0xff) | (ip[offset + i] & mask[i] & 0xff);
+		input = input << 3 | r;
+		
+		int slot = (int) ((input * 0x9E37_79B9_7F4A_7C15L) >>> (64 - SECURE_PREFIX_CACHE_BITS));
+		long cached = securePrefixCache.get(slot);
+		if(cached < 0 && ((cached >>> 21) & ((1L << 42) - 1)) == input)
+			return ((int) cached & 0x1f_ffff) << 11;
+		
+		byte[] masked = new byte[mask.length];
+		for(int i=0;i<mask.length;i++)
+			masked[i] = (byte) (ip[offset + i] & mask[i]);
+		masked[0] |= r << 5;
+		
+		Checksum c;
+		try {
+			c = crc32cConstructor.newInstance();
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+		c.update(masked, 0, masked.length);
+		int prefix = (int) c.getValue() & SECURE_PREFIX_MASK;
+		
+		securePrefixCache.lazySet(slot, Long.MIN_VALUE | input << 21 | prefix >>> 11);
+		return prefix;
+	}
+	
+	/**
+	 * @param idPrefix first 4 bytes of the node ID
+	 * @param idLastByte last byte of the node ID, carries the random value
+	 * @param ip raw IPv4 or IPv6 address
+	 */
+	public static boolean isSecureID(int idPrefix, byte idLastByte, byte[] ip, int offset, int length) {
 		if(crc32c == null)
 			return false;
-		try {
-			Checksum c = crc32c.getConstructor().newInstance();
-			
-			byte[] ip = getAddress().getAddress().getAddress();
-			
-			byte[] mask = ip.length == 4 ? v4_mask : v6_mask;
-			
-			for(int i=0;i<mask.length;i++) {
-				ip[i] &= mask[i];
-			}
-			
-			int r = nodeID.getByte(19) & 0x7;
-			
-			ip[0] |= r << 5;
-			
-			c.reset();
-			c.update(ip, 0, Math.min(ip.length, 8));
-			int crc = (int) c.getValue();
-			
-			return ((nodeID.getInt(0) ^ crc) & 0xff_ff_f8_00) == 0;
-			 
-			
-			/*
-			uint8_t* ip; // our external IPv4 or IPv6 address (network byte order)
-			int num_octets; // the number of octets to consider in ip (4 or 8)
-			uint8_t node_id[20]; // resulting node ID
+		return ((idPrefix ^ expectedSecurePrefix(ip, offset, length, idLastByte & 0x7)) & SECURE_PREFIX_MASK) == 0;
+		
+		/*
+		uint8_t* ip; // our external IPv4 or IPv6 address (network byte order)
+		int num_octets; // the number of octets to consider in ip (4 or 8)
+		uint8_t node_id[20]; // resulting node ID
 
 
-			uint8_t* mask = num_octets == 4 ? v4_mask : v6_mask;
+		uint8_t* mask = num_octets == 4 ? v4_mask : v6_mask;
 
-			for (int i = 0; i < num_octets; ++i)
-			        ip[i] &= mask[i];
+		for (int i = 0; i < num_octets; ++i)
+		        ip[i] &= mask[i];
 
-			uint32_t rand = std::rand() & 0xff;
-			uint8_t r = rand & 0x7;
-			ip[0] |= r << 5;
+		uint32_t rand = std::rand() & 0xff;
+		uint8_t r = rand & 0x7;
+		ip[0] |= r << 5;
 
-			uint32_t crc = 0;
-			crc = crc32c(crc, ip, num_octets);
+		uint32_t crc = 0;
+		crc = crc32c(crc, ip, num_octets);
 
-			// only take the top 21 bits from crc
-			node_id[0] = (crc >> 24) & 0xff;
-			node_id[1] = (crc >> 16) & 0xff;
-			node_id[2] = ((crc >> 8) & 0xf8) | (std::rand() & 0x7);
-			for (int i = 3; i < 19; ++i) node_id[i] = std::rand();
-			node_id[19] = rand;
-			*/
-			
-		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-			e.printStackTrace();
+		// only take the top 21 bits from crc
+		node_id[0] = (crc >> 24) & 0xff;
+		node_id[1] = (crc >> 16) & 0xff;
+		node_id[2] = ((crc >> 8) & 0xf8) | (std::rand() & 0x7);
+		for (int i = 3; i < 19; ++i) node_id[i] = std::rand();
+		node_id[19] = rand;
+		*/
+	}
+	
+	public boolean hasSecureID() {
+		if(crc32c == null)
 			return false;
-		}
+		byte[] ip = addr.getAddress().getAddress();
+		return isSecureID(nodeID.getInt(0), (byte) nodeID.getByte(19), ip, 0, ip.length);
 	}
 	
 	
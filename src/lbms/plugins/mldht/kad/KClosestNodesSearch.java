@@ -91,6 +91,50 @@ This requires a non-contiguous search
 
 	
 	
+	/**
+	 * Finds the bucket following the current one in ascending XOR distance to the target.
+	 * 
+	 * The distance of the current bucket is incremented by its least significant prefix bit and translated back into
+	 * a key which is then looked up in the table.
+	 * 
+	 * @param scratch overwritten with a key in the next bucket
+	 * @return the next bucket, wraps around to the target's own bucket once all buckets have been visited
+	 */
+	static Node.RoutingTableEntry nextBucket(Node.RoutingTable table, Key target, Node.RoutingTableEntry current, Key scratch) {
+		Prefix p = current.prefix;
+		int depth = p.depth;
+		if(depth < 0)
+			return current;
+		
+		// xor distance, trim trailing bits
+		int bits = depth + 1;
+		long d0 = (target.w0 ^ p.w0) & Key.topBits(bits);
+		long d1 = (target.w1 ^ p.w1) & Key.topBits(bits - 64);
+		int d2 = (target.w2 ^ p.w2) & (int) (Key.topBits(bits - 128) >>> 32);
+		
+		// increment by the least significant prefix bit, overflow past the first bit wraps around to the target
+		if(depth < 64) {
+			d0 += 1L << (63 - depth);
+		} else if(depth < 128) {
+			long old = d1;
+			d1 += 1L << (127 - depth);
+			if(Long.compareUnsigned(d1, old) < 0)
+				d0++;
+		} else {
+			long low = Integer.toUnsignedLong(d2) + (1L << (159 - depth));
+			d2 = (int) low;
+			if(low >>> 32 != 0 && ++d1 == 0)
+				d0++;
+		}
+		
+		// translate back to natural distance
+		scratch.w0 = target.w0 ^ d0;
+		scratch.w1 = target.w1 ^ d1;
+		scratch.w2 = target.w2 ^ d2;
+		
+		return table.entryForId(scratch);
+	}
+	
 	private void insertBucket(KBucket bucket) {
 		bucket.entriesStream().filter(filter).forEach(entries::add);
 	}
@@ -114,10 +158,9 @@ This requires a non-contiguous search
 		RoutingTable table = node.table();
 		
 		
-		final int initialIdx = table.indexForId(targetKey);
-		int currentIdx = initialIdx;
-		
-		Node.RoutingTableEntry current = table.get(initialIdx);
+		final Node.RoutingTableEntry initial = table.entryForId(targetKey);
+		Node.RoutingTableEntry current = initial;
+		Key nextBucketTarget = new Key();
 		
 		
 		while(true){
@@ -129,36 +172,10 @@ This requires a non-contiguous search
 			if(entries.size() >= max_entries)
 				break;
 			
-			Prefix bucketPrefix = current.prefix;
-			Prefix targetToBucketDistance = new Prefix(targetKey.distance(bucketPrefix), bucketPrefix.depth); // translate into xor distance, trim trailing bits
-			Key incrementedDistance = targetToBucketDistance.add(Key.setBit(targetToBucketDistance.depth)); // increment distance by least significant *prefix* bit
-			Key nextBucketTarget = targetKey.distance(incrementedDistance); // translate back to natural distance
-			
-			
-			//System.out.println("dist    " + targetToBucketDistance.toBinString());
-			//System.out.println("newDist " +  incrementedDistance.toBinString());
-			//System.out.println("target  " +  nextBucketTarget.toBinString());
-			
-			// guess neighbor bucket that might be next in target order
-			int dir = Integer.signum(nextBucketTarget.compareTo(current.prefix));
-			int idx;
-			
-			current = null;
-			
-			idx = currentIdx + dir;
-			if(0 <= idx && idx < table.size())
-				current = table.get(idx);
-			
-			// do binary search if guess turned out incorrect
-			if(current == null || !current.prefix.isPrefixOf(nextBucketTarget)) {
-				idx = table.indexForId(nextBucketTarget);
-				current = table.get(idx);
-			}
-			
-			currentIdx = idx;
+			current = nextBucket(table, targetKey, current, nextBucketTarget);
 
 			// quit if there are insufficient routing table entries to reach the desired size
-			if(currentIdx == initialIdx)
+			if(current == initial)
 				break;
 		}
 		
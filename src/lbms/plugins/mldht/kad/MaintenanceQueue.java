@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Buckets ordered by the time of their next maintenance check. Each bucket occupies at most one slot, rescheduling only ever
+ * moves it to an earlier time, later deadlines are picked up when the bucket gets checked and schedules itself again.
+ */
+class MaintenanceQueue {
+
+	static final class Slot {
+		final long time;
+		final long seq;
+		final KBucket bucket;
+		// used to find the bucket's current routing table entry
+		final Key key;
+
+		Slot(long time, long seq, KBucket bucket, Key key) {
+			this.time = time;
+			this.seq = seq;
+			this.bucket = bucket;
+			this.key = key;
+		}
+	}
+
+	private static final Comparator<Slot> ORDER = Comparator.<Slot>comparingLong(s -> s.time).thenComparingLong(s -> s.seq);
+
+	private final TreeSet<Slot> queue = new TreeSet<>(ORDER);
+	private long seq;
+
+	/**
+	 * @param key any key inside the bucket's prefix, null to reuse the one from a previous call
+	 */
+	synchronized void schedule(KBucket bucket, Key key, long time) {
+		if(key != null)
+			bucket.maintenanceKey = key;
+		key = bucket.maintenanceKey;
+		if(key == null)
+			return;
+
+		Slot old = bucket.maintenanceSlot;
+		if(old != null) {
+			if(old.time <= time)
+				return;
+			queue.remove(old);
+		}
+
+		Slot s = new Slot(time, seq++, bucket, key);
+		bucket.maintenanceSlot = s;
+		queue.add(s);
+	}
+
+	/**
+	 * @return the earliest slot that is due at the given time, removing it from the queue, or null
+	 */
+	synchronized Slot poll(long now) {
+		if(queue.isEmpty())
+			return null;
+		Slot s = queue.first();
+		if(s.time > now)
+			return null;
+		queue.pollFirst();
+		s.bucket.maintenanceSlot = null;
+		return s;
+	}
+
+	synchronized void remove(KBucket bucket) {
+		Slot s = bucket.maintenanceSlot;
+		if(s == null)
+			return;
+		queue.remove(s);
+		bucket.maintenanceSlot = null;
+	}
+
+	synchronized int size() {
+		return queue.size();
+	}
+
+}
@@ -5,8 +5,6 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static java.lang.Math.max;
-import static java.lang.Math.min;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.ALWAYS_SPLIT_IF_FULL;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.FORCE_INTO_MAIN_BUCKET;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.NEVER_SPLIT;
@@ -14,8 +12,7 @@ import static lbms.plugins.mldht.kad.Node.InsertOptions.RELAXED_SPLIT;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.REMOVE_IF_FULL;
 import static the8472.utils.Functional.typedGet;
 
-import the8472.bencode.BEncoder;
-import the8472.utils.AnonAllocator;
+import the8472.bencode.BEncodingWriter;
 import the8472.utils.CowSet;
 import the8472.utils.Pair;
 import the8472.utils.concurrent.SerializedTaskExecutor;
@@ -36,7 +33,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -48,13 +44,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -117,132 +111,246 @@ public class Node {
 		}
 	}
 	
+	/**
+	 * Immutable snapshot of the routing table, a persistent binary trie over the bucket prefixes.
+	 * 
+	 * Modifications copy the path from the root to the changed nodes and share all other subtrees with the previous
+	 * version, so readers can use a snapshot without locking. Lookups start at a jump table indexed by the leading bits
+	 * of the key which points directly at the trie node covering that part of the keyspace.
+	 */
 	public static final class RoutingTable {
 		
-		final RoutingTableEntry[] entries;
-		final int[] indexCache;
-		
-		RoutingTable(RoutingTableEntry... entries) {
-			this.entries = entries;
-			if(entries.length > 64) {
-				indexCache = buildCache();
-			} else {
-				indexCache = new int[] {0, entries.length};
+		static final int JUMP_BITS = 8;
+		
+		static final class TrieNode {
+			// non-null for leaves
+			final RoutingTableEntry entry;
+			final TrieNode low;
+			final TrieNode high;
+			// number of leaves
+			final int size;
+			// number of missing children, only non-zero while a modification is in progress
+			final int holes;
+			
+			TrieNode(RoutingTableEntry entry) {
+				this.entry = entry;
+				this.low = null;
+				this.high = null;
+				this.size = 1;
+				this.holes = 0;
 			}
 			
+			TrieNode(TrieNode low, TrieNode high) {
+				this.entry = null;
+				this.low = low;
+				this.high = high;
+				this.size = (low != null ? low.size : 0) + (high != null ? high.size : 0);
+				this.holes = (low != null ? low.holes : 1) + (high != null ? high.holes : 1);
+			}
+			
+			boolean isLeaf() {
+				return entry != null;
+			}
+		}
+		
+		final TrieNode root;
+		final TrieNode[] jumpTable = new TrieNode[1 << JUMP_BITS];
+		// index of the first entry below each jump table node
+		final int[] jumpOffsets = new int[1 << JUMP_BITS];
+		
+		// flat view for index-based access, built on demand
+		private volatile RoutingTableEntry[] entries;
+		
+		RoutingTable(TrieNode root) {
+			this.root = root;
+			fillJumpTable(root, 0, 0, jumpTable.length);
+			int offset = 0;
+			for(int i=0;i<jumpTable.length;i++) {
+				// leaves above the jump depth span several slots
+				if(i > 0 && jumpTable[i] != jumpTable[i-1])
+					offset += jumpTable[i-1].size;
+				jumpOffsets[i] = offset;
+			}
 		}
 		
 		public RoutingTable() {
-			this(new RoutingTableEntry[] {new RoutingTableEntry(new Prefix(), new KBucket(), (x) -> true)});
+			this(new KBucket());
 		}
 		
-		int[] buildCache() {
-			int[] cache = new int[256];
-			
-			assert(Integer.bitCount(cache.length) == 1);
-			
-			int lsb = Integer.bitCount((cache.length/2)-1)-1;
-			
-			Key increment = Key.setBit(lsb);
-			Key trailingBits = new Prefix(Key.MAX_KEY, lsb).distance(Key.MAX_KEY);
-			Key currentLower = new Key(new Prefix(Key.MIN_KEY, lsb));
-			Key currentUpper = new Prefix(Key.MIN_KEY, lsb).distance(trailingBits);
-			
-			int innerOffset = 0;
-			
-			for(int i=0;i<cache.length;i+=2) {
-				cache[i+1] = entries.length;
-				
-				for(int j=innerOffset;j<entries.length;j++) {
-					Prefix p = entries[j].prefix;
-					
-					if(p.compareTo(currentLower) <= 0) {
-						innerOffset = cache[i] = max(cache[i],j);
-					}
-						
-					if(p.compareTo(currentUpper) >= 0) {
-						cache[i+1] = min(cache[i+1],j);
-						break;
-					}
-						
-				}
-				
-				currentLower = new Key(new Prefix(currentLower.add(increment), lsb));
-				currentUpper = currentLower.distance(trailingBits);
+		RoutingTable(KBucket rootBucket) {
+			this(new TrieNode(new RoutingTableEntry(new Prefix(), rootBucket, (x) -> true)));
+		}
+		
+		private void fillJumpTable(TrieNode n, int depth, int from, int to) {
+			if(n.isLeaf() || depth == JUMP_BITS) {
+				Arrays.fill(jumpTable, from, to, n);
+				return;
 			}
-			
-			// System.out.println(IntStream.of(cache).mapToObj(Integer::toString).collect(Collectors.joining(", ")));
-			
-			return cache;
+			int mid = (from + to) >>> 1;
+			fillJumpTable(n.low, depth + 1, from, mid);
+			fillJumpTable(n.high, depth + 1, mid, to);
 		}
 		
 		public int indexForId(Key id) {
-			int mask = indexCache.length/2 - 1;
-			int bits = Integer.bitCount(mask);
-			
-			int cacheIdx = id.getInt(0);
-			
-			cacheIdx = Integer.rotateLeft(cacheIdx, bits);
-			cacheIdx = cacheIdx & mask;
-			cacheIdx <<= 1;
-			
-	        int lowerBound = indexCache[cacheIdx];
-	        int upperBound = indexCache[cacheIdx+1];
-	        
-	        Prefix pivot = null;
-
-	        while(true) {
-	            int pivotIdx = (lowerBound + upperBound) >>> 1;
-	            pivot = entries[pivotIdx].prefix;
-	            
-	            if(pivotIdx == lowerBound)
-	            	break;
-
-	            if (pivot.compareTo(id) <= 0)
-	           		lowerBound = pivotIdx;
-	           	else
-	           		upperBound = pivotIdx;
-	        }
-	        
-	        assert(pivot != null && pivot.isPrefixOf(id));
-	        
-           	return lowerBound;
+			int slot = (int) (id.w0 >>> (64 - JUMP_BITS));
+			TrieNode n = jumpTable[slot];
+			int idx = jumpOffsets[slot];
+			int bit = JUMP_BITS;
+			while(!n.isLeaf()) {
+				if(id.getBit(bit++) == 0) {
+					n = n.low;
+				} else {
+					idx += n.low.size;
+					n = n.high;
+				}
+			}
+			return idx;
 		}
-
 		
 		public RoutingTableEntry entryForId(Key id) {
-			return entries[indexForId(id)];
+			TrieNode n = jumpTable[(int) (id.w0 >>> (64 - JUMP_BITS))];
+			int bit = JUMP_BITS;
+			while(!n.isLeaf())
+				n = id.getBit(bit++) == 0 ? n.low : n.high;
+			return n.entry;
 		}
 		
 		public int size() {
-			return entries.length;
+			return root.size;
 		}
 		
 		public RoutingTableEntry get(int idx) {
-			return entries[idx];
+			return flat()[idx];
 		}
 		
 		public List<RoutingTableEntry> list() {
-			return Collections.unmodifiableList(Arrays.asList(entries));
+			return Collections.unmodifiableList(Arrays.asList(flat()));
 		}
 		
 		public Stream<RoutingTableEntry> stream() {
-			return Arrays.stream(entries);
+			return Arrays.stream(flat());
+		}
+		
+		private RoutingTableEntry[] flat() {
+			RoutingTableEntry[] e = entries;
+			if(e == null) {
+				e = new RoutingTableEntry[root.size];
+				flatten(root, e, 0);
+				entries = e;
+			}
+			return e;
+		}
+		
+		private static int flatten(TrieNode n, RoutingTableEntry[] out, int idx) {
+			if(n.isLeaf()) {
+				out[idx] = n.entry;
+				return idx + 1;
+			}
+			return flatten(n.high, out, flatten(n.low, out, idx));
 		}
 		
+		/**
+		 * Each added entry replaces whatever currently covers its prefix, i.e. a leaf with the same prefix, the subtree of a merged
+		 * prefix or one half of a split leaf. Split leaves must be completely covered by the added entries.
+		 */
 		public RoutingTable modify(Collection<RoutingTableEntry> toRemove, Collection<RoutingTableEntry> toAdd) {
-			List<RoutingTableEntry> temp = new ArrayList<>(Arrays.asList(entries));
-			if(toRemove != null)
-				temp.removeAll(toRemove);
+			TrieNode newRoot = root;
 			if(toAdd != null)
-				temp.addAll(toAdd);
-			return new RoutingTable(temp.stream().sorted().toArray(RoutingTableEntry[]::new));
+				for(RoutingTableEntry e : toAdd)
+					newRoot = insert(newRoot, 0, e);
+			if(newRoot.holes != 0)
+				throw new IllegalArgumentException("added entries do not cover the keyspace of the removed ones");
+			
+			RoutingTable result = new RoutingTable(newRoot);
+			if(toRemove != null) {
+				for(RoutingTableEntry e : toRemove) {
+					if(result.entryForId(e.prefix) == e)
+						throw new IllegalArgumentException("removed entry " + e.prefix + " has not been replaced");
+				}
+			}
+			return result;
+		}
+		
+		/**
+		 * copies the path down to the entry's prefix
+		 * 
+		 * @param bit the bit deciding which child of the node to follow
+		 */
+		private static TrieNode insert(TrieNode n, int bit, RoutingTableEntry e) {
+			if(e.prefix.depth < bit)
+				return new TrieNode(e);
+			TrieNode low = null;
+			TrieNode high = null;
+			// a leaf is split, the other half is expected to be filled in by another entry
+			if(n != null && !n.isLeaf()) {
+				low = n.low;
+				high = n.high;
+			}
+			if(e.prefix.getBit(bit) == 0)
+				low = insert(low, bit + 1, e);
+			else
+				high = insert(high, bit + 1, e);
+			return new TrieNode(low, high);
 		}
 		
 	}
 
+	// main list entries by address, maintained by bucket listeners
+	private final ConcurrentHashMap<InetAddress, KBucket> knownNodes = new ConcurrentHashMap<>();
+	private volatile TableJournal journal;
+	// buckets ordered by their next due maintenance check
+	private final MaintenanceQueue maintenance = new MaintenanceQueue();
+	private volatile boolean mergeCheckNeeded = true;
+	private final AtomicInteger num_entries = new AtomicInteger();
+	
+	private final KBucket.BucketListener bucketListener = new KBucket.BucketListener() {
+		@Override
+		public void mainListChanged(KBucket bucket, KBucketEntry entry, boolean added) {
+			InetAddress addr = entry.getAddress().getAddress();
+			if(added) {
+				num_entries.incrementAndGet();
+				KBucket previous = knownNodes.put(addr, bucket);
+				// duplicate address, let the bucket checks sort it out
+				if(previous != null && previous != bucket)
+					maintenance.schedule(previous, null, System.currentTimeMillis());
+			} else {
+				num_entries.decrementAndGet();
+				knownNodes.remove(addr, bucket);
+				mergeCheckNeeded = true;
+			}
+			maintenance.schedule(bucket, entry.getID(), System.currentTimeMillis());
+			
+			TableJournal j = journal;
+			if(j != null) {
+				if(added)
+					j.added(entry);
+				else
+					j.removed(entry);
+			}
+		}
+		
+		@Override
+		public void entryRefreshed(KBucket bucket, KBucketEntry entry) {
+			TableJournal j = journal;
+			if(j != null)
+				j.refreshed(entry);
+		}
+		
+		@Override
+		public void entryTimedOut(KBucket bucket, KBucketEntry entry) {
+			entryRefreshed(bucket, entry);
+			mergeCheckNeeded = true;
+			maintenance.schedule(bucket, entry.getID(), System.currentTimeMillis());
+		}
+		
+		@Override
+		public void replacementAdded(KBucket bucket, KBucketEntry entry) {
+			maintenance.schedule(bucket, entry.getID(), System.currentTimeMillis());
+		}
+	};
+	
 	private Object CoWLock = new Object();
-	private volatile RoutingTable routingTableCOW = new RoutingTable();
+	private volatile RoutingTable routingTableCOW = new RoutingTable(newBucket());
 	
 	
 	
@@ -254,10 +362,8 @@ public class Node {
 	private long timeOfLastPingCheck;
 	private long timeOfLastReceiveCountChange;
 	private long timeOfRecovery;
-	private int num_entries;
 	private Key baseKey;
 	private final CowSet<Key> usedIDs = new CowSet<>();
-	private volatile Map<InetAddress,RoutingTableEntry> knownNodes = new HashMap<>();
 	private ConcurrentHashMap<InetAddress , Long> unsolicitedThrottle = new ConcurrentHashMap<>();
 	private Map<KBucket, Task> maintenanceTasks = new IdentityHashMap<>();
 	
@@ -269,7 +375,6 @@ public class Node {
 	public Node(DHT dht) {
 		this.dht = dht;
 		num_receives = 0;
-		num_entries = 0;
 	}
 	
 	void recieved(MessageBase msg) {
@@ -422,8 +527,29 @@ public class Node {
 		return oldVal > throttleThreshold;
 	}
 	
+	/**
+	 * @return true if the address belongs to one of the main entries of the routing table
+	 */
+	public boolean isRoutingTableAddress(InetAddress addr) {
+		return knownNodes.containsKey(addr);
+	}
+	
 	private Optional<Pair<KBucket, KBucketEntry>> bucketForIP(InetAddress addr) {
-		return Optional.ofNullable(knownNodes.get(addr)).map(RoutingTableEntry::getBucket).flatMap(bucket -> bucket.findByIPorID(addr, null).map(Pair.of(bucket)));
+		return Optional.ofNullable(knownNodes.get(addr)).flatMap(bucket -> bucket.findByIPorID(addr, null).map(Pair.of(bucket)));
+	}
+	
+	private KBucket newBucket() {
+		return new KBucket(bucketListener);
+	}
+	
+	/**
+	 * drops a bucket that is no longer part of the routing table from the address index, after its entries have been moved elsewhere
+	 */
+	private void retireBucket(KBucket bucket) {
+		bucket.setListener(null);
+		maintenance.remove(bucket);
+		bucket.entriesStream().forEach(e -> knownNodes.remove(e.getAddress().getAddress(), bucket));
+		num_entries.addAndGet(-bucket.getNumEntries());
 	}
 	
 	
@@ -469,8 +595,6 @@ public class Node {
 			tableEntry = currentTable.entryForId(nodeID);
 		}
 		
-		int oldSize = tableEntry.bucket.getNumEntries();
-		
 		KBucketEntry toRemove = null;
 		
 		if(opts.contains(REMOVE_IF_FULL)) {
@@ -481,10 +605,6 @@ public class Node {
 			tableEntry.bucket.modifyMainBucket(toRemove,toInsert);
 		else
 			tableEntry.bucket.insertOrRefresh(toInsert);
-		
-		// add delta to the global counter. inaccurate, but will be rebuilt by the bucket checks
-		num_entries += tableEntry.bucket.getNumEntries() - oldSize;
-		
 	}
 	
 	boolean canSplit(RoutingTableEntry entry, KBucketEntry toInsert, boolean relaxedSplitting) {
@@ -520,8 +640,8 @@ public class Node {
 			if(current != expect)
 				return;
 			
-			RoutingTableEntry a = new RoutingTableEntry(entry.prefix.splitPrefixBranch(false), new KBucket(), this::isLocalBucket);
-			RoutingTableEntry b = new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), new KBucket(), this::isLocalBucket);
+			RoutingTableEntry a = new RoutingTableEntry(entry.prefix.splitPrefixBranch(false), newBucket(), this::isLocalBucket);
+			RoutingTableEntry b = new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), newBucket(), this::isLocalBucket);
 			
 			RoutingTable newTable = current.modify(Arrays.asList(entry), Arrays.asList(a, b));
 			
@@ -530,6 +650,7 @@ public class Node {
 			// suppress recursive splitting to relinquish the lock faster. this method is generally called in a loop anyway
 			for(KBucketEntry e : entry.bucket.getEntries())
 				insertEntry(e, EnumSet.of(InsertOptions.NEVER_SPLIT, InsertOptions.FORCE_INTO_MAIN_BUCKET));
+			retireBucket(entry.bucket);
 		}
 		
 		// replacements are less important, transfer outside lock
@@ -585,9 +706,9 @@ public class Node {
 		{
 			routingTableCOW.entryForId(call.getExpectedID()).bucket.onTimeout(dest);
 		} else {
-			RoutingTableEntry entry = knownNodes.get(dest.getAddress());
-			if(entry != null)
-				entry.bucket.onTimeout(dest);
+			KBucket bucket = knownNodes.get(dest.getAddress());
+			if(bucket != null)
+				bucket.onTimeout(dest);
 		}
 	}
 	
@@ -627,7 +748,7 @@ public class Node {
 		bucket.findByIPorID(c.getRequest().getDestination().getAddress(), expectedId).ifPresent(entry -> {
 			entry.signalScheduledRequest();
 		});
-		bucket.replacementsStream().filter(r -> r.getAddress().equals(c.getRequest().getDestination())).findAny().ifPresent(KBucketEntry::signalScheduledRequest);
+		bucket.replacementRequestScheduled(c.getRequest().getDestination());
 	}
 	
 	Key registerId()
@@ -651,8 +772,14 @@ public class Node {
 	
 	
 
+	// spread out ping traffic when many buckets become due at once, e.g. after startup
+	static final int MAX_MAINTENANCE_TASKS_PER_CHECK = 4;
+	// retry delay for buckets that needed pings but had no server to send them from
+	static final long MAINTENANCE_RETRY_DELAY = 10 * 1000;
+
 	/**
-	 * Check if a buckets needs to be refreshed, and refresh if necessary.
+	 * Performs the maintenance of buckets whose next check is due, see {@link #checkBucket(RoutingTableEntry, Set, boolean, long)}.
+	 * Buckets reschedule themselves on changes or based on the timestamps of their entries, idle buckets are not visited.
 	 */
 	public void doBucketChecks (long now) {
 		
@@ -664,73 +791,99 @@ public class Node {
 			return;
 		timeOfLastPingCheck = now;
 		
-		mergeBuckets();
+		// only entries becoming removable enable merges
+		if(mergeCheckNeeded) {
+			mergeCheckNeeded = false;
+			mergeBuckets();
+		}
 		
-		int newEntryCount = 0;
+		// the queue operates on wall clock time, independent of the caller's notion of now
+		long clock = System.currentTimeMillis();
+		Set<Key> localIds = usedIDs.snapshot();
 		
-		for (RoutingTableEntry e : routingTableCOW.entries) {
-			KBucket b = e.bucket;
-			boolean isHome = e.homeBucket;
+		int started = 0;
+		MaintenanceQueue.Slot due;
+		while(started < MAX_MAINTENANCE_TASKS_PER_CHECK && (due = maintenance.poll(clock)) != null) {
+			RoutingTableEntry e = routingTableCOW.entryForId(due.key);
+			// bucket was split or merged away in the meantime
+			if(e.bucket != due.bucket)
+				continue;
+			if(checkBucket(e, localIds, survival, clock))
+				started++;
+		}
+		
+		decayThrottle();
+	}
+	
+	/**
+	 * @return true if a ping task was started
+	 */
+	private boolean checkBucket(RoutingTableEntry e, Set<Key> localIds, boolean survival, long now) {
+		KBucket b = e.bucket;
+		boolean isHome = e.homeBucket;
 
-			List<KBucketEntry> entries = b.getEntries();
-			
-			Set<Key> localIds = usedIDs.snapshot();
+		List<KBucketEntry> entries = b.getEntries();
 
-			boolean wasFull = b.getNumEntries() >= DHTConstants.MAX_ENTRIES_PER_BUCKET;
-			for (KBucketEntry entry : entries)
-			{
-				// remove really old entries, ourselves and bootstrap nodes if the bucket is full
-				if (localIds.contains(entry.getID()) || (wasFull && dht.getBootStrapNodes().contains(entry.getAddress()))) {
-					b.removeEntryIfBad(entry, true);
-					continue;
-				}
-				
+		boolean wasFull = b.getNumEntries() >= DHTConstants.MAX_ENTRIES_PER_BUCKET;
+		for (KBucketEntry entry : entries)
+		{
+			// remove really old entries, ourselves and bootstrap nodes if the bucket is full
+			if (localIds.contains(entry.getID()) || (wasFull && dht.getBootStrapNodes().contains(entry.getAddress()))) {
+				b.removeEntryIfBad(entry, true);
+				continue;
+			}
+			
 
-				// remove duplicate entries, keep the older one
-				RoutingTableEntry reverseMapping = knownNodes.get(entry.getAddress().getAddress());
-				if(reverseMapping != null && reverseMapping != e) {
-					KBucket otherBucket = reverseMapping.getBucket();
-					KBucketEntry other = otherBucket.findByIPorID(entry.getAddress().getAddress(), null).orElse(null);
-					if(other != null && !other.equals(entry)) {
-						if(other.getCreationTime() < entry.getCreationTime()) {
-							b.removeEntryIfBad(entry, true);
-						} else {
-							otherBucket.removeEntryIfBad(other, true);
-						}
+			// remove duplicate entries, keep the older one. also re-indexes addresses whose mapping was lost to a duplicate
+			KBucket otherBucket = knownNodes.putIfAbsent(entry.getAddress().getAddress(), b);
+			if(otherBucket != null && otherBucket != b) {
+				KBucketEntry other = otherBucket.findByIPorID(entry.getAddress().getAddress(), null).orElse(null);
+				if(other != null && !other.equals(entry)) {
+					if(other.getCreationTime() < entry.getCreationTime()) {
+						b.removeEntryIfBad(entry, true);
+					} else {
+						otherBucket.removeEntryIfBad(other, true);
 					}
 				}
-				
 			}
 			
-			boolean refreshNeeded = b.needsToBeRefreshed();
-			boolean replacementNeeded = b.needsReplacementPing() || (isHome && b.findPingableReplacement().isPresent());
-			if(refreshNeeded || replacementNeeded)
-				tryPingMaintenance(b, "Refreshing Bucket #" + e.prefix, null, (task) -> {
-					task.probeUnverifiedReplacement(replacementNeeded);
-				});
-			
-			if(!survival)	{
-				// only replace 1 bad entry with a replacement bucket entry at a time (per bucket)
-				b.promoteVerifiedReplacement();
-			}
-			
-			newEntryCount += e.bucket.getNumEntries();
-
-
 		}
 		
-		num_entries = newEntryCount;
+		boolean refreshNeeded = b.needsToBeRefreshed();
+		boolean replacementNeeded = b.needsReplacementPing() || (isHome && b.findPingableReplacement().isPresent());
+		boolean started = false;
+		if(refreshNeeded || replacementNeeded)
+			started = tryPingMaintenance(b, "Refreshing Bucket #" + e.prefix, null, (task) -> {
+				task.probeUnverifiedReplacement(replacementNeeded);
+			});
 		
-		rebuildAddressCache();
-		decayThrottle();
+		if(!survival)	{
+			// only replace 1 bad entry with a replacement bucket entry at a time (per bucket)
+			b.promoteVerifiedReplacement();
+		}
+		
+		long next;
+		if((refreshNeeded || replacementNeeded) && !started && !maintenanceTasks.containsKey(b)) {
+			next = now + MAINTENANCE_RETRY_DELAY;
+		} else {
+			// jitter keeps buckets that were filled at the same time from staying in lockstep
+			long delay = Math.min(b.nextMaintenanceDue(now), now + DHTConstants.BUCKET_REFRESH_INTERVAL) - now;
+			next = now + delay + ThreadLocalRandom.current().nextLong(delay / 10 + 1);
+		}
+		maintenance.schedule(b, e.prefix, next);
+		
+		return started;
 	}
 
-	void tryPingMaintenance(KBucket b, String reason, RPCServer srv, Consumer<PingRefreshTask> taskConfig) {
+	/**
+	 * @return true if a new task was started
+	 */
+	boolean tryPingMaintenance(KBucket b, String reason, RPCServer srv, Consumer<PingRefreshTask> taskConfig) {
 		if(srv == null)
 			srv = dht.getServerManager().getRandomActiveServer(true);
 		
 		if(maintenanceTasks.containsKey(b))
-			return;
+			return false;
 		
 		
 		if(srv != null) {
@@ -743,11 +896,18 @@ public class Node {
 			prt.addBucket(b);
 			
 			if(prt.getTodoCount() > 0 && maintenanceTasks.putIfAbsent(b, prt) == null) {
-				prt.addListener(x -> maintenanceTasks.remove(b, prt));
+				prt.addListener(x -> {
+					maintenanceTasks.remove(b, prt);
+					// pings may have been skipped while the task was running
+					maintenance.schedule(b, null, System.currentTimeMillis());
+				});
 				dht.getTaskManager().addTask(prt);
+				return true;
 			}
 				
 		}
+		
+		return false;
 	}
 	
 	
@@ -771,15 +931,17 @@ public class Node {
 				RoutingTableEntry e2 = routingTableCOW.get(i);
 
 				if (e1.prefix.isSiblingOf(e2.prefix)) {
-					int effectiveSize1 = (int) (e1.getBucket().entriesStream().filter(e -> !e.removableWithoutReplacement()).count() + e1.getBucket().replacementsStream().filter(KBucketEntry::eligibleForNodesList).count());
-					int effectiveSize2 = (int) (e2.getBucket().entriesStream().filter(e -> !e.removableWithoutReplacement()).count() + e2.getBucket().replacementsStream().filter(KBucketEntry::eligibleForNodesList).count());
+					int effectiveSize1 = (int) (e1.getBucket().entriesStream().filter(e -> !e.removableWithoutReplacement()).count() + e1.getBucket().getNumEligibleReplacements());
+					int effectiveSize2 = (int) (e2.getBucket().entriesStream().filter(e -> !e.removableWithoutReplacement()).count() + e2.getBucket().getNumEligibleReplacements());
 
 					// uplift siblings if the other one is dead
 					if (effectiveSize1 == 0 || effectiveSize2 == 0) {
 						KBucket toLift = effectiveSize1 == 0 ? e2.getBucket() : e1.getBucket();
+						KBucket toDrop = effectiveSize1 == 0 ? e1.getBucket() : e2.getBucket();
 
 						RoutingTable table = routingTableCOW;
 						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e2.prefix.getParentPrefix(), toLift, this::isLocalBucket)));
+						retireBucket(toDrop);
 						i -= 2;
 						continue;
 					}
@@ -789,7 +951,7 @@ public class Node {
 					if (effectiveSize1 + effectiveSize2 <= DHTConstants.MAX_ENTRIES_PER_BUCKET) {
 
 						RoutingTable table = routingTableCOW;
-						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), this::isLocalBucket)));
+						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), newBucket(), this::isLocalBucket)));
 						
 						// no splitting to avoid fibrillation between merge and split operations
 
@@ -804,6 +966,9 @@ public class Node {
 						e2.bucket.replacementsStream().forEach(r -> {
 							insertEntry(r, EnumSet.of(InsertOptions.NEVER_SPLIT));
 						});
+						
+						retireBucket(e1.bucket);
+						retireBucket(e2.bucket);
 
 						i -= 2;
 						continue;
@@ -838,22 +1003,14 @@ public class Node {
 			}
 		}
 		
-	}
-	
-	void rebuildAddressCache() {
-		Map<InetAddress, RoutingTableEntry> newKnownMap = new HashMap<>(num_entries);
-		RoutingTable table = routingTableCOW;
-		for(int i=0,n=table.size();i<n;i++)
-		{
-			RoutingTableEntry entry = table.get(i);
-			Stream<KBucketEntry> entries = entry.bucket.entriesStream();
-			entries.forEach(e -> {
-				newKnownMap.put(e.getAddress().getAddress(), entry);
-			});
-		}
+		// home buckets follow different rules and may contain a new local ID
+		long now = System.currentTimeMillis();
+		RoutingTable t = table();
+		for(Key k : usedIDs)
+			maintenance.schedule(t.entryForId(k).bucket, k, now);
 		
-		knownNodes = newKnownMap;
 	}
+	
 
 	/**
 	 * Check if a buckets needs to be refreshed, and refresh if necesarry
@@ -886,6 +1043,14 @@ public class Node {
 	 * @throws IOException
 	 */
 	void saveTable(Path saveTo) throws IOException {
+		TableJournal j = journal;
+		if(j != null) {
+			j.flush();
+			if(j.needsCompaction())
+				j.compact(this);
+			return;
+		}
+		
 		// don't persist in test mode
 		if(!Files.isDirectory(saveTo.getParent()))
 			return;
@@ -896,35 +1061,33 @@ public class Node {
 		if(currentRootID == null)
 			return;
 		
-		ByteBuffer tableBuffer = AnonAllocator.allocate(50*1024*1024);
-		
-		
-		Map<String,Object> tableMap = new TreeMap<>();
-
 		RoutingTable table = routingTableCOW;
 		
-		Stream<Map<String, Object>> main = table.stream().map(RoutingTableEntry::getBucket).flatMap(b -> b.entriesStream().map(KBucketEntry::toBencoded));
-		Stream<Map<String, Object>> replacements = table.stream().map(RoutingTableEntry::getBucket).flatMap(b -> b.replacementsStream().map(KBucketEntry::toBencoded));
-		
-		tableMap.put("mainEntries", main);
-		tableMap.put("replacements", replacements);
-		
 		ByteBuffer doubleBuf = ByteBuffer.wrap(new byte[8]);
 		doubleBuf.putDouble(0, dht.getEstimator().getRawDistanceEstimate());
-		tableMap.put("log2estimate", doubleBuf);
-		
-		tableMap.put("timestamp", System.currentTimeMillis());
-		tableMap.put("oldKey", currentRootID.getHash());
-		
-		new BEncoder().encodeInto(tableMap, tableBuffer);
 		
 		Path tempFile = Files.createTempFile(saveTo.getParent(), "saveTable", "tmp");
 		
-		try(SeekableByteChannel chan = Files.newByteChannel(tempFile, StandardOpenOption.WRITE)) {
-			chan.write(tableBuffer);
-			chan.close();
-			Files.move(tempFile, saveTo, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-		};
+		// entries are encoded one at a time straight into the file
+		try(BEncodingWriter writer = new BEncodingWriter(Files.newByteChannel(tempFile, StandardOpenOption.WRITE), 64 * 1024)) {
+			writer.beginDict();
+			writer.key("log2estimate").value(doubleBuf);
+			writer.key("mainEntries").beginList();
+			for(RoutingTableEntry e : table.list())
+				for(KBucketEntry kbe : e.getBucket().getEntries())
+					writer.value(kbe.toBencoded());
+			writer.endList();
+			writer.key("oldKey").value(currentRootID.getHash());
+			writer.key("replacements").beginList();
+			for(RoutingTableEntry e : table.list())
+				for(KBucketEntry kbe : e.getBucket().getReplacementEntries())
+					writer.value(kbe.toBencoded());
+			writer.endList();
+			writer.key("timestamp").value(System.currentTimeMillis());
+			writer.endDict();
+		}
+		
+		Files.move(tempFile, saveTo, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 
 	}
 	
@@ -1037,14 +1200,97 @@ public class Node {
 			DHT.logInfo("Loaded " + counter.get() + " entries from cache. Cache was "
 					+ ((System.currentTimeMillis() - timeStamp) / (60 * 1000))
 					+ "min old. Reusing old id = " + reuseKey);
-
-			
-			rebuildAddressCache();
 		} catch (IOException e) {
 			DHT.log(e, LogLevel.Error);
 		};
 		
 	}
+	
+	/**
+	 * Restores the table from the journal's snapshot, or from the legacy table file if there is none, and then starts
+	 * journaling changes. Compacts once so that the journal starts out empty.
+	 */
+	void openJournal(TableJournal j, Path legacyTable) {
+		if(!j.load(this))
+			loadTable(legacyTable);
+		
+		journal = j;
+		
+		try {
+			j.compact(this);
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+		
+		// otherwise records would pile up without ever being flushed
+		if(!j.isOpen())
+			journal = null;
+	}
+	
+	void flushJournal() throws IOException {
+		TableJournal j = journal;
+		if(j != null)
+			j.flush();
+	}
+	
+	/**
+	 * flushes and closes the journal, compaction is left to {@link #saveTable(Path)} and the next {@link #openJournal(TableJournal, Path)}
+	 */
+	void closeJournal() throws IOException {
+		TableJournal j = journal;
+		if(j == null)
+			return;
+		try {
+			j.flush();
+		} finally {
+			journal = null;
+			j.close();
+		}
+	}
+	
+	/**
+	 * Installs buckets restored from a snapshot as they are, without going through splits. Falls back to regular inserts if the
+	 * node ID changed since the snapshot was taken.
+	 * 
+	 * @param restored buckets without a listener, covering the whole keyspace
+	 * @param additional entries that are not part of any of the buckets
+	 */
+	void restoreTable(Key oldKey, List<RoutingTableEntry> restored, Collection<KBucketEntry> additional) {
+		boolean reuseKey = getRootID().equals(oldKey);
+		
+		if(reuseKey) {
+			RoutingTable initial = new RoutingTable(newBucket());
+			try {
+				RoutingTable table = initial.modify(Collections.singleton(initial.get(0)), restored);
+				synchronized (CoWLock) {
+					routingTableCOW = table;
+				}
+			} catch (IllegalArgumentException e) {
+				DHT.log(e, LogLevel.Error);
+				reuseKey = false;
+			}
+		}
+		
+		if(reuseKey) {
+			int count = 0;
+			long now = System.currentTimeMillis();
+			for(RoutingTableEntry e : restored) {
+				KBucket b = e.bucket;
+				b.setListener(bucketListener);
+				b.entriesStream().forEach(kbe -> knownNodes.put(kbe.getAddress().getAddress(), b));
+				count += b.getNumEntries();
+				maintenance.schedule(b, e.prefix, now);
+			}
+			num_entries.set(count);
+		} else {
+			Comparator<KBucketEntry> comp = new KBucketEntry.DistanceOrder(getRootID());
+			restored.stream().flatMap(e -> e.bucket.entriesStream()).sorted(comp).forEachOrdered(e -> insertEntry(e, EnumSet.noneOf(InsertOptions.class)));
+			restored.stream().flatMap(e -> e.bucket.replacementsStream()).forEach(e -> routingTableCOW.entryForId(e.getID()).bucket.insertInReplacementBucket(e));
+		}
+		
+		for(KBucketEntry e : additional)
+			insertEntry(e, reuseKey ? EnumSet.of(ALWAYS_SPLIT_IF_FULL, FORCE_INTO_MAIN_BUCKET) : EnumSet.noneOf(InsertOptions.class));
+	}
 
 	/**
 	 * Get the number of entries in the routing table
@@ -1052,7 +1298,7 @@ public class Node {
 	 * @return
 	 */
 	public int getNumEntriesInRoutingTable () {
-		return num_entries;
+		return num_entries.get();
 	}
 	
 	public void setTrustedNetMasks(Collection<NetMask> masks) {
@@ -1093,9 +1339,9 @@ public class Node {
 		b.append("buckets: ");
 		b.append(String.valueOf(table.size()));
 		b.append(" / entries: ");
-		b.append(String.valueOf(num_entries));
+		b.append(String.valueOf(num_entries.get()));
 		b.append('\n');
-		for(RoutingTableEntry e : table.entries) {
+		for(RoutingTableEntry e : table.list()) {
 			b.append(e.prefix.toString());
 			b.append("   num:");
 			b.append(String.valueOf(e.bucket.getNumEntries()));
@@ -10,6 +10,7 @@ import static the8472.utils.Functional.unchecked;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.Objects;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -31,6 +32,22 @@ public interface NodeList {
 	
 	int packedSize();
 	
+	/**
+	 * BEP42 compliance of all entries in one pass
+	 * 
+	 * @return bit i is set if the i-th entry's ID matches its address
+	 */
+	default BitSet secureIDs() {
+		BitSet result = new BitSet();
+		int[] i = {0};
+		entries().forEach(e -> {
+			if(e.hasSecureID())
+				result.set(i[0]);
+			i[0]++;
+		});
+		return result;
+	}
+	
 	default StringWriter writer() {
 		return new StringWriter() {
 			
@@ -40,7 +57,7 @@ public interface NodeList {
 					
 					InetSocketAddress sockAddr = e.getAddress();
 					InetAddress addr = sockAddr.getAddress();
-					buf.put(e.getID().hash);
+					e.getID().toBuffer(buf);
 					buf.put(addr.getAddress());
 					buf.putShort((short) sockAddr.getPort());
 				});
@@ -84,6 +101,26 @@ public interface NodeList {
 				});
 			}
 			
+			@Override
+			public BitSet secureIDs() {
+				// works on the raw buffer, no entries, keys or addresses are materialized
+				BitSet result = new BitSet();
+				if(KBucketEntry.crc32c == null)
+					return result;
+				
+				int stride = type == AddressType.V4 ? DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH : DHTtype.IPV6_DHT.NODES_ENTRY_LENGTH;
+				byte[] rawAddr = new byte[type == AddressType.V4 ? 4 : 16];
+				
+				for(int i=0, pos=src.position();pos + stride <= src.limit();i++, pos+=stride) {
+					for(int j=0;j<rawAddr.length;j++)
+						rawAddr[j] = src.get(pos + Key.SHA1_HASH_LENGTH + j);
+					if(KBucketEntry.isSecureID(src.getInt(pos), src.get(pos + Key.SHA1_HASH_LENGTH - 1), rawAddr, 0, rawAddr.length))
+						result.set(i);
+				}
+				
+				return result;
+			}
+			
 			@Override
 			public StringWriter writer() {
 				return new StringWriter() {
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Fixed number of entry slots stored as parallel primitive arrays instead of one {@link KBucketEntry} object graph
+ * (entry, key, socket address, inet address and their holders) per node.
+ *
+ * {@link #get(int)} materializes a detached copy for callers that need the regular entry API. State changes have to go
+ * through the slot-based methods, modifying the copy does not write back.
+ *
+ * Not thread-safe, callers synchronize.
+ */
+final class PackedEntries {
+
+	private static final int ADDRESS_STRIDE = 16;
+
+	private final long[] id0;
+	private final long[] id1;
+	private final int[] id2;
+
+	private final byte[] ips;
+	// 0 marks an empty slot
+	private final byte[] ipLengths;
+	private final char[] ports;
+
+	private final long[] created;
+	private final long[] lastSeen;
+	private final long[] lastSend;
+	private final int[] failed;
+	// EMA, NaN if unknown
+	private final double[] rtt;
+	private final boolean[] verified;
+	private final byte[][] versions;
+
+	PackedEntries(int capacity) {
+		id0 = new long[capacity];
+		id1 = new long[capacity];
+		id2 = new int[capacity];
+		ips = new byte[capacity * ADDRESS_STRIDE];
+		ipLengths = new byte[capacity];
+		ports = new char[capacity];
+		created = new long[capacity];
+		lastSeen = new long[capacity];
+		lastSend = new long[capacity];
+		failed = new int[capacity];
+		rtt = new double[capacity];
+		verified = new boolean[capacity];
+		versions = new byte[capacity][];
+	}
+
+	int capacity() {
+		return ipLengths.length;
+	}
+
+	boolean isEmpty(int slot) {
+		return ipLengths[slot] == 0;
+	}
+
+	void set(int slot, KBucketEntry e) {
+		Key id = e.getID();
+		id0[slot] = id.w0;
+		id1[slot] = id.w1;
+		id2[slot] = id.w2;
+
+		InetSocketAddress addr = e.getAddress();
+		byte[] ip = addr.getAddress().getAddress();
+		System.arraycopy(ip, 0, ips, slot * ADDRESS_STRIDE, ip.length);
+		ipLengths[slot] = (byte) ip.length;
+		ports[slot] = (char) addr.getPort();
+
+		created[slot] = e.getCreationTime();
+		lastSeen[slot] = e.getLastSeen();
+		lastSend[slot] = e.lastSendTime();
+		failed[slot] = e.getFailedQueries();
+		rtt[slot] = e.rttAverage();
+		verified[slot] = e.verifiedReachable();
+		versions[slot] = e.rawVersion();
+	}
+
+	void clear(int slot) {
+		ipLengths[slot] = 0;
+		versions[slot] = null;
+	}
+
+	/**
+	 * @return a detached copy of the slot's state, null if the slot is empty
+	 */
+	KBucketEntry get(int slot) {
+		if(isEmpty(slot))
+			return null;
+
+		Key id = new Key();
+		id.w0 = id0[slot];
+		id.w1 = id1[slot];
+		id.w2 = id2[slot];
+
+		byte[] ip = new byte[ipLengths[slot]];
+		System.arraycopy(ips, slot * ADDRESS_STRIDE, ip, 0, ip.length);
+		InetSocketAddress addr;
+		try {
+			addr = new InetSocketAddress(InetAddress.getByAddress(ip), ports[slot]);
+		} catch (UnknownHostException e) {
+			// only thrown for invalid lengths
+			throw new IllegalStateException(e);
+		}
+
+		return new KBucketEntry(addr, id, created[slot], lastSeen[slot], lastSend[slot], failed[slot], rtt[slot], verified[slot], versions[slot]);
+	}
+
+	private boolean sameId(int slot, Key id) {
+		return id0[slot] == id.w0 && id1[slot] == id.w1 && id2[slot] == id.w2;
+	}
+
+	private boolean sameIp(int slot, InetAddress addr) {
+		byte[] ip = addr.getAddress();
+		if(ip.length != ipLengths[slot])
+			return false;
+		int offset = slot * ADDRESS_STRIDE;
+		for(int i=0;i<ip.length;i++)
+			if(ips[offset + i] != ip[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @see KBucketEntry#equals(KBucketEntry)
+	 */
+	boolean matches(int slot, KBucketEntry e) {
+		return !isEmpty(slot) && sameId(slot, e.getID()) && hasAddress(slot, e.getAddress());
+	}
+
+	/**
+	 * @see KBucketEntry#matchIPorID(KBucketEntry)
+	 */
+	boolean matchIPorID(int slot, KBucketEntry e) {
+		return !isEmpty(slot) && (sameId(slot, e.getID()) || sameIp(slot, e.getAddress().getAddress()));
+	}
+
+	boolean hasAddress(int slot, InetSocketAddress addr) {
+		return !isEmpty(slot) && ports[slot] == addr.getPort() && sameIp(slot, addr.getAddress());
+	}
+
+	boolean verifiedReachable(int slot) {
+		return verified[slot];
+	}
+
+	/**
+	 * @see KBucketEntry#eligibleForNodesList()
+	 */
+	boolean eligibleForNodesList(int slot) {
+		return verified[slot] && failed[slot] < 2;
+	}
+	
+	boolean neverContacted(int slot) {
+		return lastSend[slot] == -1;
+	}
+
+	long lastSeen(int slot) {
+		return lastSeen[slot];
+	}
+
+	/**
+	 * @see KBucketEntry#getRTT()
+	 */
+	int rtt(int slot) {
+		double avg = rtt[slot];
+		return Double.isNaN(avg) ? DHTConstants.RPC_CALL_TIMEOUT_MAX : (int) avg;
+	}
+
+	/**
+	 * @see KBucketEntry#mergeInTimestamps(KBucketEntry)
+	 */
+	void mergeInTimestamps(int slot, KBucketEntry other) {
+		lastSeen[slot] = Math.max(lastSeen[slot], other.getLastSeen());
+		lastSend[slot] = Math.max(lastSend[slot], other.lastSendTime());
+		created[slot] = Math.min(created[slot], other.getCreationTime());
+		if(other.verifiedReachable())
+			verified[slot] = true;
+		double otherRtt = other.rttAverage();
+		if(!Double.isNaN(otherRtt))
+			rtt[slot] = KBucketEntry.updateRTT(rtt[slot], otherRtt);
+	}
+
+	void signalScheduledRequest(int slot, long now) {
+		lastSend[slot] = now;
+	}
+
+	void signalRequestTimeout(int slot) {
+		failed[slot]++;
+	}
+
+}
@@ -5,8 +5,6 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static the8472.utils.Arrays.mismatch;
-
 import java.util.Collection;
 import java.util.Collections;
 
@@ -54,10 +52,8 @@ public class Prefix extends Key {
 	public Prefix splitPrefixBranch(boolean highBranch) {
 		Prefix branch = new Prefix(this);
 		int branchDepth = ++branch.depth;
-		if(highBranch)
-			branch.hash[branchDepth / 8] |=  0x80 >> (branchDepth % 8);
-		else
-			branch.hash[branchDepth / 8] &= ~(0x80 >> (branchDepth % 8));
+		if((branch.getBit(branchDepth) == 1) != highBranch)
+			branch.flipBit(branchDepth);
 		
 				
 		return branch;
@@ -68,8 +64,12 @@ public class Prefix extends Key {
 	}
 	
 	public Key last() {
-		Key trailingBits = new Prefix(Key.MAX_KEY, depth).distance(Key.MAX_KEY);
-		return this.distance(trailingBits);
+		Key last = new Key(this);
+		int bits = depth + 1;
+		last.w0 |= ~topBits(bits);
+		last.w1 |= ~topBits(bits - 64);
+		last.w2 |= (int) (~topBits(bits - 128) >>> 32);
+		return last;
 	}
 	
 	public Prefix getParentPrefix() {
@@ -78,7 +78,8 @@ public class Prefix extends Key {
 		Prefix parent = new Prefix(this);
 		int oldDepth = parent.depth--;
 		// set last bit to zero
-		parent.hash[oldDepth / 8] &= ~(0x80 >> (oldDepth % 8));
+		if(parent.getBit(oldDepth) == 1)
+			parent.flipBit(oldDepth);
 		return parent;
 	}
 	
@@ -100,41 +101,22 @@ public class Prefix extends Key {
 	 */
 	private static boolean bitsEqual(Key k1, Key k2, int n)
 	{
-		if(n < 0)
-			return true;
-		
-		byte[] h1 = k1.hash;
-		byte[] h2 = k2.hash;
-		
-		int lastToCheck = n >>> 3;
-		
-		int mmi = mismatch(h1, h2);
-		
-		int diff = (h1[lastToCheck] ^ h2[lastToCheck]) & 0xff;
-		
-		boolean lastByteDiff = (diff & (0xff80 >>> (n & 0x07))) == 0;
-		
-		return mmi == lastToCheck ? lastByteDiff : Integer.compareUnsigned(mmi, lastToCheck) > 0;
+		int bits = n + 1;
+		return ((k1.w0 ^ k2.w0) & topBits(bits)) == 0 &&
+				((k1.w1 ^ k2.w1) & topBits(bits - 64)) == 0 &&
+				((k1.w2 ^ k2.w2) & (int) (topBits(bits - 128) >>> 32)) == 0;
 	}
 	
 	private static void copyBits(Key source, Key destination, int depth)
 	{
-		if(depth < 0)
-			return;
-		
-		byte[] data = destination.hash;
+		int bits = depth + 1;
+		long m0 = topBits(bits);
+		long m1 = topBits(bits - 64);
+		int m2 = (int) (topBits(bits - 128) >>> 32);
 		
-		// copy over all complete bytes
-		for (int i = 0; i < depth / 8; i++)
-			data[i] = source.hash[i];
-		
-		int idx = depth / 8;
-		int mask = 0xFF80 >> depth % 8;
-		
-		// mask out the part we have to copy over from the last prefix byte
-		data[idx] &= ~mask;
-		// copy the bits from the last byte
-		data[idx] |= source.hash[idx] & mask;
+		destination.w0 = destination.w0 & ~m0 | source.w0 & m0;
+		destination.w1 = destination.w1 & ~m1 | source.w1 & m1;
+		destination.w2 = destination.w2 & ~m2 | source.w2 & m2;
 	}
 	
 	public int getDepth() {
@@ -147,7 +129,7 @@ public class Prefix extends Key {
 			return "all";
 		StringBuilder builder = new StringBuilder(depth+3);
 		for(int i=0;i<=depth;i++)
-			builder.append((hash[i/8] & (0x80 >> (i % 8))) != 0 ? '1' : '0');
+			builder.append(getBit(i) != 0 ? '1' : '0');
 		builder.append("...");
 		return builder.toString();
 			
@@ -188,43 +170,17 @@ public class Prefix extends Key {
 		
 		Key first = Collections.min(keys);
 		Key last = Collections.max(keys);
-
-		Prefix prefix = new Prefix();
-		byte[] newHash = prefix.hash;
-
-		outer: for(int i=0;i<SHA1_HASH_LENGTH;i++)
-		{
-			if(first.hash[i] == last.hash[i])
-			{
-				newHash[i] = first.hash[i];
-				prefix.depth += 8;
-				continue;
-			}
-			// first differing byte
-			newHash[i] = (byte)(first.hash[i] & last.hash[i]);
-			for(int j=0;j<8;j++)
-			{
-				int mask = 0x80 >> j;
-				// find leftmost differing bit and then zero out all following bits
-				if(((first.hash[i] ^ last.hash[i]) & mask) != 0)
-				{
-					newHash[i] = (byte)(newHash[i] & ~(0xFF >> j));
-					break outer;
-				}
-				
-				prefix.depth++;
-			}
-		}
-		return prefix;
+		
+		// all keys between min and max share the bits up to the first one where those two differ
+		int firstDifferingBit = first.findApproxKeyDistance(last);
+		
+		return new Prefix(first, firstDifferingBit == -1 ? KEY_BITS - 1 : firstDifferingBit - 1);
 	}
 	
 	public static void main(String[] args) {
-		Prefix p = new Prefix();
-		p.hash[0] = (byte) 0x30;
-		p.depth = 3;
+		Prefix p = new Prefix(new Key("3000000000000000000000000000000000000000"), 3);
 		
-		Key k = new Key();
-		k.hash[0] = (byte) 0x37;
+		Key k = new Key("3700000000000000000000000000000000000000");
 		
 		System.out.println(p);
 		System.out.println(p.isPrefixOf(k));
@@ -14,10 +14,6 @@ import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author Damokles
@@ -30,14 +26,16 @@ public class RPCCall {
 	private boolean					sourceWasKnownReachable;
 	private boolean					socketMismatch;
 	private List<RPCCallListener>	listeners		= new ArrayList<>(3);
-	private ScheduledFuture<?>		timeoutTimer;
 	long					sentTime		= -1;
 	long					responseTime	= -1;
 	private Key						expectedID;
 	long					expectedRTT = -1;
 	RPCState state = RPCState.UNSENT;
 	
-	ScheduledExecutorService scheduler;
+	TimeoutWheel wheel;
+	// intrusive links, owned by the wheel
+	RPCCall wheelNext;
+	long wheelDeadline;
 
 	public RPCCall (MessageBase msg) {
 		assert(msg != null);
@@ -93,10 +91,6 @@ public class RPCCall {
 	}
 	
 	public void response (MessageBase rsp) {
-		if (timeoutTimer != null) {
-			timeoutTimer.cancel(false);
-		}
-		
 		rspMsg = rsp;
 		
 		switch(rsp.getType()) {
@@ -151,11 +145,8 @@ public class RPCCall {
 		
 		stateTransition(EnumSet.of(RPCState.UNSENT), RPCState.SENT);
 		
-		scheduler = srv.getDHT().getScheduler();
-		
-		// spread out the stalls by +- 1ms to reduce lock contention
-		int smear = ThreadLocalRandom.current().nextInt(-1000, 1000);
-		timeoutTimer = scheduler.schedule(this::checkStallOrTimeout, expectedRTT*1000+smear, TimeUnit.MICROSECONDS);
+		wheel = srv.getTimeoutWheel();
+		wheel.schedule(this, expectedRTT);
 	}
 	
 	
@@ -171,7 +162,7 @@ public class RPCCall {
 			{
 				stateTransition(EnumSet.of(RPCState.SENT), RPCState.STALLED);
 				// re-schedule for failed
-				timeoutTimer = scheduler.schedule(this::checkStallOrTimeout, remaining, TimeUnit.MILLISECONDS);
+				wheel.schedule(this, remaining);
 			} else {
 				stateTransition(EnumSet.of(RPCState.SENT, RPCState.STALLED), RPCState.TIMEOUT);
 			}
@@ -183,9 +174,6 @@ public class RPCCall {
 	}
 	
 	void cancel() {
-		ScheduledFuture<?> timer = timeoutTimer;
-		if(timer != null)
-			timer.cancel(false);
 		// it would be better if we didn't have to treat this as a timeout and could just signal call termination with an internal reason
 		stateTransition(EnumSet.complementOf(EnumSet.of(RPCState.ERROR, RPCState.RESPONDED, RPCState.TIMEOUT)), RPCState.TIMEOUT);
 	}
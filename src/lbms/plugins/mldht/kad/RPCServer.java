@@ -14,6 +14,7 @@ import the8472.utils.concurrent.SerializedTaskExecutor;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.ReceiveQueue.PacketClass;
 import lbms.plugins.mldht.kad.messages.ErrorMessage;
 import lbms.plugins.mldht.kad.messages.ErrorMessage.ErrorCode;
 import lbms.plugins.mldht.kad.messages.FindNodeResponse;
@@ -25,17 +26,22 @@ import lbms.plugins.mldht.kad.messages.MessageException;
 import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.messages.PingResponse;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
-import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.ExternalAddressConsensus;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import lbms.plugins.mldht.kad.utils.TransactionTable;
 import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
+import lbms.plugins.mldht.utils.PacketBufferPool;
+import lbms.plugins.mldht.utils.PacketBufferPool.OverflowPolicy;
+import lbms.plugins.mldht.utils.PacketBufferPool.Packet;
 import lbms.plugins.mldht.utils.Selectable;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
@@ -46,20 +52,17 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Collection;
 import java.util.Formatter;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -68,7 +71,7 @@ import java.util.stream.Stream;
  */
 public class RPCServer {
 	
-	private static final int MTID_LENGTH = 6;
+	private static final int MTID_LENGTH = TransactionTable.MTID_LENGTH;
 	
 	public enum State {
 		INITIAL,
@@ -81,31 +84,31 @@ public class RPCServer {
 	private InetAddress								addr;
 	private DHT										dh_table;
 	private RPCServerManager						manager;
-	private ConcurrentMap<ByteWrapper, RPCCall>		calls;
+	private TransactionTable<RPCCall>				calls;
 	private Queue<RPCCall>							call_queue;
 	private Queue<EnqueuedSend>						pipeline;
-	private volatile int							numReceived;
+	private final AtomicInteger						numReceived = new AtomicInteger();
 	private volatile int							numSent;
 	private int										port;
 	private Instant									startTime;
 	private RPCStats								stats;
 	// keeps track of RTT histogram for nodes not in our routing table
 	private ResponseTimeoutFilter					timeoutFilter;
+	private TimeoutWheel							timeoutWheel = new TimeoutWheel();
 	private Key										derivedId;
-	private InetSocketAddress						consensusExternalAddress;
+	private ExternalAddressConsensus				externalAddressConsensus = new ExternalAddressConsensus(64, 20, this::consensusAddressChanged);
 	private SpamThrottle 							throttle = new SpamThrottle();
 	private SpamThrottle 							requestThrottle;
 	private ExponentialWeightendMovingAverage		unverifiedLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
 	private ExponentialWeightendMovingAverage		verifiedEntryLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
+	private final Function<byte[], Optional<Method>> transactionMethodMapper = mtid -> Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
 	
-	private LinkedHashMap<InetAddress, InetSocketAddress> originPairs  = new LinkedHashMap<InetAddress, InetSocketAddress>(64, 0.75f, true) {
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<InetAddress,InetSocketAddress> eldest) {
-			if(this.size() > 64)
-				return true;
-			return false;
-		};
-	};
+	// inbound packets are copied into recycled slots and released once handlePacket returns
+	private PacketBufferPool						receivePool = new PacketBufferPool(DHTConstants.RECEIVE_POOL_SLOTS, DHTConstants.RECEIVE_POOL_SLOT_SIZE, OverflowPolicy.ALLOCATE, p -> handlePacket(p.buffer(), p.source()));
+	
+	private final ReceiveQueue receiveQueue;
+	// one of these is submitted per accepted packet, but each runs whatever packet has the highest priority at that time
+	private final Runnable receiveDrain = this::processNextPacket;
 	
 	
 	private volatile boolean isReachable = false;
@@ -113,21 +116,35 @@ public class RPCServer {
 	private long	timeOfLastReceiveCountChange = 0;
 	
 
+	// primary socket, handles all writes
 	SocketHandler sel;
-
+	// sel plus any additional SO_REUSEPORT sockets bound to the same address, each with their own selector thread
+	SocketHandler[] shards;
+	
 	public RPCServer (RPCServerManager manager, InetAddress addr, int port, RPCStats stats) {
+		this(manager, addr, port, stats, 1);
+	}
+
+	public RPCServer (RPCServerManager manager, InetAddress addr, int port, RPCStats stats, int receiveShards) {
 		this.port = port;
 		this.dh_table = manager.dht;
 		timeoutFilter = new ResponseTimeoutFilter();
 		pipeline = new ConcurrentLinkedQueue<>();
-		calls = new ConcurrentHashMap<>(DHTConstants.MAX_ACTIVE_CALLS);
+		calls = new TransactionTable<>(DHTConstants.MAX_ACTIVE_CALLS);
+		receiveQueue = new ReceiveQueue(DHTConstants.RECEIVE_QUEUE_CAPACITY, dh_table.getConfig().getReceiveLatencyBudget());
 		call_queue = new ConcurrentLinkedQueue<>();
 		this.stats = stats;
 		this.addr = addr;
 		this.manager = manager;
 		// reserve an ID
 		derivedId = dh_table.getNode().registerId();
-		sel = new SocketHandler();
+		int numShards = SO_REUSEPORT != null ? Math.max(receiveShards, 1) : 1;
+		if(numShards < receiveShards)
+			DHT.logInfo("SO_REUSEPORT not available on this JVM, using a single socket for " + addr);
+		shards = new SocketHandler[numShards];
+		for(int i=0;i<numShards;i++)
+			shards[i] = new SocketHandler(i);
+		sel = shards[0];
 	}
 	
 	public DHT getDHT()
@@ -183,8 +200,17 @@ public class RPCServer {
 		startTime = Instant.now();
 		state = State.RUNNING;
 		DHT.logInfo("Starting RPC Server " + addr + " " + derivedId.toString(false));
+		timeoutWheel.start(dh_table.getScheduler());
 		sel.start();
 		
+		// additional sockets can only share the port if the primary one enabled it too
+		if(sel.reusePort) {
+			for(int i=1;i<shards.length;i++)
+				shards[i].start();
+		} else if(shards.length > 1) {
+			DHT.logInfo("SO_REUSEPORT not supported for " + addr + ", only using the primary socket");
+		}
+		
 	}
 	
 	public State getState() {
@@ -196,16 +222,19 @@ public class RPCServer {
 			return;
 		state = State.STOPPED;
 		
-		try
-		{
-			sel.close();
-		} catch (IOException e)
-		{
-			DHT.log(e, LogLevel.Error);
+		for(SocketHandler shard : shards) {
+			try
+			{
+				shard.close();
+			} catch (IOException e)
+			{
+				DHT.log(e, LogLevel.Error);
+			}
 		}
+		timeoutWheel.stop();
 		dh_table.getNode().removeId(derivedId);
 		manager.serverRemoved(this);
-		Stream.of(calls.values().stream(), call_queue.stream(), pipeline.stream().map(es -> es.associatedCall).filter(Objects::nonNull)).flatMap(s -> s).forEach(r -> {
+		Stream.of(calls.values(), call_queue.stream(), pipeline.stream().map(es -> es.associatedCall).filter(Objects::nonNull)).flatMap(s -> s).forEach(r -> {
 			r.cancel();
 		});
 		pipeline.clear();
@@ -238,8 +267,6 @@ public class RPCServer {
 		
 		int capacity = DHTConstants.MAX_ACTIVE_CALLS  - calls.size();
 		
-		requestThrottle.decay();
-		
 		while(capacity > 0) {
 			
 			RPCCall c = call_queue.poll();
@@ -270,12 +297,12 @@ public class RPCServer {
 			byte[] mtid = new byte[MTID_LENGTH];
 			ThreadLocalUtils.getThreadLocalRandom().nextBytes(mtid);
 
-			if(calls.putIfAbsent(new ByteWrapper(mtid),c) == null)
+			if(calls.putIfAbsent(TransactionTable.pack(mtid),c))
 			{
 				capacity--;
 				dispatchCall(c, mtid);
 			} else {
-				// this is very unlikely to happen
+				// duplicate ID or full bucket, retry with a new ID
 				call_queue.add(c);
 			}
 		}
@@ -288,13 +315,12 @@ public class RPCServer {
 	private final RPCCallListener rpcListener = new RPCCallListener() {
 		
 		public void onTimeout(RPCCall c) {
-			ByteWrapper w = new ByteWrapper(c.getRequest().getMTID());
 			stats.addTimeoutMessageToCount(c.getRequest());
 			if(c.knownReachableAtCreationTime())
 				verifiedEntryLossrate.updateAverage(1.0);
 			else
 				unverifiedLossrate.updateAverage(1.0);
-			calls.remove(w, c);
+			calls.remove(TransactionTable.pack(c.getRequest().getMTID()), c);
 			dh_table.timeout(c);
 			drainTrigger.run();
 		}
@@ -322,7 +348,7 @@ public class RPCServer {
 	 * @see lbms.plugins.mldht.kad.RPCServerBase#findCall(byte)
 	 */
 	public RPCCall findCall (byte[] mtid) {
-		return calls.get(new ByteWrapper(mtid));
+		return calls.get(TransactionTable.pack(mtid));
 	}
 
 	/// Get the number of active calls
@@ -337,7 +363,7 @@ public class RPCServer {
 	 * @return the numReceived
 	 */
 	public int getNumReceived () {
-		return numReceived;
+		return numReceived.get();
 	}
 
 	/**
@@ -356,11 +382,12 @@ public class RPCServer {
 	
 	public void checkReachability(long now) {
 		// don't do pings too often if we're not receiving anything (connection might be dead)
-		if(numReceived != numReceivesAtLastCheck)
+		int received = numReceived.get();
+		if(received != numReceivesAtLastCheck)
 		{
 			isReachable = true;
 			timeOfLastReceiveCountChange = now;
-			numReceivesAtLastCheck = numReceived;
+			numReceivesAtLastCheck = received;
 		} else if(now - timeOfLastReceiveCountChange > DHTConstants.REACHABILITY_TIMEOUT)
 		{
 			isReachable = false;
@@ -372,19 +399,34 @@ public class RPCServer {
 		return isReachable;
 	}
 	
-	private void handlePacket (ByteBuffer p, SocketAddress soa) {
-		InetSocketAddress source = (InetSocketAddress) soa;
-		int rawLength = p.remaining();
-		
-		// ignore port 0, can't respond to them anyway and responses to requests from port 0 will be useless too
-		if(source.getPort() == 0)
-			return;
-
-
-
-		
+	public PacketBufferPool getReceivePool() {
+		return receivePool;
+	}
+	
+	private void processNextPacket() {
+		Packet p = receiveQueue.poll();
+		if(p != null)
+			p.run();
+	}
+	
+	PacketClass classify(ByteBuffer buf, InetSocketAddress source) {
+		byte type = ReceiveQueue.peekType(buf);
+		switch(type) {
+			case 'r':
+			case 'e':
+				// only trust the type if it matches one of our outstanding calls
+				if(calls.get(ReceiveQueue.peekMTID(buf)) == null)
+					return PacketClass.OTHER;
+				return type == 'r' ? PacketClass.RESPONSE : PacketClass.ERROR;
+			case 'q':
+				return dh_table.getNode().isRoutingTableAddress(source.getAddress()) ? PacketClass.ROUTING_TABLE_REQUEST : PacketClass.OTHER;
+			default:
+				return PacketClass.OTHER;
+		}
+	}
+	
+	private MessageBase decodeGeneric(ByteBuffer p, InetSocketAddress source, int rawLength) {
 		Map<String, Object> bedata = null;
-		MessageBase msg = null;
 		
 		try {
 			bedata = ThreadLocalUtils.getDecoder().decode(p);
@@ -402,22 +444,20 @@ public class RPCServer {
 			MessageBase err = new ErrorMessage(new byte[] {0,0,0,0}, ErrorCode.ProtocolError.code,"invalid bencoding: "+e.getMessage());
 			err.setDestination(source);
 			sendMessage(err);
-			return;
+			return null;
 		} catch(Exception e) {
 			DHT.log(e, LogLevel.Error);
 			p.rewind();
 			DHT.logError("unexpected error while bdecoding message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
-			return;
+			return null;
 		}
 		
 		try {
-			MessageDecoder dec = new MessageDecoder((byte[] mtid) -> {
-				return Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
-			}, dh_table.getType());
+			MessageDecoder dec = new MessageDecoder(transactionMethodMapper, dh_table.getType());
 			
 			p.rewind();
 			dec.toDecode(p, bedata);
-			msg = dec.parseMessage();
+			return dec.parseMessage();
 		} catch(MessageException e)
 		{
 			byte[] mtid = typedGet(bedata, MessageBase.TRANSACTION_KEY, byte[].class).orElse(new byte[MTID_LENGTH]);
@@ -427,11 +467,34 @@ public class RPCServer {
 			err.setDestination(source);
 			err.setMethod(m);
 			sendMessage(err);
-			return;
+			return null;
 		} catch(IOException e) {
 			DHT.log(e, LogLevel.Error);
 		}
 		
+		return null;
+	}
+	
+	private void handlePacket (ByteBuffer p, SocketAddress soa) {
+		InetSocketAddress source = (InetSocketAddress) soa;
+		int rawLength = p.remaining();
+		
+		// ignore port 0, can't respond to them anyway and responses to requests from port 0 will be useless too
+		if(source.getPort() == 0)
+			return;
+
+
+
+		
+		MessageBase msg = null;
+		
+		// common messages are decoded straight from the buffer, everything else and verbose logging goes through the generic map
+		if(!DHT.isLogLevelEnabled(LogLevel.Verbose))
+			msg = ThreadLocalUtils.getMessageDecoder().decode(p, transactionMethodMapper, dh_table.getType());
+		
+		if(msg == null)
+			msg = decodeGeneric(p, source, rawLength);
+		
 		if(msg == null)
 			return;
 		
@@ -460,14 +523,15 @@ public class RPCServer {
 			
 		
 		// check if this is a response to an outstanding request
-		RPCCall c = calls.get(new ByteWrapper(msg.getMTID()));
+		long key = TransactionTable.pack(msg.getMTID());
+		RPCCall c = calls.get(key);
 		
 		// message matches transaction ID and origin == destination
 		if(c != null) {
 			// we only check the IP address here. the routing table applies more strict checks to also verify a stable port
 			if(c.getRequest().getDestination().getAddress().equals(msg.getOrigin().getAddress())) {
 				// remove call first in case of exception
-				if(calls.remove(new ByteWrapper(msg.getMTID()),c)) {
+				if(calls.remove(key,c)) {
 					msg.setAssociatedCall(c);
 					c.response(msg);
 
@@ -533,21 +597,25 @@ public class RPCServer {
 	private void updatePublicIPConsensus(InetAddress source, InetSocketAddress addr) {
 		if(!AddressUtils.isGlobalUnicast(addr.getAddress()))
 			return;
-		synchronized (originPairs) {
-			originPairs.put(source, addr);
-			if(originPairs.size() > 20) {
-				originPairs.values().stream().collect(Collectors.groupingBy(o -> o, Collectors.counting())).entrySet().stream().max((a,b) -> (int)(a.getValue() - b.getValue())).ifPresent(e -> setConsensusAddress(e.getKey()));
-			}
-		}
-				
+		externalAddressConsensus.vote(source, addr);
 	}
 	
-	private void setConsensusAddress(InetSocketAddress addr) {
-		consensusExternalAddress = addr;
+	private void consensusAddressChanged(InetSocketAddress addr) {
+		DHT.logInfo("consensus external address for " + getBindAddress() + " changed to " + AddressUtils.toString(addr));
+		consensusListeners.forEach(c -> c.accept(addr));
+	}
+	
+	Collection<Consumer<InetSocketAddress>> consensusListeners = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Listeners are invoked on the thread that processed the response which tipped the vote and must not block.
+	 */
+	public void onConsensusAddressChange(Consumer<InetSocketAddress> listener) {
+		consensusListeners.add(listener);
 	}
 	
 	public InetSocketAddress getConsensusExternalAddress() {
-		return consensusExternalAddress;
+		return externalAddressConsensus.get();
 	}
 	
 	public Optional<InetAddress> getCombinedPublicAddress() {
@@ -597,6 +665,10 @@ public class RPCServer {
 	public ResponseTimeoutFilter getTimeoutFilter() {
 		return timeoutFilter;
 	}
+	
+	TimeoutWheel getTimeoutWheel() {
+		return timeoutWheel;
+	}
 
 	/*
 	private void send (InetSocketAddress addr, byte[] msg) throws IOException {
@@ -625,9 +697,12 @@ public class RPCServer {
 	public String toString() {
 		Formatter f = new Formatter();
 		
-		f.format("%s\tbind: %s consensus: %s%n", getDerivedID(), getBindAddress(), consensusExternalAddress);
+		f.format("%s\tbind: %s consensus: %s sockets: %d%n", getDerivedID(), getBindAddress(), getConsensusExternalAddress(), shards.length);
 		f.format("rx: %d tx: %d active: %d baseRTT: %d loss: %f  loss (verified): %f uptime: %s%n",
-				numReceived, numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
+				numReceived.get(), numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
+		f.format("rx pool: %s%n", receivePool);
+		f.format("rx queue: %s%n", receiveQueue);
+		f.format("timeout wheel: %s%n", timeoutWheel);
 		f.format("RTT stats (%dsamples) %s", timeoutFilter.getSampleCount(), timeoutFilter.getCurrentStats());
 
 		return f.toString();
@@ -640,7 +715,20 @@ public class RPCServer {
 		return Duration.between(start, Instant.now());
 	}
 	
-	static final ThreadLocal<ByteBuffer> writeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1500));
+	static final SocketOption<Boolean> SO_REUSEPORT;
+	
+	static {
+		SocketOption<Boolean> opt = null;
+		try {
+			@SuppressWarnings("unchecked")
+			SocketOption<Boolean> reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			opt = reusePort;
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			// no java9
+		}
+		SO_REUSEPORT = opt;
+	}
+	
 	static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DHTConstants.RECEIVE_BUFFER_SIZE));
 	
 	class SocketHandler implements Selectable {
@@ -655,9 +743,17 @@ public class RPCServer {
 		
 		private final AtomicInteger writeState = new AtomicInteger(NOT_INITIALIZED);
 		NIOConnectionManager connectionManager;
+		final int shardIndex;
+		boolean reusePort;
 		
-		public SocketHandler() {
-
+		// encoded sends awaiting a flush, only touched while holding the write claim
+		private EnqueuedSend[] batch;
+		private ByteBuffer[] batchSlots;
+		private int batchStart;
+		private int batchEnd;
+		
+		public SocketHandler(int shardIndex) {
+			this.shardIndex = shardIndex;
 		}
 		
 		void start() {
@@ -673,8 +769,12 @@ public class RPCServer {
 				channel.configureBlocking(false);
 				channel.setOption(StandardSocketOptions.SO_RCVBUF, 2*1024*1024);
 				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				if(shards.length > 1 && channel.supportedOptions().contains(SO_REUSEPORT)) {
+					channel.setOption(SO_REUSEPORT, true);
+					reusePort = true;
+				}
 				channel.bind(new InetSocketAddress(addr, port));
-				connectionManager = dh_table.getConnectionManager();
+				connectionManager = dh_table.getConnectionManager(shardIndex);
 				connectionManager.register(this);
 				if(!writeState.compareAndSet(INITIALIZING, WRITE_STATE_IDLE)) {
 					writeState.set(INITIALIZING);
@@ -706,8 +806,6 @@ public class RPCServer {
 		
 		void readEvent() throws IOException {
 			
-			throttle.decay();
-			
 			ByteBuffer readBuffer = RPCServer.readBuffer.get();
 			
 			DHTtype type = dh_table.getType();
@@ -731,12 +829,19 @@ public class RPCServer {
 				
 				// copy from the read buffer since we hand off to another thread
 				readBuffer.flip();
-				ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
-				buf.flip();
+				int length = readBuffer.limit();
+				Packet pkt = receivePool.acquire(readBuffer, soa);
+				if(pkt == null)
+					continue;
 				
-				dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
-				numReceived++;
-				stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+				if(!receiveQueue.offer(pkt, classify(pkt.buffer(), soa))) {
+					pkt.release();
+					continue;
+				}
+				
+				dh_table.getScheduler().execute(receiveDrain);
+				numReceived.incrementAndGet();
+				stats.addReceivedBytes(length + dh_table.getType().HEADER_LENGTH);
 			}
 		}
 		
@@ -752,28 +857,86 @@ public class RPCServer {
 				
 				while(true)
 				{
-					EnqueuedSend es = pipeline.poll();
-					if(es == null)
+					// leftovers from a flush that hit a full socket buffer go out first to preserve the order
+					if(batchStart == batchEnd && !fillBatch())
 						break;
+					if(!flushBatch())
+						return;
+				}
+				
+				// release claim on the socket
+				writeState.compareAndSet(WRITE_STATE_WRITING, WRITE_STATE_IDLE);
+				
+				// check if we might have to pick it up again due to races
+				// schedule async to avoid infinite stacks
+				if(pipeline.peek() != null)
+					dh_table.getScheduler().execute(this::writeEvent);
+
+			
+			}
+			
+	
+		}
+		
+		/**
+		 * encodes queued messages back to back into the send region
+		 */
+		private boolean fillBatch() {
+			if(batch == null) {
+				int size = Math.max(1, dh_table.getConfig().getSendBatchSize());
+				int slotSize = dh_table.getType().MAX_PACKET_SIZE;
+				ByteBuffer region = ByteBuffer.allocateDirect(size * slotSize);
+				batch = new EnqueuedSend[size];
+				batchSlots = new ByteBuffer[size];
+				for(int i=0;i<size;i++) {
+					region.limit((i + 1) * slotSize).position(i * slotSize);
+					batchSlots[i] = region.slice();
+				}
+			}
+			
+			batchStart = batchEnd = 0;
+			
+			while(batchEnd < batch.length) {
+				EnqueuedSend es = pipeline.poll();
+				if(es == null)
+					break;
+				try {
+					es.encodeTo(batchSlots[batchEnd]);
+					batch[batchEnd++] = es;
+				} catch (IOException e) {
+					DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
+					if(es.associatedCall != null)
+						es.associatedCall.sendFailed();
+				}
+			}
+			
+			return batchEnd > 0;
+		}
+		
+		/**
+		 * @return false if the socket did not accept all packets, the remainder stays in the batch and the handler waits for write readiness
+		 */
+		private boolean flushBatch() {
+			int flushed = 0;
+			int sendCalls = 0;
+			
+			try {
+				while(batchStart < batchEnd) {
+					EnqueuedSend es = batch[batchStart];
+					ByteBuffer buf = batchSlots[batchStart];
+					
 					try
 					{
-						
-						
-						ByteBuffer buf = writeBuffer.get();
-								
-						es.encodeTo(buf);
-						
 						int bytesSent = channel.send(buf, es.toSend.getDestination());
+						sendCalls++;
 						
 						if(bytesSent == 0)
 						{
-							pipeline.add(es);
-
 							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
 							// wakeup -> updates selections -> will wait for write OP
 							connectionManager.interestOpsChanged(this);
 							
-							return;
+							return false;
 						}
 						
 						if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
@@ -791,19 +954,21 @@ public class RPCServer {
 						stats.addSentBytes(bytesSent + dh_table.getType().HEADER_LENGTH);
 						if(DHT.isLogLevelEnabled(LogLevel.Debug))
 							DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +bytesSent);
+						
+						flushed++;
+						numSent++;
 					} catch (IOException e)
 					{
 						// async close
 						if(!channel.isOpen())
-							return;
+							return false;
 						
 						// BSD variants may throw an exception (ENOBUFS) instead of just signaling 0 bytes sent when network queues are full -> back off just like we would in the 0 bytes case.
-						if(e.getMessage().equals("No buffer space available")) {
-							pipeline.add(es);
+						if("No buffer space available".equals(e.getMessage())) {
 							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
 							connectionManager.interestOpsChanged(this);
 
-							return;
+							return false;
 						}
 
 						DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
@@ -811,24 +976,16 @@ public class RPCServer {
 						{ // need to notify listeners
 							es.associatedCall.sendFailed();
 						}
-						break;
 					}
 					
-					numSent++;
+					batch[batchStart++] = null;
 				}
-				
-				// release claim on the socket
-				writeState.compareAndSet(WRITE_STATE_WRITING, WRITE_STATE_IDLE);
-				
-				// check if we might have to pick it up again due to races
-				// schedule async to avoid infinite stacks
-				if(pipeline.peek() != null)
-					dh_table.getScheduler().execute(this::writeEvent);
-
-			
+			} finally {
+				if(sendCalls > 0)
+					stats.addSendBatch(flushed, sendCalls);
 			}
 			
-	
+			return true;
 		}
 		
 		@Override
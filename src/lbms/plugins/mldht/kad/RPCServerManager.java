@@ -192,7 +192,7 @@ public class RPCServerManager {
 	}
 	
 	void newServer(InetAddress addr) {
-		RPCServer srv = new RPCServer(this,addr,dht.config.getListeningPort(), dht.serverStats);
+		RPCServer srv = new RPCServer(this,addr,dht.config.getListeningPort(), dht.serverStats, dht.config.getReceiveShards());
 		if(interfacesInUse.putIfAbsent(addr, srv) == null)  {
 			srv.setOutgoingThrottle(outgoingThrottle);
 			onServerRegistration.forEach(c -> c.accept(srv));
@@ -31,6 +31,11 @@ public class RPCStats {
 	private long[][]	receivedMessages;
 	private long[]	timeoutMessages;
 
+	private long	sendBatches;
+	private long	batchedMessages;
+	private long	sendCalls;
+	private int		maxSendBatch;
+
 	protected RPCStats () {
 		sentMessages = new long[Method.values().length][Type.values().length];
 		receivedMessages = new long[Method.values().length][Type.values().length];
@@ -64,6 +69,9 @@ public class RPCStats {
 			f.format("%18s %19d | %19d %19d %n", m, received, sent, errors);
 		}
 		
+		f.format("%n### send batching%n");
+		f.format("batches: %d messages: %d send calls: %d avg: %.2f max: %d %n", sendBatches, batchedMessages, sendCalls, sendBatches == 0 ? 0.0 : batchedMessages * 1.0 / sendBatches, maxSendBatch);
+		
 		return b.toString();
 	}
 
@@ -176,4 +184,27 @@ public class RPCStats {
 	protected void addTimeoutMessageToCount (MessageBase msg) {
 		timeoutMessages[msg.getMethod().ordinal()]++;
 	}
+
+	/**
+	 * @param messages number of messages flushed from one send batch
+	 * @param calls number of socket send calls it took, including ones that did not accept the packet
+	 */
+	protected void addSendBatch (int messages, int calls) {
+		sendBatches++;
+		batchedMessages += messages;
+		sendCalls += calls;
+		maxSendBatch = Math.max(maxSendBatch, messages);
+	}
+
+	public long getSendBatchCount () {
+		return sendBatches;
+	}
+
+	public long getBatchedMessageCount () {
+		return batchedMessages;
+	}
+
+	public long getSendCallCount () {
+		return sendCalls;
+	}
 }
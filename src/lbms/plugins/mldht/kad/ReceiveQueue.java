@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import lbms.plugins.mldht.kad.utils.TransactionTable;
+import lbms.plugins.mldht.utils.PacketBufferPool.Packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Prioritizes received packets between the selector thread and the scheduler.
+ *
+ * Every accepted packet gets a task submitted to the scheduler, but the task picks the highest priority packet available
+ * at the time it runs instead of the one it was submitted for. So when the executor backs up, responses to our own calls
+ * overtake the backlog of inbound requests instead of timing out behind them.
+ *
+ * Packets of the lowest class that exceeded the latency budget are shed instead of being processed, the remote side has most likely given up on them anyway.
+ */
+class ReceiveQueue {
+
+	enum PacketClass {
+		// in order of priority
+		RESPONSE,
+		ERROR,
+		ROUTING_TABLE_REQUEST,
+		OTHER;
+	}
+
+	private static final PacketClass[] CLASSES = PacketClass.values();
+	private static final byte[] TYPE_PATTERN = "1:y1:".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] MTID_PATTERN = ("1:t" + TransactionTable.MTID_LENGTH + ":").getBytes(StandardCharsets.ISO_8859_1);
+
+	private final ConcurrentLinkedQueue<Packet>[] queues;
+	private final AtomicInteger[] sizes = new AtomicInteger[CLASSES.length];
+	private final LongAdder[] drops = new LongAdder[CLASSES.length];
+	private final int capacityPerClass;
+	private final long budgetNanos;
+
+	/**
+	 * @param latencyBudgetMillis packets of the lowest class that waited longer than this are dropped, <= 0 disables shedding
+	 */
+	@SuppressWarnings("unchecked")
+	ReceiveQueue(int capacityPerClass, long latencyBudgetMillis) {
+		this.capacityPerClass = capacityPerClass;
+		this.budgetNanos = latencyBudgetMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(latencyBudgetMillis) : Long.MAX_VALUE;
+		queues = new ConcurrentLinkedQueue[CLASSES.length];
+		for(int i=0;i<CLASSES.length;i++) {
+			queues[i] = new ConcurrentLinkedQueue<>();
+			sizes[i] = new AtomicInteger();
+			drops[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Cheap, best-effort peek at the message type without decoding. Relies on the canonical key order which puts y last,
+	 * falls back to a scan for anything else.
+	 *
+	 * @return q, r, e or 0 if nothing was found
+	 */
+	static byte peekType(ByteBuffer buf) {
+		int end = buf.limit();
+		int tail = end - TYPE_PATTERN.length - 2;
+		if(tail >= buf.position() && matchesAt(buf, tail, TYPE_PATTERN))
+			return buf.get(end - 2);
+		int idx = indexOf(buf, TYPE_PATTERN, buf.position(), end - TYPE_PATTERN.length - 1);
+		return idx >= 0 ? buf.get(idx + TYPE_PATTERN.length) : 0;
+	}
+
+	/**
+	 * The root transaction ID is the last t key in canonically ordered messages, only followed by v and y.
+	 *
+	 * @return the packed transaction ID as used by {@link TransactionTable} or -1
+	 */
+	static long peekMTID(ByteBuffer buf) {
+		for(int i=buf.limit() - MTID_PATTERN.length - TransactionTable.MTID_LENGTH;i>=buf.position();i--) {
+			if(matchesAt(buf, i, MTID_PATTERN))
+				return TransactionTable.pack(buf, i + MTID_PATTERN.length);
+		}
+		return -1;
+	}
+
+	private static boolean matchesAt(ByteBuffer buf, int offset, byte[] pattern) {
+		for(int i=0;i<pattern.length;i++) {
+			if(buf.get(offset + i) != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(ByteBuffer buf, byte[] pattern, int from, int to) {
+		for(int i=from;i<=to;i++) {
+			if(matchesAt(buf, i, pattern))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return false if the packet was dropped because its class is full. the caller remains responsible for releasing it in that case
+	 */
+	boolean offer(Packet p, PacketClass cls) {
+		int i = cls.ordinal();
+		if(sizes[i].incrementAndGet() > capacityPerClass) {
+			sizes[i].decrementAndGet();
+			drops[i].increment();
+			return false;
+		}
+		queues[i].add(p);
+		return true;
+	}
+
+	/**
+	 * @return the highest priority packet that is still within its budget or null
+	 */
+	Packet poll() {
+		for(int i=0;i<CLASSES.length;i++) {
+			Packet p;
+			while((p = queues[i].poll()) != null) {
+				sizes[i].decrementAndGet();
+				if(i == CLASSES.length - 1 && System.nanoTime() - p.receivedNanos() > budgetNanos) {
+					drops[i].increment();
+					p.release();
+					continue;
+				}
+				return p;
+			}
+		}
+		return null;
+	}
+
+	int size() {
+		return Arrays.stream(sizes).mapToInt(AtomicInteger::get).sum();
+	}
+
+	long drops(PacketClass cls) {
+		return drops[cls.ordinal()].sum();
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.stream(CLASSES).map(c -> c.name() + ": " + sizes[c.ordinal()].get() + " queued " + drops[c.ordinal()].sum() + " dropped").collect(Collectors.joining(", "));
+	}
+
+}
@@ -5,66 +5,176 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
 
+/**
+ * Per-address hit counters in fixed memory, implemented as a count-min sketch with conservative updates.
+ *
+ * Each cell packs the decay tick at which it was last written (upper 32 bits) and its counter (lower 32 bits).
+ * Counters decay lazily by {@link #PER_SECOND} whenever a cell is touched, so there is no periodic sweep and the
+ * cost per operation is independent of the number of addresses seen.
+ *
+ * Hash collisions can only overestimate counters, i.e. an unlucky address may get throttled early under a flood of
+ * spoofed sources. The row hashes are seeded per instance so collisions can't be precomputed.
+ */
 public class SpamThrottle {
-	
-	private Map<InetAddress, Integer> hitcounter = new ConcurrentHashMap<>();
-	
-	private AtomicLong lastDecayTime = new AtomicLong(System.currentTimeMillis());
-	
+
 	private static final int BURST = 10;
 	private static final int PER_SECOND = 2;
-	
+
+	private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / PER_SECOND;
+	private static final int DEPTH = 4;
+	private static final int DEFAULT_WIDTH = 4096;
+
+	private final AtomicLongArray cells;
+	private final long[] seeds = new long[DEPTH];
+	private final int mask;
+	private final LongSupplier clock;
+	private final long base;
+
+	public SpamThrottle() {
+		this(DEFAULT_WIDTH, System::nanoTime);
+	}
+
+	/**
+	 * @param width counters per row, rounded up to a power of two
+	 */
+	SpamThrottle(int width, LongSupplier nanoClock) {
+		width = Integer.highestOneBit(Math.max(width, 2) * 2 - 1);
+		mask = width - 1;
+		cells = new AtomicLongArray(width * DEPTH);
+		for(int i=0;i<DEPTH;i++)
+			seeds[i] = ThreadLocalRandom.current().nextLong();
+		clock = nanoClock;
+		base = nanoClock.getAsLong();
+	}
+
 	public boolean addAndTest(InetAddress addr) {
 		int updated = saturatingAdd(addr);
-		
+
 		if(updated >= BURST)
 			return true;
-		
+
 		return false;
 	}
-	
+
 	public void remove(InetAddress addr) {
-		hitcounter.remove(addr);
+		long hash = hash(addr);
+		int now = tick();
+		int estimate = estimate(hash, now);
+		if(estimate == 0)
+			return;
+		for(int i=0;i<DEPTH;i++)
+			subtract(index(hash, i), now, estimate);
 	}
-	
+
 	public boolean test(InetAddress addr) {
-		return hitcounter.getOrDefault(addr, 0) >= BURST;
+		return estimate(hash(addr), tick()) >= BURST;
 	}
-	
+
 	public int calculateDelayAndAdd(InetAddress addr) {
-		int counter = hitcounter.compute(addr, (key, old) -> old == null ? 1 : old + 1);
+		int counter = add(addr, Integer.MAX_VALUE);
 		int diff = counter - BURST;
 		return Math.max(diff, 0)*1000/PER_SECOND;
 	}
-	
+
 	public void saturatingDec(InetAddress addr) {
-		hitcounter.compute(addr, (key, old) -> old == null || old == 1 ? null : old - 1);
+		long hash = hash(addr);
+		int now = tick();
+		for(int i=0;i<DEPTH;i++)
+			subtract(index(hash, i), now, 1);
 	}
-	
+
 	public int saturatingAdd(InetAddress addr) {
-		return hitcounter.compute(addr, (key, old) -> old == null ? 1 : Math.min(old + 1, BURST));
-	}
-	
-	public void decay() {
-		long now = System.currentTimeMillis();
-		long last = lastDecayTime.get();
-		long deltaT = TimeUnit.MILLISECONDS.toSeconds(now - last);
-		if(deltaT < 1)
-			return;
-		if(!lastDecayTime.compareAndSet(last, last + deltaT * 1000))
-			return;
-		
-		int deltaC = (int) (deltaT * PER_SECOND);
-		
-		// minor optimization: delete first, then replace only what's left
-		hitcounter.entrySet().removeIf(entry -> entry.getValue() <= deltaC);
-		hitcounter.replaceAll((k, v) -> v - deltaC);
-		
+		return add(addr, BURST);
+	}
+
+	private int add(InetAddress addr, int cap) {
+		long hash = hash(addr);
+		int now = tick();
+		int estimate = estimate(hash, now);
+		int target = estimate < cap ? estimate + 1 : cap;
+
+		// conservative update: only raise cells that are below the new estimate
+		for(int i=0;i<DEPTH;i++) {
+			int idx = index(hash, i);
+			while(true) {
+				long cell = cells.get(idx);
+				if(decayed(cell, now) >= target)
+					break;
+				if(cells.compareAndSet(idx, cell, pack(now, target)))
+					break;
+			}
+		}
+
+		return target;
+	}
+
+	private void subtract(int idx, int now, int amount) {
+		while(true) {
+			long cell = cells.get(idx);
+			int current = decayed(cell, now);
+			if(current == 0)
+				return;
+			if(cells.compareAndSet(idx, cell, pack(now, Math.max(current - amount, 0))))
+				return;
+		}
+	}
+
+	private int estimate(long hash, int now) {
+		int min = Integer.MAX_VALUE;
+		for(int i=0;i<DEPTH;i++)
+			min = Math.min(min, decayed(cells.get(index(hash, i)), now));
+		return min;
+	}
+
+	private int tick() {
+		return (int) ((clock.getAsLong() - base) / TICK_NANOS);
+	}
+
+	private static long pack(int tick, int counter) {
+		return ((long) tick << 32) | (counter & 0xffffffffL);
+	}
+
+	private static int decayed(long cell, int now) {
+		int counter = (int) cell;
+		if(counter == 0)
+			return 0;
+		long elapsed = now - (int) (cell >>> 32);
+		return (int) Math.max(counter - elapsed, 0);
+	}
+
+	private int index(long hash, int row) {
+		return row * (mask + 1) + (int) (mix(hash ^ seeds[row]) & mask);
+	}
+
+	private static long hash(InetAddress addr) {
+		// v4 hashcode is the address itself, avoid cloning the array
+		if(addr instanceof Inet4Address)
+			return addr.hashCode();
+		long h = 0;
+		byte[] raw = addr.getAddress();
+		for(int i=0;i<raw.length;i+=8) {
+			long chunk = 0;
+			for(int j=i;j<Math.min(i + 8, raw.length);j++)
+				chunk = chunk << 8 | (raw[j] & 0xff);
+			h = mix(h ^ chunk);
+		}
+		return h;
+	}
+
+	// murmur3 finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
 	}
 }
@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Node.RoutingTable;
+import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
+
+/**
+ * Journaled persistence of the routing table.
+ *
+ * Main list inserts and removals are appended to a journal as they happen, refreshes of timestamps and RTTs are coalesced
+ * per entry until the next flush. Once the journal outgrows the last snapshot it is compacted into a new binary snapshot of
+ * all buckets. Loading restores the snapshot's buckets directly, without re-splitting, and replays the journal on top.
+ *
+ * The journal header names the snapshot generation it applies to, a journal left over from an older generation is ignored.
+ * Records are framed with their length and a CRC32, a torn tail after a crash ends the replay. Records may overlap with
+ * the snapshot, replaying them is idempotent.
+ */
+final class TableJournal {
+
+	static final int SNAPSHOT_MAGIC = 0x4d4c5253;
+	static final int JOURNAL_MAGIC = 0x4d4c524a;
+	static final int FORMAT_VERSION = 1;
+
+	static final byte OP_ADD = 1;
+	static final byte OP_REMOVE = 2;
+	static final byte OP_UPDATE = 3;
+
+	// magic, version, generation
+	static final int JOURNAL_HEADER_LENGTH = 4 + 4 + 8;
+	// payload length, op, crc over op and payload
+	static final int RECORD_OVERHEAD = 4 + 1 + 4;
+
+	static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+	final Path snapshotFile;
+	final Path journalFile;
+
+	// guards pending records
+	private final Object lock = new Object();
+	private ByteBuffer pending = ByteBuffer.allocate(16 * 1024);
+	private final Set<KBucketEntry> dirty = ConcurrentHashMap.newKeySet();
+
+	// guards the files
+	private final Object writeLock = new Object();
+	private FileChannel journal;
+	private long generation;
+	private long snapshotSize;
+	private long journalSize;
+
+	TableJournal(Path snapshotFile, Path journalFile) {
+		this.snapshotFile = snapshotFile;
+		this.journalFile = journalFile;
+	}
+
+	void added(KBucketEntry e) {
+		append(OP_ADD, e);
+	}
+
+	void removed(KBucketEntry e) {
+		dirty.remove(e);
+		append(OP_REMOVE, e);
+	}
+
+	void refreshed(KBucketEntry e) {
+		dirty.add(e);
+	}
+
+	private void append(byte op, KBucketEntry e) {
+		synchronized (lock) {
+			int required = RECORD_OVERHEAD + KBucketEntry.MAX_BINARY_LENGTH;
+			if(pending.remaining() < required) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + required));
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+
+			int start = pending.position();
+			pending.position(start + 4);
+			pending.put(op);
+			switch(op) {
+				case OP_ADD:
+					e.writeTo(pending);
+					break;
+				case OP_REMOVE:
+					e.getID().toBuffer(pending);
+					break;
+				case OP_UPDATE:
+					e.getID().toBuffer(pending);
+					e.writeState(pending);
+					break;
+			}
+			int end = pending.position();
+			pending.putInt(start, end - start - 5);
+
+			ByteBuffer covered = pending.duplicate();
+			covered.limit(end).position(start + 4);
+			CRC32 crc = new CRC32();
+			crc.update(covered);
+			pending.putInt((int) crc.getValue());
+		}
+	}
+
+	/**
+	 * writes pending records to the journal
+	 */
+	void flush() throws IOException {
+		synchronized (writeLock) {
+			if(journal == null)
+				return;
+
+			ByteBuffer toWrite;
+			synchronized (lock) {
+				for(Iterator<KBucketEntry> it = dirty.iterator();it.hasNext();) {
+					append(OP_UPDATE, it.next());
+					it.remove();
+				}
+				if(pending.position() == 0)
+					return;
+				toWrite = pending;
+				pending = ByteBuffer.allocate(toWrite.capacity());
+			}
+
+			toWrite.flip();
+			while(toWrite.hasRemaining())
+				journalSize += journal.write(toWrite);
+		}
+	}
+
+	boolean needsCompaction() {
+		synchronized (writeLock) {
+			return journalSize > Math.max(snapshotSize, MIN_COMPACTION_SIZE);
+		}
+	}
+
+	/**
+	 * writes a new snapshot of the current table and starts a new, empty journal
+	 */
+	void compact(Node node) throws IOException {
+		synchronized (writeLock) {
+			// don't persist in test mode
+			if(!Files.isDirectory(snapshotFile.getParent()) || node.getRootID() == null)
+				return;
+
+			// the snapshot will reflect everything recorded so far. changes from here on may or may not make it in, they'll be journaled anyway.
+			// dirty entries are kept, they are flushed into the new journal which is harmless since replay is idempotent
+			int covered;
+			synchronized (lock) {
+				covered = pending.position();
+			}
+
+			// if this fails the pending records still go into the current journal
+			writeSnapshot(node, generation + 1);
+			generation++;
+
+			synchronized (lock) {
+				pending.flip();
+				pending.position(covered);
+				pending.compact();
+			}
+
+			if(journal == null)
+				journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			journal.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH);
+			header.putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION).putLong(generation);
+			header.flip();
+			journal.write(header, 0);
+			journal.position(JOURNAL_HEADER_LENGTH);
+			journalSize = JOURNAL_HEADER_LENGTH;
+		}
+	}
+
+	/**
+	 * @return false if nothing can be persisted, e.g. because the storage directory does not exist
+	 */
+	boolean isOpen() {
+		synchronized (writeLock) {
+			return journal != null;
+		}
+	}
+
+	/**
+	 * @return number of records and entries waiting for the next flush
+	 */
+	int backlog() {
+		synchronized (lock) {
+			return pending.position() + dirty.size();
+		}
+	}
+
+	void close() throws IOException {
+		synchronized (writeLock) {
+			if(journal != null)
+				journal.close();
+			journal = null;
+		}
+	}
+
+	private void writeSnapshot(Node node, long gen) throws IOException {
+		RoutingTable table = node.table();
+
+		Path tempFile = Files.createTempFile(snapshotFile.getParent(), "tableSnapshot", ".tmp");
+
+		try(FileChannel chan = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+
+			buf.putInt(SNAPSHOT_MAGIC);
+			buf.putInt(FORMAT_VERSION);
+			buf.putLong(gen);
+			buf.putLong(System.currentTimeMillis());
+			node.getRootID().toBuffer(buf);
+			buf.putDouble(node.getDHT().getEstimator().getRawDistanceEstimate());
+			buf.putInt(table.size());
+
+			for(RoutingTableEntry e : table.list()) {
+				List<KBucketEntry> main = e.bucket.getEntries();
+				List<KBucketEntry> replacements = e.bucket.getReplacementEntries();
+
+				drainIfFull(chan, buf, 2 + Key.SHA1_HASH_LENGTH + 4);
+				buf.putShort((short) e.prefix.getDepth());
+				e.prefix.toBuffer(buf);
+				buf.putShort((short) main.size());
+				buf.putShort((short) replacements.size());
+
+				for(KBucketEntry kbe : main) {
+					drainIfFull(chan, buf, KBucketEntry.MAX_BINARY_LENGTH);
+					kbe.writeTo(buf);
+				}
+				for(KBucketEntry kbe : replacements) {
+					drainIfFull(chan, buf, KBucketEntry.MAX_BINARY_LENGTH);
+					kbe.writeTo(buf);
+				}
+			}
+
+			drainIfFull(chan, buf, buf.capacity());
+			snapshotSize = chan.size();
+		}
+
+		Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void drainIfFull(FileChannel chan, ByteBuffer buf, int required) throws IOException {
+		if(buf.remaining() >= required)
+			return;
+		buf.flip();
+		while(buf.hasRemaining())
+			chan.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Restores the snapshot and the journal into the node's table
+	 *
+	 * @return false if there is no usable snapshot
+	 */
+	boolean load(Node node) {
+		if(!Files.isRegularFile(snapshotFile))
+			return false;
+
+		try {
+			ByteBuffer buf = readFully(snapshotFile);
+
+			if(buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != FORMAT_VERSION) {
+				DHT.log("ignoring routing table snapshot " + snapshotFile + ", unknown format", LogLevel.Info);
+				return false;
+			}
+
+			long gen = buf.getLong();
+			long timestamp = buf.getLong();
+			Key oldKey = new Key(buf);
+			double estimate = buf.getDouble();
+			int bucketCount = buf.getInt();
+
+			List<Prefix> prefixes = new ArrayList<>(bucketCount);
+			List<List<KBucketEntry>> mainEntries = new ArrayList<>(bucketCount);
+			List<List<KBucketEntry>> replacementEntries = new ArrayList<>(bucketCount);
+			Map<Key, KBucketEntry> live = new HashMap<>();
+
+			for(int i=0;i<bucketCount;i++) {
+				int depth = buf.getShort();
+				prefixes.add(new Prefix(new Key(buf), depth));
+				int mainCount = buf.getShort();
+				int replacementCount = buf.getShort();
+
+				List<KBucketEntry> main = new ArrayList<>(mainCount);
+				for(int j=0;j<mainCount;j++) {
+					KBucketEntry e = KBucketEntry.readFrom(buf);
+					live.put(e.getID(), e);
+					main.add(e);
+				}
+				List<KBucketEntry> replacements = new ArrayList<>(replacementCount);
+				for(int j=0;j<replacementCount;j++)
+					replacements.add(KBucketEntry.readFrom(buf));
+
+				mainEntries.add(main);
+				replacementEntries.add(replacements);
+			}
+
+			int snapshotEntries = live.size();
+			List<KBucketEntry> added = replay(gen, live);
+
+			List<RoutingTableEntry> restored = new ArrayList<>(bucketCount);
+			for(int i=0;i<bucketCount;i++) {
+				KBucket bucket = new KBucket();
+				// stored in age order, entries removed by the journal are skipped
+				for(KBucketEntry e : mainEntries.get(i))
+					if(live.get(e.getID()) == e)
+						bucket.modifyMainBucket(null, e);
+				replacementEntries.get(i).forEach(bucket::insertInReplacementBucket);
+				restored.add(new RoutingTableEntry(prefixes.get(i), bucket, node::isLocalBucket));
+			}
+
+			node.restoreTable(oldKey, restored, added);
+			node.getDHT().getEstimator().setInitialRawDistanceEstimate(estimate);
+
+			synchronized (writeLock) {
+				generation = gen;
+				snapshotSize = buf.limit();
+			}
+
+			DHT.logInfo("Restored " + bucketCount + " buckets with " + snapshotEntries + " entries from snapshot and " + added.size()
+					+ " additional entries from journal. Snapshot was " + ((System.currentTimeMillis() - timestamp) / (60 * 1000)) + "min old.");
+
+			return true;
+		} catch (IOException | RuntimeException e) {
+			DHT.log(e, LogLevel.Error);
+			return false;
+		}
+	}
+
+	/**
+	 * applies journal records to the entries from the snapshot
+	 *
+	 * @return entries added by the journal that are still live
+	 */
+	private List<KBucketEntry> replay(long gen, Map<Key, KBucketEntry> live) throws IOException {
+		List<KBucketEntry> added = new ArrayList<>();
+		if(!Files.isRegularFile(journalFile))
+			return added;
+
+		ByteBuffer buf = readFully(journalFile);
+		if(buf.remaining() < JOURNAL_HEADER_LENGTH || buf.getInt() != JOURNAL_MAGIC || buf.getInt() != FORMAT_VERSION || buf.getLong() != gen)
+			return added;
+
+		CRC32 crc = new CRC32();
+
+		while(buf.remaining() >= RECORD_OVERHEAD) {
+			int start = buf.position();
+			int length = buf.getInt(start);
+			if(length < 0 || buf.remaining() < length + RECORD_OVERHEAD)
+				break;
+
+			ByteBuffer record = buf.duplicate();
+			record.limit(start + 5 + length).position(start + 4);
+			crc.reset();
+			crc.update(record.duplicate());
+			if((int) crc.getValue() != buf.getInt(start + 5 + length))
+				break;
+			buf.position(start + RECORD_OVERHEAD + length);
+
+			switch(record.get()) {
+				case OP_ADD:
+					KBucketEntry e = KBucketEntry.readFrom(record);
+					live.put(e.getID(), e);
+					added.add(e);
+					break;
+				case OP_REMOVE:
+					live.remove(new Key(record));
+					break;
+				case OP_UPDATE:
+					KBucketEntry existing = live.get(new Key(record));
+					if(existing != null)
+						existing.readState(record);
+					break;
+				default:
+					// unknown record, skip
+			}
+		}
+
+		added.removeIf(e -> live.get(e.getID()) != e);
+		return added;
+	}
+
+	private static ByteBuffer readFully(Path file) throws IOException {
+		try(FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+			// don't use mmap, that would keep the file undeletable on windows, which would interfere with write-atomicmove persistence
+			ByteBuffer buf = ByteBuffer.allocateDirect((int) chan.size());
+			while(buf.hasRemaining() && chan.read(buf) >= 0)
+				;
+			buf.flip();
+			return buf;
+		}
+	}
+
+}
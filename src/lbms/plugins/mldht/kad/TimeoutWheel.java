@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel driving the stall and timeout checks of the calls of a single {@link RPCServer}.
+ *
+ * Calls are linked intrusively, first into a lock-free inbox and then into the slot covering their deadline.
+ * Only the ticking thread touches the slots. There is no explicit cancellation, calls that completed in the meantime
+ * simply ignore their check when their slot comes up.
+ */
+class TimeoutWheel {
+
+	static final int TICK_MILLIS = ResponseTimeoutFilter.BIN_SIZE;
+	// enough to cover RPC_CALL_TIMEOUT_MAX in a single rotation
+	static final int NUM_SLOTS = Integer.highestOneBit(DHTConstants.RPC_CALL_TIMEOUT_MAX / TICK_MILLIS) << 1;
+
+	private final RPCCall[] slots = new RPCCall[NUM_SLOTS];
+	private final AtomicReference<RPCCall> inbox = new AtomicReference<>();
+	private final AtomicBoolean ticking = new AtomicBoolean();
+	private ScheduledFuture<?> ticker;
+	private long currentTick = -1;
+
+	// monotonic milliseconds, deadlines and ticks must not follow wall clock steps
+	private final LongSupplier clock;
+
+	private final AtomicInteger occupancy = new AtomicInteger();
+	private final LongAdder fired = new LongAdder();
+	private final LongAdder lateFirings = new LongAdder();
+	private volatile long maxLateness;
+
+	TimeoutWheel() {
+		long origin = System.nanoTime();
+		this.clock = () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+	}
+
+	TimeoutWheel(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	void start(ScheduledExecutorService scheduler) {
+		ticker = scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	void stop() {
+		ScheduledFuture<?> t = ticker;
+		if(t != null)
+			t.cancel(false);
+	}
+
+	void schedule(RPCCall c, long delayMillis) {
+		c.wheelDeadline = clock.getAsLong() + delayMillis;
+		occupancy.incrementAndGet();
+		while(true) {
+			RPCCall head = inbox.get();
+			c.wheelNext = head;
+			if(inbox.compareAndSet(head, c))
+				return;
+		}
+	}
+
+	void tick() {
+		if(!ticking.compareAndSet(false, true))
+			return;
+		try {
+			long now = clock.getAsLong();
+			long nowTick = now / TICK_MILLIS;
+			if(currentTick == -1)
+				currentTick = nowTick;
+
+			if(nowTick < currentTick - 1) {
+				// clock went backwards, re-file everything relative to the new time instead of waiting for the clock to catch up
+				currentTick = nowTick;
+				for(int i=0;i<NUM_SLOTS;i++) {
+					RPCCall c = slots[i];
+					slots[i] = null;
+					while(c != null) {
+						RPCCall next = c.wheelNext;
+						file(c, now);
+						c = next;
+					}
+				}
+			}
+
+			RPCCall c = inbox.getAndSet(null);
+			while(c != null) {
+				RPCCall next = c.wheelNext;
+				file(c, now);
+				c = next;
+			}
+
+			RPCCall expired = null;
+
+			for(;currentTick <= nowTick;currentTick++) {
+				int idx = (int) (currentTick & (NUM_SLOTS - 1));
+				c = slots[idx];
+				slots[idx] = null;
+				while(c != null) {
+					RPCCall next = c.wheelNext;
+					if(c.wheelDeadline > now) {
+						// deadline lies in a later rotation
+						file(c, now);
+					} else {
+						c.wheelNext = expired;
+						expired = c;
+					}
+					c = next;
+				}
+			}
+
+			// fire as a batch after the wheel has been brought up to date, checks may schedule new deadlines
+			while(expired != null) {
+				c = expired;
+				expired = c.wheelNext;
+				c.wheelNext = null;
+				occupancy.decrementAndGet();
+				long lateness = now - c.wheelDeadline;
+				if(lateness > TICK_MILLIS) {
+					lateFirings.increment();
+					if(lateness > maxLateness)
+						maxLateness = lateness;
+				}
+				fired.increment();
+				try {
+					c.checkStallOrTimeout();
+				} catch(Exception e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}
+		} finally {
+			ticking.set(false);
+		}
+	}
+
+	private void file(RPCCall c, long now) {
+		// nothing is scheduled further out than this, a larger distance means the deadline predates a clock step
+		if(c.wheelDeadline - now > DHTConstants.RPC_CALL_TIMEOUT_MAX)
+			c.wheelDeadline = now + DHTConstants.RPC_CALL_TIMEOUT_MAX;
+		// never file into a slot that was already passed in this rotation
+		long tick = Math.max((c.wheelDeadline + TICK_MILLIS - 1) / TICK_MILLIS, currentTick);
+		int idx = (int) (tick & (NUM_SLOTS - 1));
+		c.wheelNext = slots[idx];
+		slots[idx] = c;
+	}
+
+	int occupancy() {
+		return occupancy.get();
+	}
+
+	long lateFirings() {
+		return lateFirings.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "occupancy: " + occupancy.get() + " fired: " + fired.sum() + " late: " + lateFirings.sum() + " max lateness: " + maxLateness + "ms";
+	}
+
+}
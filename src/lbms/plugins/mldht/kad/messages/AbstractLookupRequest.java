@@ -5,8 +5,11 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeString;
+
 import lbms.plugins.mldht.kad.Key;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -48,6 +51,26 @@ public abstract class AbstractLookupRequest extends MessageBase {
 
 	}
 
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		// both possible names sort between id and want
+		writeHash(target, targetBencodingName(), this.target);
+		writeWant(target);
+		target.put((byte) 'e');
+	}
+	
+	void writeWant(ByteBuffer target) {
+		writeString(target, "want");
+		target.put((byte) 'l');
+		if(want4)
+			writeString(target, "n4");
+		if(want6)
+			writeString(target, "n6");
+		target.put((byte) 'e');
+	}
+
 	protected abstract String targetBencodingName();
 
 	/**
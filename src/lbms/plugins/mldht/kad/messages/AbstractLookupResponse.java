@@ -5,6 +5,9 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeString;
+
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -68,6 +71,33 @@ public class AbstractLookupResponse extends MessageBase {
 		return inner;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		writeNodes(target);
+		writeToken(target);
+		target.put((byte) 'e');
+	}
+	
+	void writeNodes(ByteBuffer target) {
+		if(nodes != null) {
+			writeString(target, "nodes");
+			writeString(target, nodes.writer());
+		}
+		if(nodes6 != null) {
+			writeString(target, "nodes6");
+			writeString(target, nodes6.writer());
+		}
+	}
+	
+	void writeToken(ByteBuffer target) {
+		if(token != null) {
+			writeString(target, "token");
+			writeString(target, token);
+		}
+	}
+	
 	public NodeList getNodes(DHTtype type)
 	{
 		if(type == DHTtype.IPV4_DHT)
@@ -5,6 +5,9 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
+
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
@@ -66,6 +69,24 @@ public class AnnounceRequest extends AbstractLookupRequest {
 		return inner;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		writeHash(target, "info_hash", this.target);
+		if(name != null) {
+			writeString(target, "name");
+			writeString(target, name);
+		}
+		writeString(target, "port");
+		writeLong(target, port);
+		writeString(target, "seed");
+		writeLong(target, isSeed ? 1 : 0);
+		writeString(target, "token");
+		writeString(target, token);
+		target.put((byte) 'e');
+	}
+	
 	public void setName(ByteBuffer name) {
 		this.name = name;
 	}
@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -40,4 +41,11 @@ public class AnnounceResponse extends MessageBase {
 		return inner;
 	}
 
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		target.put((byte) 'e');
+	}
+
 }
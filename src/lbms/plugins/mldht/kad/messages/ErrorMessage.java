@@ -5,6 +5,10 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +54,15 @@ public class ErrorMessage extends MessageBase {
 		return base;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		writeString(target, getType().innerKey());
+		target.put((byte) 'l');
+		writeLong(target, code);
+		writeString(target, msg);
+		target.put((byte) 'e');
+	}
+	
 	public void setMethod(Method m) {
 		this.method = m;
 	}
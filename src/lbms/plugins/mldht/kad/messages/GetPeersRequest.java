@@ -5,6 +5,10 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
+
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import lbms.plugins.mldht.kad.DHT;
@@ -48,6 +52,23 @@ public class GetPeersRequest extends AbstractLookupRequest {
 		return innerMap;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		writeHash(target, "info_hash", this.target);
+		if(noSeeds) {
+			writeString(target, "noseed");
+			writeLong(target, 1);
+		}
+		if(scrape) {
+			writeString(target, "scrape");
+			writeLong(target, 1);
+		}
+		writeWant(target);
+		target.put((byte) 'e');
+	}
+	
 	public boolean isNoSeeds() {
 		return noSeeds;
 	}
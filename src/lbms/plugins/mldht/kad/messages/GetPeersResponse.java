@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeString;
 import static the8472.bencode.Utils.buf2ary;
 
 import java.nio.ByteBuffer;
@@ -70,6 +71,28 @@ public class GetPeersResponse extends AbstractLookupResponse {
 		return innerMap;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		if(scrapePeers != null && scrapeSeeds != null) {
+			writeString(target, "BFpe");
+			writeString(target, scrapePeers);
+			writeString(target, "BFse");
+			writeString(target, scrapeSeeds);
+		}
+		writeHash(target, "id", id);
+		writeNodes(target);
+		writeToken(target);
+		if(items != null && !items.isEmpty()) {
+			writeString(target, "values");
+			target.put((byte) 'l');
+			for(DBItem item : items)
+				writeString(target, item.getData());
+			target.put((byte) 'e');
+		}
+		target.put((byte) 'e');
+	}
+	
 	public void setPeerItems(List<DBItem> items) {
 		this.items = items;
 	}
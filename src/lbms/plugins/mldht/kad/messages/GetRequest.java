@@ -5,9 +5,13 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
+
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.Key;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class GetRequest extends AbstractLookupRequest {
@@ -29,6 +33,19 @@ public class GetRequest extends AbstractLookupRequest {
 		
 		return m;
 	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		if(onlySendValueIfSeqGreaterThan != -1) {
+			writeString(target, "seq");
+			writeLong(target, onlySendValueIfSeqGreaterThan);
+		}
+		writeHash(target, "target", this.target);
+		writeWant(target);
+		target.put((byte) 'e');
+	}
 
 	@Override
 	protected String targetBencodingName() {
@@ -5,6 +5,10 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeRaw;
+import static the8472.bencode.BEncoder.writeString;
+
 import java.nio.ByteBuffer;
 import java.util.Map;
 
@@ -35,6 +39,31 @@ public class GetResponse extends AbstractLookupResponse {
 		
 	};
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		if(key != null) {
+			writeString(target, "k");
+			writeString(target, key);
+		}
+		writeNodes(target);
+		if(sequenceNumber > -1) {
+			writeString(target, "seq");
+			writeLong(target, sequenceNumber);
+		}
+		if(signature != null) {
+			writeString(target, "sig");
+			writeString(target, signature);
+		}
+		writeToken(target);
+		if(rawValue != null) {
+			writeString(target, "v");
+			writeRaw(target, rawValue);
+		}
+		target.put((byte) 'e');
+	}
+	
 	
 	ByteBuffer rawValue;
 	byte[] signature;
@@ -5,11 +5,13 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeString;
 import static the8472.bencode.Utils.prettyPrint;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
@@ -67,12 +69,61 @@ public abstract class MessageBase {
 	public abstract void apply (DHT dh_table);
 
 	/**
-	 * BEncode the message.
-	 * @return Data array
+	 * BEncode the message straight into the buffer, the output is identical to encoding {@link #getBase()}.
 	 */
 	public void encode(ByteBuffer target) throws IOException
 	{
-		new BEncoder().encodeInto(getBase(),target);
+		assert(mtid != null);
+		Type type = getType();
+		
+		// root keys in sorted order: a, e, ip, q, r, t, v, y
+		target.put((byte) 'd');
+		if(type != Type.RSP_MSG)
+			encodeInner(target);
+		if(publicIP != null && type == Type.RSP_MSG) {
+			writeString(target, EXTERNAL_IP_KEY);
+			writeString(target, AddressUtils.packAddress(publicIP));
+		}
+		if(type == Type.REQ_MSG) {
+			writeString(target, type.getRPCTypeName());
+			writeString(target, getMethod().getRPCName());
+		}
+		if(type == Type.RSP_MSG)
+			encodeInner(target);
+		writeString(target, TRANSACTION_KEY);
+		writeString(target, mtid);
+		writeString(target, VERSION_KEY);
+		writeString(target, DHTConstants.getVersion());
+		writeString(target, Type.TYPE_KEY);
+		writeString(target, type.getRPCTypeName());
+		target.put((byte) 'e');
+		
+		target.flip();
+	}
+	
+	/**
+	 * Writes the inner key and its value. Subclasses overriding {@link #getInnerMap()} should override this too
+	 * and write the same keys in sorted order, the default encodes the map.
+	 */
+	protected void encodeInner(ByteBuffer target) {
+		Map<String, Object> inner = getInnerMap();
+		if(inner == null)
+			return;
+		writeString(target, getType().innerKey());
+		BEncoder.writeValue(target, inner);
+	}
+	
+	void beginInner(ByteBuffer target) {
+		writeString(target, getType().innerKey());
+		target.put((byte) 'd');
+	}
+	
+	private static final byte[] HASH_PREFIX = (Key.SHA1_HASH_LENGTH + ":").getBytes(StandardCharsets.ISO_8859_1);
+	
+	static void writeHash(ByteBuffer target, String key, Key hash) {
+		writeString(target, key);
+		target.put(HASH_PREFIX);
+		hash.toBuffer(target);
 	}
 	
 	public Map<String, Object> getBase()
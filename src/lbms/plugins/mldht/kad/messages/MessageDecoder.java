@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.Utils.buf2ary;
 import static the8472.bencode.Utils.prettyPrint;
 import static the8472.utils.Functional.castOrThrow;
 import static the8472.utils.Functional.tap;
@@ -233,7 +234,9 @@ public class MessageDecoder {
 			m.tokenizer(t);
 			ByteBuffer rawVal = m.match(raw);
 			
-			get.setRawValue(rawVal);
+			// the raw packet buffer gets recycled after decoding, detach the value from it
+			if(rawVal != null)
+				get.setRawValue(ByteBuffer.wrap(buf2ary(rawVal)));
 			
 			typedGet(args, "token", byte[].class).ifPresent(get::setToken);;
 			typedGet(args, "k", byte[].class).ifPresent(get::setKey);
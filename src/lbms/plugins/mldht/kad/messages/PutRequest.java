@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
 import static the8472.bencode.Utils.buf2ary;
 
 import the8472.bencode.BEncoder;
@@ -86,6 +88,41 @@ public class PutRequest extends MessageBase {
 		return m;
 	}
 	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		Objects.requireNonNull(token);
+		Objects.requireNonNull(value);
+		Objects.requireNonNull(id);
+		
+		beginInner(target);
+		if(expectedSequenceNumber != -1) {
+			writeString(target, "cas");
+			writeLong(target, expectedSequenceNumber);
+		}
+		writeHash(target, "id", id);
+		if(pubkey != null) {
+			writeString(target, "k");
+			writeString(target, pubkey);
+		}
+		if(salt != null) {
+			writeString(target, "salt");
+			writeString(target, salt);
+		}
+		if(sequenceNumber != -1) {
+			writeString(target, "seq");
+			writeLong(target, sequenceNumber);
+		}
+		if(signature != null) {
+			writeString(target, "sig");
+			writeString(target, signature);
+		}
+		writeString(target, "token");
+		writeString(target, token);
+		writeString(target, "v");
+		target.put(value);
+		target.put((byte) 'e');
+	}
+	
 	public void populateFromStorage(StorageItem toPut) {
 		this.setValue(toPut.getRawValue());
 		if(toPut.mutable()) {
@@ -7,6 +7,7 @@ package lbms.plugins.mldht.kad.messages;
 
 import lbms.plugins.mldht.kad.DHT;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -29,4 +30,11 @@ public class PutResponse extends MessageBase {
 		return inner;
 	}
 
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		target.put((byte) 'e');
+	}
+
 }
@@ -7,6 +7,8 @@ package lbms.plugins.mldht.kad.messages;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static the8472.bencode.BEncoder.writeLong;
+import static the8472.bencode.BEncoder.writeString;
 
 import lbms.plugins.mldht.kad.Key;
 
@@ -79,5 +81,20 @@ public class SampleResponse extends AbstractLookupResponse {
 		return inner;
 		
 	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		beginInner(target);
+		writeHash(target, "id", id);
+		writeString(target, "interval");
+		writeLong(target, interval);
+		writeNodes(target);
+		writeString(target, "num");
+		writeLong(target, num);
+		writeString(target, "samples");
+		writeString(target, samples);
+		writeToken(target);
+		target.put((byte) 'e');
+	}
 
 }
@@ -0,0 +1,565 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import the8472.bencode.Tokenizer;
+import the8472.bencode.Tokenizer.BDecodingException;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+import lbms.plugins.mldht.kad.BloomFilterBEP33;
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.utils.AddressUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Decodes the common requests and responses straight from the token stream, without building the intermediate map of {@link the8472.bencode.BDecoder}.
+ *
+ * While tokenizing only the offsets of the fields we know about are recorded, values are copied out of the buffer once the message type is known.
+ * Anything out of the ordinary (errors, get/put requests, get responses, unknown methods, unexpected value types, unsorted keys, invalid values)
+ * makes {@link #decode(ByteBuffer, Function, DHTtype)} return null, the caller then has to go through {@link MessageDecoder} which produces the proper error responses.
+ *
+ * Not thread-safe, instances are meant to be reused by a single thread.
+ */
+public class StreamingMessageDecoder {
+
+	enum Kind {
+		STRING, LONG, DICT, LIST
+	}
+
+	enum Field {
+		T(true, "t", Kind.STRING),
+		Y(true, "y", Kind.STRING),
+		Q(true, "q", Kind.STRING),
+		V(true, "v", Kind.STRING),
+		IP(true, "ip", Kind.STRING),
+		A(true, "a", Kind.DICT),
+		R(true, "r", Kind.DICT),
+
+		ID(false, "id", Kind.STRING),
+		TARGET(false, "target", Kind.STRING),
+		INFO_HASH(false, "info_hash", Kind.STRING),
+		NODES(false, "nodes", Kind.STRING),
+		NODES6(false, "nodes6", Kind.STRING),
+		TOKEN(false, "token", Kind.STRING),
+		VALUES(false, "values", Kind.LIST),
+		WANT(false, "want", Kind.LIST),
+		PORT(false, "port", Kind.LONG),
+		SEED(false, "seed", Kind.LONG),
+		NOSEED(false, "noseed", Kind.LONG),
+		SCRAPE(false, "scrape", Kind.LONG),
+		SAMPLES(false, "samples", Kind.STRING),
+		NUM(false, "num", Kind.LONG),
+		INTERVAL(false, "interval", Kind.LONG),
+		NAME(false, "name", Kind.STRING),
+		BFPE(false, "BFpe", Kind.STRING),
+		BFSE(false, "BFse", Kind.STRING);
+
+		final boolean root;
+		final byte[] name;
+		final Kind kind;
+
+		Field(boolean root, String name, Kind kind) {
+			this.root = root;
+			this.name = name.getBytes(StandardCharsets.ISO_8859_1);
+			this.kind = kind;
+		}
+
+		static final Field[] ROOT_FIELDS = Arrays.stream(values()).filter(f -> f.root).toArray(Field[]::new);
+		static final Field[] BODY_FIELDS = Arrays.stream(values()).filter(f -> !f.root).toArray(Field[]::new);
+	}
+
+	private static final Method[] FAST_METHODS = {Method.PING, Method.FIND_NODE, Method.GET_PEERS, Method.ANNOUNCE_PEER, Method.SAMPLE_INFOHASHES};
+	private static final byte[][] FAST_METHOD_NAMES = Arrays.stream(FAST_METHODS).map(m -> m.getRPCName().getBytes(StandardCharsets.ISO_8859_1)).toArray(byte[][]::new);
+
+	private static final byte[] WANT_4 = "n4".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] WANT_6 = "n6".getBytes(StandardCharsets.ISO_8859_1);
+
+	// container levels we track, anything nested deeper or below unknown keys is skipped
+	private static final int ROOT = 0;
+	private static final int BODY = 1;
+	private static final int LIST = 2;
+
+	final Tokenizer tokenizer = new Tokenizer();
+	final Consumer consumer = new Consumer();
+
+	ByteBuffer buf;
+
+	final Kind[] kinds = new Kind[Field.values().length];
+	final int[] starts = new int[kinds.length];
+	final int[] ends = new int[kinds.length];
+	final long[] nums = new long[kinds.length];
+
+	int[] valueStarts = new int[32];
+	int[] valueEnds = new int[32];
+	int valueCount;
+
+	boolean want4;
+	boolean want6;
+
+	public StreamingMessageDecoder() {
+		tokenizer.consumer(consumer);
+	}
+
+	class Consumer implements TokenConsumer {
+
+		boolean failed;
+		boolean rootSeen;
+		int level = -1;
+		// nesting depth inside a container we don't care about
+		int skip;
+		Field listField;
+
+		final boolean[] expectKey = new boolean[2];
+		final Field[] key = new Field[2];
+		final int[] prevKeyStart = new int[2];
+		final int[] prevKeyEnd = new int[2];
+
+		void reset() {
+			failed = false;
+			rootSeen = false;
+			level = -1;
+			skip = 0;
+			listField = null;
+		}
+
+		void enter(int lvl) {
+			level = lvl;
+			expectKey[lvl] = true;
+			key[lvl] = null;
+			prevKeyStart[lvl] = -1;
+			prevKeyEnd[lvl] = -1;
+		}
+
+		@Override
+		public void push(Token t) {
+			TokenType type = t.type();
+			if(failed || (type != TokenType.DICT && type != TokenType.LIST))
+				return;
+			if(skip > 0) {
+				skip++;
+				return;
+			}
+			if(level == -1) {
+				if(rootSeen || type != TokenType.DICT) {
+					failed = true;
+					return;
+				}
+				rootSeen = true;
+				enter(ROOT);
+				return;
+			}
+			// lists of strings only
+			if(level == LIST) {
+				failed = true;
+				return;
+			}
+
+			Field f = key[level];
+			if(f == null) {
+				skip = 1;
+				return;
+			}
+
+			if(!record(f, type == TokenType.DICT ? Kind.DICT : Kind.LIST, t))
+				return;
+
+			if(f == Field.A || f == Field.R) {
+				// the method is only known once we have seen 'y', so we can't handle both
+				if(kinds[Field.A.ordinal()] != null && kinds[Field.R.ordinal()] != null) {
+					failed = true;
+					return;
+				}
+				enter(BODY);
+				return;
+			}
+
+			listField = f;
+			level = LIST;
+		}
+
+		@Override
+		public void pop(Token t) {
+			if(failed)
+				return;
+			// root is not a dictionary
+			if(level == -1 && skip == 0) {
+				failed = true;
+				return;
+			}
+
+			switch(t.type()) {
+				case DICT:
+				case LIST:
+					if(skip > 0) {
+						if(--skip == 0)
+							expectKey[level] = true;
+						return;
+					}
+					level--;
+					if(level >= 0)
+						expectKey[level] = true;
+					return;
+				case STRING:
+					if(skip > 0)
+						return;
+					if(level == LIST) {
+						listEntry(t);
+						return;
+					}
+					if(expectKey[level]) {
+						key(t);
+						return;
+					}
+					value(Kind.STRING, t);
+					return;
+				case LONG:
+					if(skip > 0)
+						return;
+					if(level == LIST) {
+						failed = true;
+						return;
+					}
+					value(Kind.LONG, t);
+					return;
+				default:
+					return;
+			}
+		}
+
+		void key(Token t) {
+			// BDecoder rejects duplicates, we simply insist on properly sorted keys which also catches those
+			if(prevKeyStart[level] != -1 && compare(prevKeyStart[level], prevKeyEnd[level], t.start(), t.end()) >= 0) {
+				failed = true;
+				return;
+			}
+			prevKeyStart[level] = t.start();
+			prevKeyEnd[level] = t.end();
+			expectKey[level] = false;
+			key[level] = match(level == ROOT ? Field.ROOT_FIELDS : Field.BODY_FIELDS, t.start(), t.end());
+		}
+
+		void value(Kind kind, Token t) {
+			expectKey[level] = true;
+			Field f = key[level];
+			if(f == null)
+				return;
+			if(record(f, kind, t) && kind == Kind.LONG)
+				nums[f.ordinal()] = tokenizer.lastDecodedNum();
+		}
+
+		boolean record(Field f, Kind kind, Token t) {
+			if(f.kind != kind) {
+				failed = true;
+				return false;
+			}
+			kinds[f.ordinal()] = kind;
+			starts[f.ordinal()] = t.start();
+			ends[f.ordinal()] = t.end();
+			return true;
+		}
+
+		void listEntry(Token t) {
+			if(listField == Field.WANT) {
+				want4 |= equalsAt(t.start(), t.end(), WANT_4);
+				want6 |= equalsAt(t.start(), t.end(), WANT_6);
+				return;
+			}
+
+			if(valueCount == valueStarts.length) {
+				valueStarts = Arrays.copyOf(valueStarts, valueCount * 2);
+				valueEnds = Arrays.copyOf(valueEnds, valueCount * 2);
+			}
+			valueStarts[valueCount] = t.start();
+			valueEnds[valueCount] = t.end();
+			valueCount++;
+		}
+	}
+
+	/**
+	 * @return the decoded message or null if the message has to be handled by {@link MessageDecoder} instead. The buffer position is left unchanged.
+	 */
+	public MessageBase decode(ByteBuffer buf, Function<byte[], Optional<Method>> transactionIdMapper, DHTtype type) {
+		int pos = buf.position();
+
+		try {
+			this.buf = buf;
+			tokenizer.inputBuffer(buf);
+			tokenizer.tokenize();
+
+			if(consumer.failed || !consumer.rootSeen || consumer.level != -1)
+				return null;
+
+			return build(transactionIdMapper, type);
+		} catch(BDecodingException e) {
+			// let the map path deal with reporting
+			return null;
+		} finally {
+			tokenizer.reset();
+			consumer.reset();
+			Arrays.fill(kinds, null);
+			valueCount = 0;
+			want4 = false;
+			want6 = false;
+			this.buf = null;
+			buf.position(pos);
+		}
+	}
+
+	private MessageBase build(Function<byte[], Optional<Method>> transactionIdMapper, DHTtype type) {
+		if(!has(Field.Y) || length(Field.Y) != 1 || !has(Field.T) || length(Field.T) == 0)
+			return null;
+		if(!has(Field.ID) || length(Field.ID) != Key.SHA1_HASH_LENGTH)
+			return null;
+
+		byte y = buf.get(starts[Field.Y.ordinal()]);
+		byte[] mtid = bytes(Field.T);
+
+		MessageBase msg;
+
+		if(y == 'q' && has(Field.A))
+			msg = buildRequest(type);
+		else if(y == 'r' && has(Field.R))
+			msg = buildResponse(transactionIdMapper.apply(mtid).orElse(Method.UNKNOWN), mtid);
+		else
+			return null;
+
+		if(msg == null)
+			return null;
+
+		msg.setMTID(mtid);
+		msg.setID(key(Field.ID));
+		if(has(Field.V))
+			msg.setVersion(bytes(Field.V));
+
+		return msg;
+	}
+
+	private MessageBase buildRequest(DHTtype type) {
+		if(!has(Field.Q))
+			return null;
+
+		Method method = Method.UNKNOWN;
+		for(int i=0;i<FAST_METHODS.length;i++) {
+			if(equalsAt(starts[Field.Q.ordinal()], ends[Field.Q.ordinal()], FAST_METHOD_NAMES[i]))
+				method = FAST_METHODS[i];
+		}
+
+		switch(method) {
+			case PING:
+				return new PingRequest();
+			case FIND_NODE:
+			case GET_PEERS:
+			case SAMPLE_INFOHASHES:
+				Field targetField = has(Field.TARGET) ? Field.TARGET : Field.INFO_HASH;
+				if(!has(targetField) || length(targetField) != Key.SHA1_HASH_LENGTH)
+					return null;
+
+				Key target = key(targetField);
+				AbstractLookupRequest req;
+
+				if(method == Method.FIND_NODE) {
+					req = new FindNodeRequest(target);
+				} else if(method == Method.GET_PEERS) {
+					GetPeersRequest peerReq = new GetPeersRequest(target);
+					peerReq.setNoSeeds(has(Field.NOSEED) && nums[Field.NOSEED.ordinal()] == 1);
+					peerReq.setScrape(has(Field.SCRAPE) && nums[Field.SCRAPE.ordinal()] == 1);
+					req = peerReq;
+				} else {
+					req = new SampleRequest(target);
+				}
+
+				if(has(Field.WANT)) {
+					req.setWant4(want4);
+					req.setWant6(want6);
+				} else {
+					req.setWant4(type == DHTtype.IPV4_DHT);
+					req.setWant6(type == DHTtype.IPV6_DHT);
+				}
+
+				return req;
+			case ANNOUNCE_PEER:
+				if(!has(Field.INFO_HASH) || length(Field.INFO_HASH) != Key.SHA1_HASH_LENGTH || !has(Field.TOKEN) || length(Field.TOKEN) == 0 || !has(Field.PORT))
+					return null;
+				long port = nums[Field.PORT.ordinal()];
+				if(port <= 0 || port > 65535)
+					return null;
+
+				AnnounceRequest ar = new AnnounceRequest(key(Field.INFO_HASH), (int) port, bytes(Field.TOKEN));
+				ar.setSeed(has(Field.SEED) && nums[Field.SEED.ordinal()] == 1);
+				if(has(Field.NAME))
+					ar.setName(ByteBuffer.wrap(bytes(Field.NAME)));
+
+				return ar;
+			default:
+				return null;
+		}
+	}
+
+	private MessageBase buildResponse(Method method, byte[] mtid) {
+		InetSocketAddress ip = null;
+		if(has(Field.IP)) {
+			ip = AddressUtils.unpackAddress(bytes(Field.IP));
+			// the map path logs those
+			if(ip == null)
+				return null;
+		}
+
+		if(!validNodes(Field.NODES, DHTtype.IPV4_DHT) || !validNodes(Field.NODES6, DHTtype.IPV6_DHT))
+			return null;
+
+		AbstractLookupResponse lookup = null;
+		MessageBase msg;
+
+		switch(method) {
+			case PING:
+				msg = new PingResponse(mtid);
+				break;
+			case PUT:
+				msg = new PutResponse(mtid);
+				break;
+			case ANNOUNCE_PEER:
+				msg = new AnnounceResponse(mtid);
+				break;
+			case FIND_NODE:
+				if(!has(Field.NODES) && !has(Field.NODES6))
+					return null;
+				msg = lookup = new FindNodeResponse(mtid);
+				break;
+			case SAMPLE_INFOHASHES:
+				if(!has(Field.NODES) && !has(Field.NODES6) && !has(Field.SAMPLES))
+					return null;
+				if(has(Field.SAMPLES) && length(Field.SAMPLES) % Key.SHA1_HASH_LENGTH != 0)
+					return null;
+
+				SampleResponse smp = new SampleResponse(mtid);
+				if(has(Field.SAMPLES))
+					smp.setSamples(ByteBuffer.wrap(bytes(Field.SAMPLES)));
+				if(has(Field.NUM))
+					smp.setNum((int) nums[Field.NUM.ordinal()]);
+				if(has(Field.INTERVAL))
+					smp.setInterval((int) nums[Field.INTERVAL.ordinal()]);
+
+				msg = lookup = smp;
+				break;
+			case GET_PEERS:
+				int filterLength = BloomFilterBEP33.m / 8;
+				if((has(Field.BFPE) && length(Field.BFPE) != filterLength) || (has(Field.BFSE) && length(Field.BFSE) != filterLength))
+					return null;
+				if(valueCount == 0 && !has(Field.NODES) && !has(Field.NODES6))
+					return null;
+
+				List<DBItem> items = null;
+				if(valueCount > 0) {
+					items = new ArrayList<>(valueCount);
+					for(int i=0;i<valueCount;i++) {
+						int len = valueEnds[i] - valueStarts[i];
+						// only accept ipv4 or ipv6 for now
+						if(len != DHTtype.IPV4_DHT.ADDRESS_ENTRY_LENGTH && len != DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH)
+							continue;
+						items.add(new PeerAddressDBItem(bytes(valueStarts[i], valueEnds[i]), false));
+					}
+				}
+
+				GetPeersResponse resp = new GetPeersResponse(mtid);
+				resp.setPeerItems(items);
+				resp.setToken(has(Field.TOKEN) ? bytes(Field.TOKEN) : null);
+				resp.setScrapePeers(has(Field.BFPE) ? bytes(Field.BFPE) : null);
+				resp.setScrapeSeeds(has(Field.BFSE) ? bytes(Field.BFSE) : null);
+
+				msg = lookup = resp;
+				break;
+			default:
+				// get responses need the raw value, unknown responses are rare
+				return null;
+		}
+
+		if(lookup != null) {
+			if(has(Field.NODES))
+				lookup.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(bytes(Field.NODES)), AddressType.V4));
+			if(has(Field.NODES6))
+				lookup.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(bytes(Field.NODES6)), AddressType.V6));
+		}
+
+		if(ip != null)
+			msg.setPublicIP(ip);
+
+		return msg;
+	}
+
+	private boolean validNodes(Field f, DHTtype nodesType) {
+		return !has(f) || length(f) % nodesType.NODES_ENTRY_LENGTH == 0;
+	}
+
+	private boolean has(Field f) {
+		return kinds[f.ordinal()] != null;
+	}
+
+	private int length(Field f) {
+		return ends[f.ordinal()] - starts[f.ordinal()];
+	}
+
+	private byte[] bytes(Field f) {
+		return bytes(starts[f.ordinal()], ends[f.ordinal()]);
+	}
+
+	// copies, the packet buffer gets recycled
+	private byte[] bytes(int start, int end) {
+		byte[] b = new byte[end - start];
+		buf.position(start);
+		buf.get(b);
+		return b;
+	}
+
+	private Key key(Field f) {
+		buf.position(starts[f.ordinal()]);
+		return new Key(buf);
+	}
+
+	private boolean equalsAt(int start, int end, byte[] expected) {
+		if(end - start != expected.length)
+			return false;
+		for(int i=0;i<expected.length;i++) {
+			if(buf.get(start + i) != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	private Field match(Field[] candidates, int start, int end) {
+		for(Field f : candidates) {
+			if(equalsAt(start, end, f.name))
+				return f;
+		}
+		return null;
+	}
+
+	private int compare(int aStart, int aEnd, int bStart, int bEnd) {
+		int len = Math.min(aEnd - aStart, bEnd - bStart);
+		for(int i=0;i<len;i++) {
+			int diff = Byte.toUnsignedInt(buf.get(aStart + i)) - Byte.toUnsignedInt(buf.get(bStart + i));
+			if(diff != 0)
+				return diff;
+		}
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Majority vote over the external address reported by the most recent distinct voters.
+ *
+ * Votes live in a ring of fixed capacity, the oldest one gets evicted when a new one arrives. A voter repeating its
+ * previous vote only costs a map lookup, changed or new votes update the tallies in O(1) without a global lock.
+ *
+ * Once more than quorum votes are present the address with the most votes wins. The incumbent is only replaced when
+ * a challenger strictly exceeds its tally, which happens on the challenger's next vote.
+ */
+public class ExternalAddressConsensus {
+
+	private static final class Vote {
+		final InetAddress voter;
+		final InetSocketAddress addr;
+		volatile int slot = -1;
+
+		Vote(InetAddress voter, InetSocketAddress addr) {
+			this.voter = voter;
+			this.addr = addr;
+		}
+	}
+
+	private final AtomicReferenceArray<Vote> slots;
+	private final AtomicLong cursor = new AtomicLong();
+	private final AtomicInteger votes = new AtomicInteger();
+	private final Map<InetAddress, Vote> byVoter = new ConcurrentHashMap<>();
+	private final Map<InetSocketAddress, Integer> tally = new ConcurrentHashMap<>();
+	private final AtomicReference<InetSocketAddress> consensus = new AtomicReference<>();
+	private final int quorum;
+	private final Consumer<InetSocketAddress> onChange;
+
+	/**
+	 * @param onChange invoked on the voting thread whenever the consensus changes
+	 */
+	public ExternalAddressConsensus(int capacity, int quorum, Consumer<InetSocketAddress> onChange) {
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.quorum = quorum;
+		this.onChange = onChange;
+	}
+
+	public void vote(InetAddress voter, InetSocketAddress addr) {
+		Vote previous = byVoter.get(voter);
+		if(previous != null && previous.addr.equals(addr))
+			return;
+
+		Vote vote = new Vote(voter, addr);
+		boolean registered = previous == null ? byVoter.putIfAbsent(voter, vote) == null : byVoter.replace(voter, previous, vote);
+		// concurrent vote from the same source, let that one win
+		if(!registered)
+			return;
+
+		int slot = (int) Long.remainderUnsigned(cursor.getAndIncrement(), slots.length());
+		vote.slot = slot;
+		Vote evicted = slots.getAndSet(slot, vote);
+		if(evicted != null) {
+			byVoter.remove(evicted.voter, evicted);
+			retract(evicted.addr);
+		} else {
+			votes.incrementAndGet();
+		}
+
+		int count = tally.merge(addr, 1, Integer::sum);
+
+		if(previous != null) {
+			int previousSlot = previous.slot;
+			// may already have been evicted
+			if(previousSlot >= 0 && slots.compareAndSet(previousSlot, previous, null)) {
+				votes.decrementAndGet();
+				retract(previous.addr);
+			}
+		}
+
+		if(votes.get() > quorum)
+			elect(addr, count);
+	}
+
+	private void retract(InetSocketAddress addr) {
+		tally.computeIfPresent(addr, (k, count) -> count > 1 ? count - 1 : null);
+	}
+
+	private void elect(InetSocketAddress candidate, int count) {
+		InetSocketAddress current = consensus.get();
+		if(candidate.equals(current))
+			return;
+
+		if(current == null) {
+			// first election, settle on the plurality instead of whoever happened to vote last
+			for(Map.Entry<InetSocketAddress, Integer> e : tally.entrySet()) {
+				if(e.getValue() > count) {
+					candidate = e.getKey();
+					count = e.getValue();
+				}
+			}
+		} else if(count <= tally.getOrDefault(current, 0)) {
+			return;
+		}
+
+		if(consensus.compareAndSet(current, candidate))
+			onChange.accept(candidate);
+	}
+
+	public InetSocketAddress get() {
+		return consensus.get();
+	}
+
+	public int size() {
+		return votes.get();
+	}
+
+}
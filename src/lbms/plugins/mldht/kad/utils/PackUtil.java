@@ -40,7 +40,7 @@ public class PackUtil {
 		if(type == DHTtype.IPV6_DHT && addr.getAddress() instanceof Inet4Address)
 			throw new IllegalArgumentException("Attempting to serialize an IPv4 bucket entry into nodes6 buffer");
 		// copy ID, IP address and port into the buffer
-		bb.put(e.getID().getHash());
+		e.getID().toBuffer(bb);
 		bb.put(addr.getAddress().getAddress());
 		//bt::WriteUint32(ptr,20,addr.ipAddress().IPv4Addr());
 		bb.putShort((short) addr.getPort());
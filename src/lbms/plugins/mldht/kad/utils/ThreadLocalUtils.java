@@ -12,6 +12,8 @@ import java.util.Random;
 
 import the8472.bencode.BDecoder;
 
+import lbms.plugins.mldht.kad.messages.StreamingMessageDecoder;
+
 public class ThreadLocalUtils {
 
 	private static ThreadLocal<Random> randTL = ThreadLocal.withInitial(() -> {
@@ -33,6 +35,8 @@ public class ThreadLocalUtils {
 	
 	private static ThreadLocal<BDecoder> decoder = ThreadLocal.withInitial(() -> new BDecoder());
 	
+	private static ThreadLocal<StreamingMessageDecoder> messageDecoder = ThreadLocal.withInitial(() -> new StreamingMessageDecoder());
+	
 
 	public static Random getThreadLocalRandom() {
 		return randTL.get();
@@ -42,6 +46,10 @@ public class ThreadLocalUtils {
 		return decoder.get();
 	}
 	
+	public static StreamingMessageDecoder getMessageDecoder() {
+		return messageDecoder.get();
+	}
+	
 	public static MessageDigest getThreadLocalSHA1() {
 		return sha1TL.get();
 	}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Bounded, lock-free map from 48bit transaction IDs packed into a long to pending calls.
+ *
+ * Each key hashes to a single bucket of {@link #BUCKET_SLOTS} slots, there is no probing beyond that bucket.
+ * Since we pick transaction IDs randomly ourselves a full bucket is simply reported as an insertion failure and the caller retries with a new ID.
+ * This avoids tombstones and lets lookups and removals run without locks or allocations.
+ */
+public class TransactionTable<V> {
+
+	public static final int MTID_LENGTH = 6;
+
+	static final int BUCKET_SLOTS = 8;
+	// occupied keys always have this bit set, so that 0 can denote an empty slot
+	static final long PRESENT = 1L << 48;
+	static final long EMPTY = 0;
+
+	final AtomicLongArray keys;
+	final AtomicReferenceArray<V> values;
+	final AtomicInteger size = new AtomicInteger();
+	final int capacity;
+	final int bucketMask;
+
+	public TransactionTable(int capacity) {
+		this.capacity = capacity;
+		// keep the average bucket load at or below 1/4 when full
+		int slots = Integer.highestOneBit(Math.max(capacity, BUCKET_SLOTS) - 1) << 3;
+		keys = new AtomicLongArray(slots);
+		values = new AtomicReferenceArray<>(slots);
+		bucketMask = slots / BUCKET_SLOTS - 1;
+	}
+
+	/**
+	 * @return the packed key or -1 if the ID does not have the expected length and thus can't be in the table
+	 */
+	public static long pack(byte[] mtid) {
+		if(mtid == null || mtid.length != MTID_LENGTH)
+			return -1;
+		long k = 0;
+		for(int i=0;i<MTID_LENGTH;i++)
+			k = k << 8 | (mtid[i] & 0xFF);
+		return k | PRESENT;
+	}
+	
+	/**
+	 * packs the ID starting at the absolute offset, without length checks
+	 */
+	public static long pack(ByteBuffer buf, int offset) {
+		long k = 0;
+		for(int i=0;i<MTID_LENGTH;i++)
+			k = k << 8 | (buf.get(offset + i) & 0xFF);
+		return k | PRESENT;
+	}
+
+	private int bucketStart(long key) {
+		int h = (int) (key ^ (key >>> 24));
+		return (h & bucketMask) * BUCKET_SLOTS;
+	}
+
+	/**
+	 * @return false if the key is already present, the table reached its capacity or the bucket for the key is full
+	 */
+	public boolean putIfAbsent(long key, V value) {
+		if(key == -1 || value == null)
+			throw new IllegalArgumentException();
+
+		if(size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+
+		int start = bucketStart(key);
+		int free = -1;
+		for(int i=start;i<start+BUCKET_SLOTS;i++) {
+			long k = keys.get(i);
+			if(k == key) {
+				free = -1;
+				break;
+			}
+			if(k == EMPTY && free == -1)
+				free = i;
+		}
+
+		while(free != -1) {
+			if(keys.compareAndSet(free, EMPTY, key)) {
+				values.set(free, value);
+				return true;
+			}
+			// lost a race for the slot, try the next empty one
+			int next = -1;
+			for(int i=free+1;i<start+BUCKET_SLOTS;i++) {
+				if(keys.get(i) == EMPTY) {
+					next = i;
+					break;
+				}
+			}
+			free = next;
+		}
+
+		size.decrementAndGet();
+		return false;
+	}
+
+	public V get(long key) {
+		if(key == -1)
+			return null;
+		int start = bucketStart(key);
+		for(int i=start;i<start+BUCKET_SLOTS;i++) {
+			if(keys.get(i) != key)
+				continue;
+			V v = values.get(i);
+			// recheck in case the slot got recycled between reading key and value
+			if(v != null && keys.get(i) == key)
+				return v;
+		}
+		return null;
+	}
+
+	public boolean remove(long key, V value) {
+		if(key == -1)
+			return false;
+		int start = bucketStart(key);
+		for(int i=start;i<start+BUCKET_SLOTS;i++) {
+			if(keys.get(i) != key)
+				continue;
+			if(values.compareAndSet(i, value, null)) {
+				keys.set(i, EMPTY);
+				size.decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public Stream<V> values() {
+		return IntStream.range(0, values.length()).mapToObj(values::get).filter(v -> v != null);
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.utils;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Fixed-size pool of receive buffers carved from a single slab.
+ *
+ * Packets are handed out with {@link #acquire(ByteBuffer, InetSocketAddress)} and must be returned through {@link Packet#release()},
+ * which {@link Packet#run()} does after the handler completes. The free list is a tagged treiber stack over slot indices, so neither acquiring nor releasing allocates.
+ */
+public class PacketBufferPool {
+
+	public enum OverflowPolicy {
+		/**
+		 * fall back to a heap buffer that will be left to the GC
+		 */
+		ALLOCATE,
+		/**
+		 * refuse the packet, {@link PacketBufferPool#acquire(ByteBuffer, InetSocketAddress)} returns null
+		 */
+		DROP
+	}
+
+	private static final int EMPTY = -1;
+
+	private final Packet[] slots;
+	private final int[] next;
+	// upper 32 bits: ABA stamp, lower 32 bits: index of the top slot
+	private final AtomicLong head;
+	private final int slotSize;
+	private final OverflowPolicy policy;
+	private final Consumer<Packet> handler;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder drops = new LongAdder();
+
+	public PacketBufferPool(int numSlots, int slotSize, OverflowPolicy policy, Consumer<Packet> handler) {
+		if(numSlots < 1 || slotSize < 1)
+			throw new IllegalArgumentException("pool must have at least one slot of non-zero size");
+		this.slotSize = slotSize;
+		this.policy = policy;
+		this.handler = handler;
+
+		ByteBuffer slab = ByteBuffer.allocate(numSlots * slotSize);
+		slots = new Packet[numSlots];
+		next = new int[numSlots];
+
+		for(int i=0;i<numSlots;i++) {
+			slab.limit((i+1) * slotSize).position(i * slotSize);
+			slots[i] = new Packet(i, slab.slice());
+			next[i] = i + 1 < numSlots ? i + 1 : EMPTY;
+		}
+
+		head = new AtomicLong(0);
+	}
+
+	/**
+	 * copies the remaining bytes of <code>data</code> into a pooled buffer
+	 *
+	 * @return null if the pool is exhausted and the overflow policy is {@link OverflowPolicy#DROP}
+	 */
+	public Packet acquire(ByteBuffer data, InetSocketAddress source) {
+		int len = data.remaining();
+		Packet p = len <= slotSize ? pop() : null;
+
+		if(p != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			if(policy == OverflowPolicy.DROP) {
+				drops.increment();
+				return null;
+			}
+			p = new Packet(EMPTY, ByteBuffer.allocate(len));
+		}
+
+		p.buf.clear();
+		p.buf.put(data);
+		p.buf.flip();
+		p.source = source;
+		p.receivedNanos = System.nanoTime();
+
+		return p;
+	}
+
+	private Packet pop() {
+		while(true) {
+			long current = head.get();
+			int idx = (int) current;
+			if(idx == EMPTY)
+				return null;
+			long updated = ((current >>> 32) + 1) << 32 | (next[idx] & 0xFFFF_FFFFL);
+			if(head.compareAndSet(current, updated))
+				return slots[idx];
+		}
+	}
+
+	private void push(int idx) {
+		while(true) {
+			long current = head.get();
+			next[idx] = (int) current;
+			long updated = ((current >>> 32) + 1) << 32 | (idx & 0xFFFF_FFFFL);
+			if(head.compareAndSet(current, updated))
+				return;
+		}
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long drops() {
+		return drops.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "slots: " + slots.length + "x" + slotSize + " hits: " + hits.sum() + " misses: " + misses.sum() + " drops: " + drops.sum();
+	}
+
+	public final class Packet implements Runnable {
+
+		private final int index;
+		private final ByteBuffer buf;
+		private InetSocketAddress source;
+		private long receivedNanos;
+
+		Packet(int index, ByteBuffer buf) {
+			this.index = index;
+			this.buf = buf;
+		}
+
+		/**
+		 * only valid until {@link #release()} is called. anything that outlives the handler must be copied out
+		 */
+		public ByteBuffer buffer() {
+			return buf;
+		}
+
+		public InetSocketAddress source() {
+			return source;
+		}
+
+		/**
+		 * {@link System#nanoTime()} at the time the packet was acquired
+		 */
+		public long receivedNanos() {
+			return receivedNanos;
+		}
+
+		public boolean isPooled() {
+			return index != EMPTY;
+		}
+
+		public void release() {
+			source = null;
+			if(index != EMPTY)
+				push(index);
+		}
+
+		@Override
+		public void run() {
+			try {
+				handler.accept(this);
+			} finally {
+				release();
+			}
+		}
+	}
+
+}
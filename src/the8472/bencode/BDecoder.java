@@ -13,6 +13,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bencode.Tokenizer.Token;
@@ -20,7 +22,10 @@ import the8472.bencode.Tokenizer.TokenConsumer;
 
 public class BDecoder {
 	
-	private class Consumer implements TokenConsumer {
+	private static class Consumer implements TokenConsumer {
+		
+		final Function<Token, ByteBuffer> slices;
+		final LongSupplier numbers;
 		
 		Object[] stack = new Object[256];
 		
@@ -28,6 +33,11 @@ public class BDecoder {
 		
 		int depth = 0;
 		
+		Consumer(Function<Token, ByteBuffer> slices, LongSupplier numbers) {
+			this.slices = slices;
+			this.numbers = numbers;
+		}
+		
 		@Override
 		public void push(Token st) {
 			
@@ -101,10 +111,10 @@ public class BDecoder {
 					depth--;
 					return;
 				case LONG:
-					putObject(t.lastDecodedNum);
+					putObject(numbers.getAsLong());
 					break;
 				case STRING:
-					putObject(t.getSlice(st));
+					putObject(slices.apply(st));
 					break;
 				case PREFIXED_STRING:
 					return;
@@ -141,7 +151,7 @@ public class BDecoder {
 	
 	public BDecoder() {
 		t = new Tokenizer();
-		c = new Consumer();
+		c = new Consumer(t::getSlice, t::lastDecodedNum);
 		t.consumer(c);
 	}
 	
@@ -157,6 +167,69 @@ public class BDecoder {
 			c.reset();
 		}
 	}
+	
+	/**
+	 * Decodes a single value that arrives in fragments, see {@link IncrementalTokenizer}.
+	 */
+	public static class Incremental {
+		
+		final IncrementalTokenizer t;
+		final Consumer c;
+		
+		public Incremental(int maxDepth, long maxLength) {
+			t = new IncrementalTokenizer().maxDepth(maxDepth).maxLength(maxLength);
+			c = new Consumer(t::getSlice, t::lastDecodedNum);
+			t.consumer(c);
+		}
+		
+		public Incremental maxLength(long length) {
+			t.maxLength(length);
+			return this;
+		}
+		
+		/**
+		 * @return true once the value is complete, bytes past its end are left in the fragment
+		 * @throws BDecodingException on malformed input or exceeded limits, the decoder is reset in that case
+		 */
+		public boolean feed(ByteBuffer fragment) {
+			try {
+				return t.feed(fragment);
+			} catch (BDecodingException e) {
+				reset();
+				throw e;
+			}
+		}
+		
+		public boolean isDone() {
+			return t.isDone();
+		}
+		
+		/**
+		 * Returns the decoded value and resets the decoder for the next one
+		 */
+		public Object take() {
+			if(!t.isDone())
+				throw new IllegalStateException("value is not complete yet");
+			Object root = c.stack[0];
+			// the string contents are only borrowed from the fragment or an internal buffer
+			if(root instanceof ByteBuffer)
+				root = ByteBuffer.wrap(buf2ary((ByteBuffer) root));
+			reset();
+			return root;
+		}
+		
+		public Map<String, Object> takeMap() {
+			Object root = take();
+			if(root instanceof Map)
+				return (Map<String, Object>) root;
+			throw new BDecodingException("expected dictionary as root object");
+		}
+		
+		public void reset() {
+			t.reset();
+			c.reset();
+		}
+	}
 
 
 }
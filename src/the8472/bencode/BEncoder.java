@@ -152,6 +152,10 @@ public class BEncoder {
 	private final static byte[] MIN_INT = str2buf(Integer.toString(Integer.MIN_VALUE)).array();
 	
 	private void encodeInt(int val, byte terminator) {
+		encodeInt(buf, val, terminator);
+	}
+	
+	static void encodeInt(ByteBuffer buf, int val, byte terminator) {
 		if(val == Integer.MIN_VALUE)
 			buf.put(MIN_INT);
 		else {
@@ -189,4 +193,52 @@ public class BEncoder {
 		str2buf(Long.toString(val), buf);
 		buf.put((byte) terminator);
 	}
+	
+	/*
+	 * Direct encoding of individual values, for callers that serialize their own structures without building maps first.
+	 * Dictionary keys have to be written in sorted order by the caller.
+	 */
+	
+	public static void writeString(ByteBuffer target, String str) {
+		encodeInt(target, str.length(), (byte) ':');
+		str2buf(str, target);
+	}
+	
+	public static void writeString(ByteBuffer target, byte[] str) {
+		encodeInt(target, str.length, (byte) ':');
+		target.put(str);
+	}
+	
+	public static void writeString(ByteBuffer target, ByteBuffer str) {
+		encodeInt(target, str.remaining(), (byte) ':');
+		target.put(str.duplicate());
+	}
+	
+	public static void writeString(ByteBuffer target, StringWriter str) {
+		encodeInt(target, str.length(), (byte) ':');
+		str.writeTo(target);
+	}
+	
+	public static void writeLong(ByteBuffer target, long val) {
+		target.put((byte) 'i');
+		if(val > Integer.MIN_VALUE && val <= Integer.MAX_VALUE)
+			encodeInt(target, (int) val, (byte) 'e');
+		else {
+			str2buf(Long.toString(val), target);
+			target.put((byte) 'e');
+		}
+	}
+	
+	public static void writeValue(ByteBuffer target, Object value) {
+		BEncoder enc = new BEncoder();
+		enc.buf = target;
+		enc.encodeInternal(value);
+	}
+	
+	/**
+	 * @param raw already bencoded data
+	 */
+	public static void writeRaw(ByteBuffer target, ByteBuffer raw) {
+		target.put(raw.duplicate());
+	}
 }
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import static the8472.bencode.Utils.str2buf;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.stream.Stream;
+
+import the8472.bencode.BEncoder.RawData;
+import the8472.bencode.BEncoder.StringWriter;
+
+/**
+ * Writes bencoded data to a channel in fixed-size chunks, so that large structures can be serialized in constant memory.
+ *
+ * Dictionary keys must be written in ascending order, {@link #key(String)} enforces this. Writes block on the underlying
+ * channel, which must therefore be in blocking mode.
+ */
+public class BEncodingWriter implements Flushable, Closeable {
+
+	private static final class Container {
+		final boolean dict;
+		String lastKey;
+		boolean expectValue;
+
+		Container(boolean dict) {
+			this.dict = dict;
+		}
+	}
+
+	private final WritableByteChannel out;
+	private final ByteBuffer chunk;
+	private Container[] stack = new Container[16];
+	private int depth;
+	private long written;
+
+	public BEncodingWriter(WritableByteChannel out, int chunkSize) {
+		this.out = out;
+		this.chunk = ByteBuffer.allocate(Math.max(chunkSize, 32));
+	}
+
+	public BEncodingWriter(OutputStream out, int chunkSize) {
+		this(Channels.newChannel(out), chunkSize);
+	}
+
+	public BEncodingWriter beginDict() throws IOException {
+		beforeValue();
+		ensure(1);
+		chunk.put((byte) 'd');
+		open(true);
+		return this;
+	}
+
+	public BEncodingWriter endDict() throws IOException {
+		close(true);
+		return this;
+	}
+
+	public BEncodingWriter beginList() throws IOException {
+		beforeValue();
+		ensure(1);
+		chunk.put((byte) 'l');
+		open(false);
+		return this;
+	}
+
+	public BEncodingWriter endList() throws IOException {
+		close(false);
+		return this;
+	}
+
+	/**
+	 * @throws IllegalStateException if the key is not greater than the previous key of the current dictionary
+	 */
+	public BEncodingWriter key(String key) throws IOException {
+		Container c = depth > 0 ? stack[depth - 1] : null;
+		if(c == null || !c.dict || c.expectValue)
+			throw new IllegalStateException("not expecting a dictionary key");
+		// ISO-8859-1 strings compare like their raw bytes
+		if(c.lastKey != null && c.lastKey.compareTo(key) >= 0)
+			throw new IllegalStateException("dictionary key " + key + " is not sorted after " + c.lastKey);
+		c.lastKey = key;
+		c.expectValue = true;
+		ensure(12 + key.length());
+		BEncoder.writeString(chunk, key);
+		return this;
+	}
+
+	public BEncodingWriter value(long val) throws IOException {
+		beforeValue();
+		ensure(22);
+		BEncoder.writeLong(chunk, val);
+		return this;
+	}
+
+	public BEncodingWriter value(String str) throws IOException {
+		return value(str2buf(str));
+	}
+
+	public BEncodingWriter value(byte[] str) throws IOException {
+		return value(ByteBuffer.wrap(str));
+	}
+
+	public BEncodingWriter value(ByteBuffer str) throws IOException {
+		beforeValue();
+		ensure(12);
+		BEncoder.encodeInt(chunk, str.remaining(), (byte) ':');
+		writeBytes(str.duplicate());
+		return this;
+	}
+
+	/**
+	 * Writes maps, lists, streams and values of the types supported by {@link BEncoder}, nested containers are written incrementally.
+	 */
+	public BEncodingWriter value(Object o) throws IOException {
+		if(o instanceof Map) {
+			beginDict();
+			Map<String, Object> map = (Map<String, Object>) o;
+			Stream<Entry<String, Object>> entries;
+			if(map instanceof SortedMap<?, ?> && ((SortedMap<?, ?>) map).comparator() == null)
+				entries = map.entrySet().stream();
+			else
+				entries = map.entrySet().stream().sorted(Map.Entry.comparingByKey());
+			for(Entry<String, Object> e : (Iterable<Entry<String, Object>>) entries::iterator) {
+				key(e.getKey());
+				value(e.getValue());
+			}
+			return endDict();
+		}
+		if(o instanceof List || o instanceof Stream) {
+			beginList();
+			Iterable<Object> it = o instanceof List ? (List<Object>) o : ((Stream<Object>) o)::iterator;
+			for(Object e : it)
+				value(e);
+			return endList();
+		}
+		if(o instanceof String)
+			return value((String) o);
+		if(o instanceof byte[])
+			return value((byte[]) o);
+		if(o instanceof ByteBuffer)
+			return value((ByteBuffer) o);
+		if(o instanceof Integer || o instanceof Long)
+			return value(((Number) o).longValue());
+		if(o instanceof RawData)
+			return raw(((RawData) o).rawBuf);
+		if(o instanceof StringWriter) {
+			StringWriter w = (StringWriter) o;
+			// the length prefix has to fit into the chunk as well
+			ByteBuffer tmp = 12 + w.length() > chunk.capacity() ? ByteBuffer.allocate(w.length()) : null;
+			if(tmp != null) {
+				w.writeTo(tmp);
+				tmp.flip();
+				return value(tmp);
+			}
+			beforeValue();
+			ensure(12 + w.length());
+			BEncoder.encodeInt(chunk, w.length(), (byte) ':');
+			w.writeTo(chunk);
+			return this;
+		}
+
+		throw new IllegalArgumentException("unknown object to encode " + o);
+	}
+
+	/**
+	 * @param encoded a complete, already bencoded value
+	 */
+	public BEncodingWriter raw(ByteBuffer encoded) throws IOException {
+		beforeValue();
+		writeBytes(encoded.duplicate());
+		return this;
+	}
+
+	/**
+	 * @return number of bytes written so far, including buffered ones
+	 */
+	public long position() {
+		return written + chunk.position();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		chunk.flip();
+		written += chunk.remaining();
+		writeFully(chunk);
+		chunk.clear();
+	}
+
+	/**
+	 * Flushes the remaining data and closes the channel.
+	 *
+	 * @throws IllegalStateException if there are unterminated dictionaries or lists
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if(depth > 0)
+				throw new IllegalStateException("closing writer with " + depth + " unterminated containers");
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void beforeValue() {
+		if(depth == 0)
+			return;
+		Container c = stack[depth - 1];
+		if(c.dict) {
+			if(!c.expectValue)
+				throw new IllegalStateException("expected dictionary key, not a value");
+			c.expectValue = false;
+		}
+	}
+
+	private void open(boolean dict) {
+		if(depth == stack.length)
+			stack = Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = new Container(dict);
+	}
+
+	private void close(boolean dict) throws IOException {
+		if(depth == 0 || stack[depth - 1].dict != dict)
+			throw new IllegalStateException("no open " + (dict ? "dictionary" : "list") + " to end");
+		if(stack[depth - 1].expectValue)
+			throw new IllegalStateException("dictionary key " + stack[depth - 1].lastKey + " without a value");
+		stack[--depth] = null;
+		ensure(1);
+		chunk.put((byte) 'e');
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if(chunk.remaining() < bytes)
+			flush();
+	}
+
+	private void writeBytes(ByteBuffer data) throws IOException {
+		if(data.remaining() <= chunk.remaining()) {
+			chunk.put(data);
+			return;
+		}
+		// too large for the current chunk, bypass it
+		flush();
+		if(data.remaining() <= chunk.capacity()) {
+			chunk.put(data);
+			return;
+		}
+		written += data.remaining();
+		writeFully(data);
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		while(data.hasRemaining())
+			out.write(data);
+	}
+
+}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import java.nio.ByteBuffer;
+
+import the8472.bencode.Tokenizer.BDecodingException;
+import the8472.bencode.Tokenizer.DictState;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+/**
+ * Push-style variant of {@link Tokenizer} for input that arrives in fragments, e.g. from stream sockets.
+ *
+ * Fragments of a single bencoded value are passed to {@link #feed(ByteBuffer)}, the parse state is kept between calls
+ * and no byte is looked at twice. Tokens are emitted to the consumer in the same order as {@link Tokenizer} does as soon
+ * as they are complete. Token offsets are relative to the start of the value, not to any particular fragment.
+ *
+ * String contents are only available through {@link #getSlice(Token)} while the string token is being popped. Strings
+ * that span fragments are accumulated internally, others are slices of the fragment.
+ *
+ * Depth, string and total length limits are checked as soon as the relevant prefix has been read.
+ */
+public class IncrementalTokenizer {
+
+	enum State {
+		VALUE,
+		NUMBER,
+		STRING_LENGTH,
+		STRING_BODY,
+		DONE
+	}
+
+	private static final int REUSABLE_STRING_BUFFER_SIZE = 16 * 1024;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private Token[] stack;
+	private int stackIdx;
+	private TokenConsumer consumer;
+
+	private State state = State.VALUE;
+	private long offset;
+
+	private long maxLength = Long.MAX_VALUE;
+	private long maxStringLength = Integer.MAX_VALUE;
+
+	// number and string length parsing
+	private long num;
+	private int digits;
+	private boolean negative;
+	private long lastDecodedNum;
+
+	// string body
+	private long stringRemaining;
+	private ByteBuffer partialString;
+	private ByteBuffer reusableStringBuffer;
+	private ByteBuffer currentString;
+
+	public IncrementalTokenizer() {
+		maxDepth(256);
+	}
+
+	/**
+	 * Limits the number of tokens on the stack. Each list or dictionary takes up one level, strings two.
+	 */
+	public IncrementalTokenizer maxDepth(int depth) {
+		stack = new Token[depth];
+		for(int i=0;i<stack.length;i++)
+			stack[i] = new Token();
+		stackIdx = 0;
+		return this;
+	}
+
+	public IncrementalTokenizer maxStringLength(long length) {
+		this.maxStringLength = Math.min(length, Integer.MAX_VALUE);
+		return this;
+	}
+
+	/**
+	 * Limits the total encoded length of the value
+	 */
+	public IncrementalTokenizer maxLength(long length) {
+		this.maxLength = length;
+		return this;
+	}
+
+	public void consumer(TokenConsumer c) {
+		this.consumer = c;
+	}
+
+	public void reset() {
+		for(int i=Math.min(stackIdx, stack.length - 1);i>=0;i--)
+			stack[i].reset();
+		stackIdx = 0;
+		state = State.VALUE;
+		offset = 0;
+		stringRemaining = 0;
+		partialString = null;
+		currentString = null;
+	}
+
+	/**
+	 * @return true once the value is complete
+	 */
+	public boolean isDone() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * @return number of bytes consumed so far
+	 */
+	public long offset() {
+		return offset;
+	}
+
+	public long lastDecodedNum() {
+		return lastDecodedNum;
+	}
+
+	/**
+	 * @return the contents of the string token currently being popped. only valid for the duration of the callback
+	 */
+	ByteBuffer getSlice(Token t) {
+		if(t.type() != TokenType.STRING || currentString == null)
+			throw new IllegalStateException("string contents are only available while the string token is popped");
+		return currentString.duplicate();
+	}
+
+	/**
+	 * Consumes bytes from the fragment until the value is complete or the fragment is exhausted. Bytes after the end of
+	 * the value are left in the fragment.
+	 *
+	 * @return true if the value is complete
+	 * @throws BDecodingException on malformed input or exceeded limits. the tokenizer must be reset before reuse
+	 */
+	public boolean feed(ByteBuffer fragment) {
+		while(state != State.DONE && fragment.hasRemaining()) {
+			if(offset >= maxLength)
+				throw new BDecodingException("value exceeds maximum length of " + maxLength + " bytes");
+
+			if(state == State.STRING_BODY) {
+				readString(fragment);
+				continue;
+			}
+
+			long pos = offset++;
+			byte current = fragment.get();
+
+			switch(state) {
+				case VALUE:
+					value(current, pos);
+					break;
+				case NUMBER:
+					number(current, pos);
+					break;
+				case STRING_LENGTH:
+					stringLength(current, pos);
+					break;
+				default:
+					throw new IllegalStateException();
+			}
+		}
+
+		return state == State.DONE;
+	}
+
+	private void value(byte current, long pos) {
+		switch(current) {
+			case 'd':
+				push(TokenType.DICT, pos);
+				break;
+			case 'l':
+				push(TokenType.LIST, pos);
+				break;
+			case 'i':
+				push(TokenType.LONG, pos);
+				startNumber();
+				state = State.NUMBER;
+				break;
+			case 'e':
+				pop(pos + 1);
+				break;
+			case '0':
+			case '1':
+			case '2':
+			case '3':
+			case '4':
+			case '5':
+			case '6':
+			case '7':
+			case '8':
+			case '9':
+				push(TokenType.PREFIXED_STRING, pos);
+				startNumber();
+				state = State.STRING_LENGTH;
+				stringLength(current, pos);
+				break;
+			default:
+				throw unexpected(current, pos);
+		}
+	}
+
+	private void startNumber() {
+		num = 0;
+		digits = 0;
+		negative = false;
+	}
+
+	private void digit(byte current, long pos) {
+		if(digits > 0 && num == 0)
+			throw new BDecodingException("encountered a leading zero at offset "+pos+" while decoding a number/string length prefix");
+		int digit = current - '0';
+		if(num > (Long.MAX_VALUE - digit) / 10)
+			throw new BDecodingException("number at offset "+pos+" overflows a long");
+		num = num * 10 + digit;
+		digits++;
+	}
+
+	private void number(byte current, long pos) {
+		if(current >= '0' && current <= '9') {
+			digit(current, pos);
+			return;
+		}
+		if(current == '-' && digits == 0 && !negative) {
+			negative = true;
+			return;
+		}
+		if(current == 'e' && digits > 0) {
+			lastDecodedNum = negative ? -num : num;
+			pop(pos + 1);
+			lastDecodedNum = -1;
+			return;
+		}
+		throw unexpected(current, pos);
+	}
+
+	private void stringLength(byte current, long pos) {
+		if(current >= '0' && current <= '9') {
+			digit(current, pos);
+			if(num > maxStringLength)
+				throw new BDecodingException("string at offset "+pos+" exceeds maximum length of " + maxStringLength);
+			return;
+		}
+		if(current != ':')
+			throw unexpected(current, pos);
+
+		long start = pos + 1;
+		if(start + num > maxLength)
+			throw new BDecodingException("string (offset: "+start+" + length: "+num+") exceeds maximum value length of " + maxLength);
+
+		push(TokenType.STRING, start);
+		stringRemaining = num;
+		state = State.STRING_BODY;
+		if(num == 0)
+			finishString(EMPTY);
+	}
+
+	private void readString(ByteBuffer fragment) {
+		int n = (int) Math.min(fragment.remaining(), stringRemaining);
+
+		ByteBuffer chunk = fragment.slice();
+		chunk.limit(n);
+		fragment.position(fragment.position() + n);
+		offset += n;
+		stringRemaining -= n;
+
+		if(partialString == null && stringRemaining == 0) {
+			// entirely within this fragment, no need to copy
+			finishString(chunk);
+			return;
+		}
+
+		if(partialString == null) {
+			int length = (int) (n + stringRemaining);
+			if(length <= REUSABLE_STRING_BUFFER_SIZE) {
+				if(reusableStringBuffer == null)
+					reusableStringBuffer = ByteBuffer.allocate(REUSABLE_STRING_BUFFER_SIZE);
+				partialString = reusableStringBuffer;
+				partialString.clear().limit(length);
+			} else {
+				partialString = ByteBuffer.allocate(length);
+			}
+		}
+
+		partialString.put(chunk);
+
+		if(stringRemaining == 0) {
+			partialString.flip();
+			ByteBuffer complete = partialString;
+			partialString = null;
+			finishString(complete);
+		}
+	}
+
+	private void finishString(ByteBuffer contents) {
+		currentString = contents;
+		try {
+			pop(offset);
+		} finally {
+			currentString = null;
+		}
+		pop(offset);
+		if(state == State.STRING_BODY)
+			state = State.VALUE;
+	}
+
+	private BDecodingException unexpected(byte current, long pos) {
+		StringBuilder b = new StringBuilder();
+		Utils.toHex(new byte[]{current}, b , 1);
+		return new BDecodingException("unexpected character 0x" + b + " at offset " + pos);
+	}
+
+	private void push(TokenType t, long pos) {
+		Token current = stack[stackIdx];
+		if(current.expect() == DictState.ExpectKeyOrEnd && t != TokenType.PREFIXED_STRING)
+			throw new BDecodingException("encountered "+t.toString()+" at offset "+pos+" while expecting a dictionary key");
+
+		if(stackIdx + 1 >= stack.length)
+			throw new BDecodingException("nesting too deep");
+		stackIdx++;
+
+		Token newState = stack[stackIdx];
+		newState.start = (int) pos;
+		newState.type(t);
+		if(t == TokenType.DICT)
+			newState.expect(DictState.ExpectKeyOrEnd);
+		consumer.push(newState);
+	}
+
+	private void pop(long pos) {
+		if(stackIdx == 0)
+			throw new BDecodingException("encountered 'e' at offset "+(pos - 1)+" without an open list or dictionary");
+
+		Token current = stack[stackIdx];
+
+		if(current.type() == TokenType.DICT && current.expect() == DictState.ExpectValue)
+			throw new BDecodingException("encountered 'e' (offset: "+(pos - 1)+") after dictionary key, expected a value");
+
+		current.end = (int) pos;
+		consumer.pop(current);
+
+		current.reset();
+		stackIdx--;
+
+		if(stackIdx == 0) {
+			state = State.DONE;
+			return;
+		}
+
+		// only strings and numbers need to leave their intermediate states
+		if(state == State.NUMBER)
+			state = State.VALUE;
+
+		current = stack[stackIdx];
+
+		switch(current.expect()) {
+			case ExpectKeyOrEnd:
+				current.expect(DictState.ExpectValue);
+				break;
+			case ExpectValue:
+				current.expect(DictState.ExpectKeyOrEnd);
+				break;
+			default:
+				break;
+		}
+	}
+
+}
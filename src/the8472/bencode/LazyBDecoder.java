@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import static the8472.bencode.Utils.buf2ary;
+import static the8472.bencode.Utils.buf2str;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import the8472.bencode.Tokenizer.BDecodingException;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+/**
+ * Alternative to {@link BDecoder} that does not materialize the decoded structure.
+ *
+ * The input is tokenized once into a flat index of token offsets. Dictionaries and lists are returned as read-only views
+ * backed by that index which only decode the children that are actually accessed, strings are read-only slices of the
+ * input buffer and integers are {@link Long}s.
+ *
+ * Everything returned borrows the input buffer, its contents must not change while the views are in use. Use
+ * {@link #detach(Object)} to copy into the same representation {@link BDecoder} would produce.
+ *
+ * Unlike {@link BDecoder} duplicate dictionary keys are not rejected, lookups return the first one.
+ */
+public class LazyBDecoder {
+
+	static final class Index implements TokenConsumer {
+
+		static final TokenType[] TYPES = TokenType.values();
+
+		final ByteBuffer source;
+		byte[] types = new byte[16];
+		int[] starts = new int[16];
+		int[] ends = new int[16];
+		// number of tokens in the subtree, including the token itself
+		int[] sizes = new int[16];
+		int count;
+
+		int[] open = new int[256];
+		int depth;
+
+		Index(ByteBuffer source) {
+			this.source = source;
+		}
+
+		int add(TokenType type, int start) {
+			if(count == types.length) {
+				int newLength = count * 2;
+				types = Arrays.copyOf(types, newLength);
+				starts = Arrays.copyOf(starts, newLength);
+				ends = Arrays.copyOf(ends, newLength);
+				sizes = Arrays.copyOf(sizes, newLength);
+			}
+			types[count] = (byte) type.ordinal();
+			starts[count] = start;
+			sizes[count] = 1;
+			return count++;
+		}
+
+		@Override
+		public void push(Token st) {
+			switch(st.type()) {
+				case DICT:
+				case LIST:
+					open[depth++] = add(st.type(), st.start());
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void pop(Token st) {
+			int idx;
+			switch(st.type()) {
+				case DICT:
+				case LIST:
+					idx = open[--depth];
+					sizes[idx] = count - idx;
+					break;
+				case LONG:
+				case STRING:
+					idx = add(st.type(), st.start());
+					break;
+				default:
+					return;
+			}
+			ends[idx] = st.end();
+		}
+
+		TokenType type(int idx) {
+			return TYPES[types[idx]];
+		}
+
+		ByteBuffer slice(int from, int to) {
+			ByteBuffer dup = source.duplicate();
+			dup.limit(to).position(from);
+			return dup.slice().asReadOnlyBuffer();
+		}
+
+		long parseLong(int idx) {
+			long result = 0;
+			int from = starts[idx] + 1;
+			int to = ends[idx] - 1;
+			boolean neg = source.get(from) == '-';
+			for(int i = neg ? from + 1 : from;i<to;i++)
+				result = result * 10 + (source.get(i) - '0');
+			return neg ? -result : result;
+		}
+
+		boolean keyEquals(int idx, String key) {
+			int start = starts[idx];
+			if(ends[idx] - start != key.length())
+				return false;
+			for(int i=0;i<key.length();i++) {
+				if(key.charAt(i) != (source.get(start + i) & 0xff))
+					return false;
+			}
+			return true;
+		}
+
+		String key(int idx) {
+			return buf2str(slice(starts[idx], ends[idx]));
+		}
+
+		Object value(int idx) {
+			switch(type(idx)) {
+				case DICT:
+					return new DictView(this, idx);
+				case LIST:
+					return new ListView(this, idx);
+				case LONG:
+					return parseLong(idx);
+				case STRING:
+					return slice(starts[idx], ends[idx]);
+				default:
+					throw new IllegalStateException("unexpected token type " + type(idx));
+			}
+		}
+	}
+
+	public static final class DictView extends AbstractMap<String, Object> {
+
+		final Index index;
+		final int token;
+		int size = -1;
+
+		DictView(Index index, int token) {
+			this.index = index;
+			this.token = token;
+		}
+
+		int find(String key) {
+			int end = token + index.sizes[token];
+			// keys are always strings and thus a single token
+			for(int k = token + 1;k < end;k = k + 1 + index.sizes[k + 1]) {
+				if(index.keyEquals(k, key))
+					return k + 1;
+			}
+			return -1;
+		}
+
+		@Override
+		public Object get(Object key) {
+			if(!(key instanceof String))
+				return null;
+			int v = find((String) key);
+			return v < 0 ? null : index.value(v);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && find((String) key) >= 0;
+		}
+
+		@Override
+		public int size() {
+			if(size < 0) {
+				int n = 0;
+				int end = token + index.sizes[token];
+				for(int k = token + 1;k < end;k = k + 1 + index.sizes[k + 1])
+					n++;
+				size = n;
+			}
+			return size;
+		}
+
+		@Override
+		public Set<Entry<String, Object>> entrySet() {
+			return new AbstractSet<Entry<String,Object>>() {
+				@Override
+				public Iterator<Entry<String, Object>> iterator() {
+					return new Iterator<Entry<String,Object>>() {
+						int next = token + 1;
+						final int end = token + index.sizes[token];
+
+						@Override
+						public boolean hasNext() {
+							return next < end;
+						}
+
+						@Override
+						public Entry<String, Object> next() {
+							if(!hasNext())
+								throw new NoSuchElementException();
+							int k = next;
+							next = k + 1 + index.sizes[k + 1];
+							return new SimpleImmutableEntry<>(index.key(k), index.value(k + 1));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return DictView.this.size();
+				}
+			};
+		}
+
+		/**
+		 * @return the encoded form of this dictionary, as a read-only slice of the input
+		 */
+		public ByteBuffer raw() {
+			return index.slice(index.starts[token], index.ends[token]);
+		}
+
+		public Map<String, Object> detach() {
+			Map<String, Object> result = new HashMap<>();
+			forEach((k, v) -> result.put(k, LazyBDecoder.detach(v)));
+			return result;
+		}
+	}
+
+	public static final class ListView extends AbstractList<Object> {
+
+		final Index index;
+		final int token;
+		// token offsets of the children, computed on first access
+		int[] children;
+
+		ListView(Index index, int token) {
+			this.index = index;
+			this.token = token;
+		}
+
+		int[] children() {
+			if(children == null) {
+				int end = token + index.sizes[token];
+				int n = 0;
+				for(int c = token + 1;c < end;c += index.sizes[c])
+					n++;
+				int[] offsets = new int[n];
+				n = 0;
+				for(int c = token + 1;c < end;c += index.sizes[c])
+					offsets[n++] = c;
+				children = offsets;
+			}
+			return children;
+		}
+
+		@Override
+		public Object get(int i) {
+			return index.value(children()[i]);
+		}
+
+		@Override
+		public int size() {
+			return children().length;
+		}
+
+		public ByteBuffer raw() {
+			return index.slice(index.starts[token], index.ends[token]);
+		}
+
+		public List<Object> detach() {
+			List<Object> result = new ArrayList<>(size());
+			forEach(e -> result.add(LazyBDecoder.detach(e)));
+			return result;
+		}
+	}
+
+	final Tokenizer t = new Tokenizer();
+
+	public DictView decode(ByteBuffer buf) {
+		Object root = decodeAny(buf);
+		if(root instanceof DictView)
+			return (DictView) root;
+		throw new BDecodingException("expected dictionary as root object");
+	}
+
+	/**
+	 * Consumes the encoded value from the buffer
+	 */
+	public Object decodeAny(ByteBuffer buf) {
+		Index index = new Index(buf);
+		try {
+			t.consumer(index);
+			t.inputBuffer(buf);
+			t.tokenize();
+		} finally {
+			t.reset();
+			t.consumer(null);
+		}
+		if(index.count == 0)
+			throw new BDecodingException("no value found");
+		return index.value(0);
+	}
+
+	/**
+	 * Copies a value returned by this decoder, so that it no longer refers to the input buffer.
+	 *
+	 * @return dictionaries as {@link Map}, lists as {@link List}, strings as byte[] and integers as {@link Long}
+	 */
+	public static Object detach(Object o) {
+		if(o instanceof DictView)
+			return ((DictView) o).detach();
+		if(o instanceof ListView)
+			return ((ListView) o).detach();
+		if(o instanceof ByteBuffer)
+			return buf2ary(((ByteBuffer) o).duplicate());
+		return o;
+	}
+
+}
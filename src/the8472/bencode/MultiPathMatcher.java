@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import the8472.bencode.Tokenizer.DictState;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+/**
+ * Extracts the values at several dictionary key paths in a single pass over the input, without decoding it.
+ *
+ * Results are offsets into the input buffer and only remain valid until the next call to {@link #match(ByteBuffer)}.
+ * Returned slices share the input's content, which makes this suitable for memory-mapped files, e.g. to hash the
+ * info dictionary of a torrent directly from the mapping. If a key occurs more than once the first occurrence wins.
+ */
+public class MultiPathMatcher implements TokenConsumer {
+
+	static final int MAX_PATHS = 64;
+
+	final Tokenizer t = new Tokenizer();
+	final List<byte[][]> paths = new ArrayList<>();
+
+	// bitmask of paths whose prefix matched the keys leading to the token at each depth
+	final long[] candidates = new long[t.stack.length];
+	long all;
+	long keyMatch;
+	long found;
+
+	int stringStart;
+	int stringEnd;
+
+	final TokenType[] types = new TokenType[MAX_PATHS];
+	final int[] starts = new int[MAX_PATHS];
+	final int[] ends = new int[MAX_PATHS];
+	final int[] contentStarts = new int[MAX_PATHS];
+	final int[] contentEnds = new int[MAX_PATHS];
+	final long[] numbers = new long[MAX_PATHS];
+
+	ByteBuffer input;
+
+	public MultiPathMatcher() {
+		t.consumer(this);
+	}
+
+	/**
+	 * @return the handle under which results for this path can be retrieved
+	 */
+	public int add(String... path) {
+		if(paths.size() == MAX_PATHS)
+			throw new IllegalStateException("at most " + MAX_PATHS + " paths are supported");
+		paths.add(Arrays.stream(path).map(Utils::str2ary).toArray(byte[][]::new));
+		all = all << 1 | 1;
+		return paths.size() - 1;
+	}
+
+	/**
+	 * Consumes the encoded value from the buffer and records the values found at the registered paths
+	 */
+	public void match(ByteBuffer buf) {
+		found = 0;
+		keyMatch = 0;
+		input = buf.duplicate();
+		t.inputBuffer(buf);
+		try {
+			t.tokenize();
+		} finally {
+			t.reset();
+		}
+	}
+
+	public boolean found(int path) {
+		return (found & 1L << path) != 0;
+	}
+
+	/**
+	 * @return {@link TokenType#STRING} for strings, null if the path was not found
+	 */
+	public TokenType type(int path) {
+		return found(path) ? types[path] : null;
+	}
+
+	/**
+	 * @return the encoded value, including length prefixes or delimiters
+	 */
+	public Optional<ByteBuffer> raw(int path) {
+		if(!found(path))
+			return Optional.empty();
+		return Optional.of(slice(starts[path], ends[path]));
+	}
+
+	/**
+	 * @return the content of a string value
+	 */
+	public Optional<ByteBuffer> string(int path) {
+		if(type(path) != TokenType.STRING)
+			return Optional.empty();
+		return Optional.of(slice(contentStarts[path], contentEnds[path]));
+	}
+
+	public OptionalLong number(int path) {
+		if(type(path) != TokenType.LONG)
+			return OptionalLong.empty();
+		return OptionalLong.of(numbers[path]);
+	}
+
+	ByteBuffer slice(int start, int end) {
+		ByteBuffer b = input.duplicate();
+		b.limit(end);
+		b.position(start);
+		return b.slice();
+	}
+
+	@Override
+	public void push(Token st) {
+		int depth = t.stackIdx();
+		long c = 0;
+		// only dictionaries have key/value expectations, list elements never match
+		if(depth == 1)
+			c = all;
+		else if(t.atStackOffset(-1).expect() == DictState.ExpectValue)
+			c = keyMatch;
+		candidates[depth] = c & ~found;
+	}
+
+	@Override
+	public void pop(Token st) {
+		int depth = t.stackIdx();
+
+		if(st.type() == TokenType.STRING) {
+			stringStart = st.start;
+			stringEnd = st.end;
+			return;
+		}
+
+		if(depth > 1 && t.atStackOffset(-1).expect() == DictState.ExpectKeyOrEnd) {
+			keyMatch = matchKey(candidates[depth - 1], depth - 2);
+			return;
+		}
+
+		long c = candidates[depth];
+		while(c != 0) {
+			int i = Long.numberOfTrailingZeros(c);
+			c &= c - 1;
+			if(paths.get(i).length == depth - 1)
+				record(i, st);
+		}
+	}
+
+	long matchKey(long dictCandidates, int element) {
+		long result = 0;
+		long c = dictCandidates;
+		while(c != 0) {
+			int i = Long.numberOfTrailingZeros(c);
+			c &= c - 1;
+			byte[][] path = paths.get(i);
+			if(path.length > element && keyEquals(path[element]))
+				result |= 1L << i;
+		}
+		return result;
+	}
+
+	boolean keyEquals(byte[] key) {
+		if(key.length != stringEnd - stringStart)
+			return false;
+		for(int i=0;i<key.length;i++) {
+			if(t.buf.get(stringStart + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	void record(int path, Token st) {
+		TokenType type = st.type();
+		if(type == TokenType.PREFIXED_STRING) {
+			type = TokenType.STRING;
+			contentStarts[path] = stringStart;
+			contentEnds[path] = stringEnd;
+		}
+		if(type == TokenType.LONG)
+			numbers[path] = t.lastDecodedNum();
+		types[path] = type;
+		starts[path] = st.start;
+		ends[path] = st.end;
+		found |= 1L << path;
+	}
+
+}
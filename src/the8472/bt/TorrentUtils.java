@@ -12,8 +12,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 
-import the8472.bencode.BDecoder;
 import the8472.bencode.BEncoder;
+import the8472.bencode.LazyBDecoder;
 import the8472.bencode.PathMatcher;
 import the8472.bencode.Tokenizer;
 
@@ -32,12 +32,13 @@ public class TorrentUtils {
 	}
 	
 	public static Optional<String> getTorrentName(ByteBuffer torrent) {
-		BDecoder decoder = new BDecoder();
+		// lazy decoding avoids copying the piece hashes
+		LazyBDecoder decoder = new LazyBDecoder();
 		Map<String, Object> root = decoder.decode(torrent.duplicate());
 		
 		return Optional.ofNullable((Map<String, Object>)root.get("info")).map(info -> {
-			return Optional.ofNullable((byte[])info.get("name.utf-8")).orElse((byte[])info.get("name"));
-		}).map(bytes -> new String(bytes, StandardCharsets.UTF_8));
+			return Optional.ofNullable((ByteBuffer)info.get("name.utf-8")).orElse((ByteBuffer)info.get("name"));
+		}).map(buf -> StandardCharsets.UTF_8.decode(buf).toString());
 	}
 	
 	public static String magnet(ByteBuffer rawTorrent) {
@@ -53,10 +53,16 @@ public class Launcher {
 		
 		int port;
 		boolean multihoming;
+		int receiveShards;
+		int receiveLatencyBudget;
+		int sendBatchSize;
 		
 		void update() {
 			port = configReader.getLong("//core/port").orElse(49001L).intValue();
 			multihoming = configReader.getBoolean("//core/multihoming").orElse(true);
+			receiveShards = configReader.getLong("//core/receiveShards").orElse(1L).intValue();
+			receiveLatencyBudget = configReader.getLong("//core/receiveLatencyBudget").orElse(1000L).intValue();
+			sendBatchSize = configReader.getLong("//core/sendBatchSize").orElse(32L).intValue();
 		}
 
 		
@@ -84,6 +90,21 @@ public class Launcher {
 		public boolean allowMultiHoming() {
 			return multihoming;
 		}
+		
+		@Override
+		public int getReceiveShards() {
+			return receiveShards;
+		}
+		
+		@Override
+		public int getReceiveLatencyBudget() {
+			return receiveLatencyBudget;
+		}
+		
+		@Override
+		public int getSendBatchSize() {
+			return sendBatchSize;
+		}
 	}
 	
 	XmlConfig config = new XmlConfig();
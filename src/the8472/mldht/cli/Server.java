@@ -26,6 +26,7 @@ import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
 import lbms.plugins.mldht.utils.Selectable;
 import the8472.bencode.BDecoder;
+import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.mldht.Component;
 import the8472.utils.ConfigReader;
 
@@ -104,9 +105,12 @@ public class Server implements Component {
 				
 				// 4 bytes message length
 				ByteBuffer header = ByteBuffer.allocate(4);
-				ByteBuffer payload = null;
+				ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
 				
-				ByteBuffer currentReadTarget = header;
+				// payloads are decoded as they arrive instead of buffering the whole frame first
+				BDecoder.Incremental decoder = new BDecoder.Incremental(64, 0);
+				// -1 while reading the header
+				int payloadRemaining = -1;
 
 				
 				@Override
@@ -123,33 +127,48 @@ public class Server implements Component {
 				
 				void read() throws IOException {
 					try {
-						int read = chan.read(currentReadTarget);
+						int read = chan.read(readBuffer);
 						
 						// end of stream
 						if(read == -1) {
 							header = null;
 							conMan.interestOpsChanged(this);
 						}
-							
 						
-						if(currentReadTarget.remaining() == 0) {
-							currentReadTarget.flip();
-							
-							if(currentReadTarget == header) {
-								payload = ByteBuffer.allocate(header.getInt(0));
-								currentReadTarget = payload;
-							} else {
-								
-								process(payload);
-								payload = null;
-								
-								header.clear();
-								currentReadTarget = header;
+						readBuffer.flip();
+						
+						while(header != null && readBuffer.hasRemaining()) {
+							if(payloadRemaining < 0) {
+								while(header.hasRemaining() && readBuffer.hasRemaining())
+									header.put(readBuffer.get());
+								if(header.hasRemaining())
+									break;
+								payloadRemaining = header.getInt(0);
+								if(payloadRemaining <= 0)
+									throw new IOException("invalid message length " + payloadRemaining);
+								decoder.maxLength(payloadRemaining);
+								continue;
 							}
 							
+							ByteBuffer fragment = readBuffer.duplicate();
+							fragment.limit(fragment.position() + Math.min(fragment.remaining(), payloadRemaining));
+							boolean done = decoder.feed(fragment);
+							payloadRemaining -= fragment.position() - readBuffer.position();
+							readBuffer.position(fragment.position());
 							
+							if(payloadRemaining == 0) {
+								if(!done)
+									throw new IOException("message ended inside its bencoded payload");
+								process(decoder.takeMap());
+								header.clear();
+								payloadRemaining = -1;
+							} else if(done) {
+								throw new IOException("trailing data after bencoded payload");
+							}
 						}
-					} catch (IOException e) {
+						
+						readBuffer.compact();
+					} catch (IOException | BDecodingException e) {
 						chan.close();
 					}
 										
@@ -158,9 +177,7 @@ public class Server implements Component {
 				Deque<ByteBuffer> writes = new ConcurrentLinkedDeque<>();
 				
 				
-				void process(ByteBuffer buf) {
-					BDecoder decoder = new BDecoder();
-					Map<String, Object> map = decoder.decode(buf);
+				void process(Map<String, Object> map) {
 					List<byte[]> args = (List<byte[]>) map.get("arguments");
 					CommandProcessor processor = CommandProcessor.from(args, (b) -> {
 						ByteBuffer h = ByteBuffer.allocate(4);
@@ -7,9 +7,11 @@ package the8472.mldht.cli;
 
 import static the8472.utils.Functional.typedGet;
 
+import the8472.bencode.LazyBDecoder;
+import the8472.bencode.MultiPathMatcher;
 import the8472.bencode.PrettyPrinter;
 import the8472.bencode.Tokenizer.BDecodingException;
-import the8472.bt.TorrentUtils;
+import the8472.bencode.Tokenizer.TokenType;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 
 import lbms.plugins.mldht.kad.Key;
@@ -27,6 +29,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -40,13 +43,37 @@ import java.util.stream.Stream;
 
 public class TorrentInfo {
 	
+	static final int INFO = 0;
+	static final int NAME = 1;
+	static final int NAME_UTF8 = 2;
+	static final int LENGTH = 3;
+	static final int FILES = 4;
+	static final int ENCODING = 5;
+	
+	static final ThreadLocal<MultiPathMatcher> matcher = ThreadLocal.withInitial(() -> {
+		MultiPathMatcher m = new MultiPathMatcher();
+		m.add("info");
+		m.add("info", "name");
+		m.add("info", "name.utf-8");
+		m.add("info", "length");
+		m.add("info", "files");
+		m.add("info", "encoding");
+		return m;
+	});
+	
 	Path source;
 	ByteBuffer raw;
 	Map<String, Object> root;
-	Map<String, Object> info;
 	Charset encoding = StandardCharsets.UTF_8;
 	boolean truncate = true;
 	
+	// extracted fields, slices of the mapped file
+	ByteBuffer rawInfo;
+	ByteBuffer rawName;
+	ByteBuffer rawNameUTF8;
+	ByteBuffer rawFiles;
+	long length;
+	
 	
 	public TorrentInfo(Path source) {
 		this.source = source;
@@ -67,37 +94,51 @@ public class TorrentInfo {
 			return;
 		readRaw();
 		root = ThreadLocalUtils.getDecoder().decode(raw.duplicate());
-		typedGet(root, "info", Map.class).ifPresent(i -> info = i);
-		if(info != null) {
-			String charset = typedGet(info, "encoding", byte[].class).map(b -> new String(b, StandardCharsets.ISO_8859_1)).orElse(null);
-			if(charset != null) {
-				try {
-					this.encoding = Charset.forName(charset);
-				} catch (Exception e) {
-					System.err.println("Charset " + charset + "not supported, falling back to " + encoding.name());
-				}
+	}
+	
+	/**
+	 * Pulls the info dictionary and the fields needed for the summary out of the mapped file in a single pass,
+	 * without decoding the piece hashes
+	 */
+	void extract() {
+		readRaw();
+		MultiPathMatcher m = matcher.get();
+		m.match(raw.duplicate());
+		if(m.type(INFO) != TokenType.DICT)
+			return;
+		rawInfo = m.raw(INFO).get();
+		rawName = m.string(NAME).orElse(null);
+		rawNameUTF8 = m.string(NAME_UTF8).orElse(null);
+		rawFiles = m.type(FILES) == TokenType.LIST ? m.raw(FILES).get() : null;
+		length = m.number(LENGTH).orElse(0L);
+		String charset = m.string(ENCODING).map(b -> StandardCharsets.ISO_8859_1.decode(b).toString()).orElse(null);
+		if(charset != null) {
+			try {
+				this.encoding = Charset.forName(charset);
+			} catch (Exception e) {
+				System.err.println("Charset " + charset + "not supported, falling back to " + encoding.name());
 			}
 		}
 	}
 	
 	Key infoHash() {
-		return TorrentUtils.infohash(raw);
+		MessageDigest dig = ThreadLocalUtils.getThreadLocalSHA1();
+		dig.reset();
+		dig.update(rawInfo.duplicate());
+		return new Key(dig.digest());
 	}
 	
 	Optional<String> name() {
-		decode();
-		Optional<String> name = typedGet(info, "name.utf-8", byte[].class).map(b -> new String(b, StandardCharsets.UTF_8));
-		if(!name.isPresent()) {
-			name = typedGet(info, "name", byte[].class).map(b -> new String(b, encoding));
-		}
-		
-		return name;
+		if(rawNameUTF8 != null)
+			return Optional.of(StandardCharsets.UTF_8.decode(rawNameUTF8.duplicate()).toString());
+		return Optional.ofNullable(rawName).map(b -> encoding.decode(b.duplicate()).toString());
 	}
 	
 	List<Map<String, Object>> files() {
-		return typedGet(info, "files", List.class).map((List l) -> {
-			return (List<Map<String, Object>>)l.stream().filter(Map.class::isInstance).collect(Collectors.toList());
-		}).orElse(Collections.emptyList());
+		if(rawFiles == null)
+			return Collections.emptyList();
+		List<?> l = (List<?>) new LazyBDecoder().decodeAny(rawFiles.duplicate());
+		return (List<Map<String, Object>>)l.stream().filter(Map.class::isInstance).collect(Collectors.toList());
 	}
 	
 	String raw() {
@@ -140,7 +181,10 @@ public class TorrentInfo {
 		torrents.map(p -> {
 			TorrentInfo ti = new TorrentInfo(p);
 			try {
-				ti.decode();
+				if(printRaw)
+					ti.decode();
+				else
+					ti.extract();
 			} catch(BDecodingException ex) {
 				return p.toString() + " does not appear to be a bencoded file: " + ex.getMessage();
 			}
@@ -151,10 +195,10 @@ public class TorrentInfo {
 			}
 				
 			
-			if(ti.info == null)
+			if(ti.rawInfo == null)
 				return p.toString() + " does not contain an info dictionary";
 			
-			long length = typedGet(ti.info, "length", Long.class).orElse(0L);
+			long length = ti.length;
 			long largestSize = length;
 			int numFiles = 1;
 			
@@ -179,7 +223,7 @@ public class TorrentInfo {
 				if(path == null)
 					path = typedGet(largest, "path", List.class).orElse(null);
 				
-				largestFile = path.stream().filter(byte[].class::isInstance).map(b -> new String((byte[]) b, StandardCharsets.UTF_8)).collect(Collectors.joining("/"));
+				largestFile = path.stream().filter(ByteBuffer.class::isInstance).map(b -> StandardCharsets.UTF_8.decode(((ByteBuffer) b).duplicate()).toString()).collect(Collectors.joining("/"));
 				largestFile = largestFile.replaceAll(newline, " ");
 			}
 			
@@ -77,7 +77,7 @@ public class OpentrackerLiveSync implements Component {
 		
 		ByteBuffer buf = ByteBuffer.allocate(PEER_LENGTH);
 		
-		buf.put(req.getTarget().getHash());
+		req.getTarget().toBuffer(buf);
 		buf.put(req.getOrigin().getAddress().getAddress());
 		buf.putShort((short) req.getOrigin().getPort());
 		buf.putShort((short) 0);
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+public class AnnounceNodeCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static KBucketEntry entry(Key id, long lastSeen) {
+		return new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), id, lastSeen);
+	}
+
+	@Test
+	public void testPersistence() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("announce.cache");
+
+		Key target = Key.createRandomKey();
+		AnnounceNodeCache cache = new AnnounceNodeCache();
+		cache.register(target, false);
+
+		Prefix p = new Prefix(target, 8);
+		for(int i=0;i<50;i++)
+			cache.add(entry(p.createRandomKeyFromPrefix(), System.currentTimeMillis()));
+		cache.saveTo(file);
+
+		Set<Key> expected = new HashSet<>();
+		cache.get(target, 1000).forEach(e -> expected.add(e.getID()));
+
+		AnnounceNodeCache restored = new AnnounceNodeCache();
+		List<KBucketEntry> toVerify = restored.loadFrom(file, DHTtype.IPV4_DHT);
+		assertEquals(expected.size(), toVerify.size());
+
+		Set<Key> found = new HashSet<>();
+		restored.get(target, 1000).forEach(e -> found.add(e.getID()));
+		assertEquals(expected, found);
+		assertEquals(cache.anchors.keySet(), restored.anchors.keySet());
+
+		// wrong address family
+		assertEquals(0, new AnnounceNodeCache().loadFrom(file, DHTtype.IPV6_DHT).size());
+
+		// entries too old to be useful are dropped
+		KBucketEntry stale = entry(Key.createRandomKey(), System.currentTimeMillis() - DHTConstants.ANNOUNCE_CACHE_MAX_AGE - 1);
+		restored.add(stale);
+		restored.saveTo(file);
+		List<KBucketEntry> reloaded = new AnnounceNodeCache().loadFrom(file, DHTtype.IPV4_DHT);
+		assertEquals(expected.size(), reloaded.size());
+		assertFalse(reloaded.contains(stale));
+	}
+
+	@Test
+	public void testBoundedClosest() {
+		AnnounceNodeCache cache = new AnnounceNodeCache(1000);
+		long now = System.currentTimeMillis();
+		Key target = Key.createRandomKey();
+		cache.register(target, false);
+
+		Prefix near = new Prefix(target, 12);
+		for(int i=0;i<3000;i++) {
+			KBucketEntry e = entry(i % 3 == 0 ? near.createRandomKeyFromPrefix() : Key.createRandomKey(), now - i);
+			e.signalResponse(10 + i % 300);
+			cache.add(e);
+		}
+		assertEquals(1000, cache.size());
+		assertEquals(1000, cache.entries.size());
+
+		for(Key k : Arrays.asList(target, Key.createRandomKey(), Key.MIN_KEY, Key.MAX_KEY)) {
+			for(int n : new int[] {1, 8, 20}) {
+				List<KBucketEntry> expected = new ArrayList<>(cache.entries.values());
+				expected.sort(new KBucketEntry.DistanceOrder(k));
+				assertEquals(expected.subList(0, n), cache.get(k, n));
+			}
+		}
+
+		// expired entries are not handed out and get swept
+		KBucketEntry stale = entry(target, now - DHTConstants.ANNOUNCE_CACHE_MAX_AGE - 1);
+		cache.add(stale);
+		assertFalse(cache.get(target, 1).contains(stale));
+		cache.cleanup(now);
+		assertFalse(cache.entries.containsKey(target));
+		assertEquals(cache.entries.size(), cache.size());
+	}
+
+	@Test
+	public void testOneEntryPerAddress() {
+		AnnounceNodeCache cache = new AnnounceNodeCache();
+		long now = System.currentTimeMillis();
+		KBucketEntry first = entry(Key.createRandomKey(), now);
+		KBucketEntry second = new KBucketEntry(new InetSocketAddress(first.getAddress().getAddress(), 1338), Key.createRandomKey(), now);
+
+		cache.add(first);
+		cache.add(second);
+		assertEquals(1, cache.size());
+		assertEquals(Arrays.asList(second), cache.get(first.getID(), 8));
+	}
+
+	@Test
+	public void testEvictionWithLastSeenInFuture() {
+		// e.g. restored from disk after the clock stepped back
+		AnnounceNodeCache cache = new AnnounceNodeCache(10);
+		long future = System.currentTimeMillis() + 60 * 60 * 1000;
+		for(int i=0;i<100;i++)
+			cache.add(entry(Key.createRandomKey(), future));
+		assertEquals(10, cache.size());
+	}
+
+}
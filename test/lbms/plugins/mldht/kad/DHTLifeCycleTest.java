@@ -162,7 +162,17 @@ public class DHTLifeCycleTest {
 		assertEquals("sanity check: sent test packet", packetSize, chan.write(packet));
 		gotPing.get(500, TimeUnit.MILLISECONDS);
 		assertEquals(1, srv.getNumReceived());
-		
+
+		// the reply goes out through the batched send path
+		chan.configureBlocking(false);
+		ByteBuffer reply = ByteBuffer.allocate(1500);
+		long deadline = System.currentTimeMillis() + 500;
+		while(chan.read(reply) == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue("received ping response", reply.position() > 0);
+		assertTrue(srv.getStats().getSendBatchCount() >= 1);
+		assertTrue(srv.getStats().getSendCallCount() >= srv.getStats().getBatchedMessageCount());
+
 		CompletableFuture<RPCServer> cf = dhtInstance.getServerManager().awaitActiveServer().toCompletableFuture();
 		dhtInstance.getServerManager().startNewServers();
 		dhtInstance.getServerManager().updateReachableEndpoints(System.currentTimeMillis());
@@ -101,5 +101,38 @@ public class KClosestNodeSearchTest {
 		
 		
 	}
+	
+	@Test
+	public void testCollector() {
+		fillTable(node);
+		node.table().stream().forEach(b -> {
+			b.getBucket().entriesStream().forEach(e -> {
+				e.signalResponse(1);
+			});
+		});
+		
+		for(int targetSize : new int[] {1, 8, 32}) {
+			for(int i=0;i<20;i++) {
+				Key k = Key.createRandomKey();
+				Comparator<KBucketEntry> comp = new KBucketEntry.DistanceOrder(k);
+				
+				List<Key> reference = node.table().stream().flatMap(b -> b.getBucket().entriesStream()).filter(KBucketEntry::eligibleForNodesList).sorted(comp).limit(targetSize).map(KBucketEntry::getID).collect(Collectors.toList());
+				
+				NodeList result = ClosestNodesCollector.get().collect(k, targetSize, node.getDHT(), false);
+				
+				assertEquals(targetSize * node.getDHT().getType().NODES_ENTRY_LENGTH, result.packedSize());
+				assertEquals(reference, result.entries().map(KBucketEntry::getID).collect(Collectors.toList()));
+			}
+		}
+		
+		// ineligible entries are skipped
+		node.table().stream().forEach(b -> {
+			b.getBucket().entriesStream().forEach(e -> {
+				e.signalRequestTimeout();
+				e.signalRequestTimeout();
+			});
+		});
+		assertEquals(0, ClosestNodesCollector.get().collect(Key.createRandomKey(), 8, node.getDHT(), false).packedSize());
+	}
 
 }
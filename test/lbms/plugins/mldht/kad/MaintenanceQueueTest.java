@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MaintenanceQueueTest {
+
+	@Test
+	public void testScheduling() {
+		MaintenanceQueue q = new MaintenanceQueue();
+		KBucket a = new KBucket();
+		KBucket b = new KBucket();
+		KBucket c = new KBucket();
+		Key ka = Key.createRandomKey();
+
+		q.schedule(a, ka, 300);
+		q.schedule(b, Key.createRandomKey(), 200);
+		q.schedule(c, Key.createRandomKey(), 250);
+		// only moves to earlier times, key is remembered
+		q.schedule(a, null, 100);
+		q.schedule(a, null, 400);
+		assertEquals(3, q.size());
+
+		q.remove(c);
+		assertEquals(2, q.size());
+
+		assertNull(q.poll(99));
+		MaintenanceQueue.Slot s = q.poll(1000);
+		assertSame(a, s.bucket);
+		assertEquals(ka, s.key);
+		assertEquals(100, s.time);
+		assertSame(b, q.poll(1000).bucket);
+		assertNull(q.poll(1000));
+
+		// polled buckets can be scheduled again
+		q.schedule(a, null, 500);
+		assertSame(a, q.poll(500).bucket);
+	}
+
+}
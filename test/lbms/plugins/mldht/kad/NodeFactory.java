@@ -87,7 +87,6 @@ public class NodeFactory {
 			e.signalResponse(DHTConstants.RPC_CALL_TIMEOUT_MAX);
 			node.insertEntry(e, true);
 		}
-		node.rebuildAddressCache();
 	}
 
 }
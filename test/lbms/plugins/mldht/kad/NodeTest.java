@@ -16,7 +16,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -80,6 +79,28 @@ public class NodeTest {
 		assertTrue(node.table().entryForId(p).prefix.getDepth() < p.getDepth());
 	}
 	
+	@Test
+	public void testAddressIndex() {
+		setup(DHTtype.IPV4_DHT);
+		
+		// filling the table involved splits, entries must have been re-indexed to their current buckets
+		node.table().stream().flatMap(e -> e.bucket.entriesStream()).forEach(e -> {
+			assertTrue(node.isRoutingTableAddress(e.getAddress().getAddress()));
+		});
+		
+		RoutingTableEntry tableEntry = node.table().stream().filter(e -> e.bucket.getNumEntries() > 0).findAny().get();
+		KBucketEntry removed = tableEntry.bucket.randomEntry().get();
+		tableEntry.bucket.removeEntryIfBad(removed, true);
+		assertFalse(node.isRoutingTableAddress(removed.getAddress().getAddress()));
+		
+		KBucketEntry added = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), tableEntry.prefix.createRandomKeyFromPrefix());
+		added.signalResponse(0);
+		KBucketEntry displaced = tableEntry.bucket.randomEntry().get();
+		tableEntry.bucket.modifyMainBucket(displaced, added);
+		assertTrue(node.isRoutingTableAddress(added.getAddress().getAddress()));
+		assertFalse(node.isRoutingTableAddress(displaced.getAddress().getAddress()));
+	}
+	
 	@Test
 	public void testReplacementPings() throws UnknownHostException {
 		setup(DHTtype.IPV4_DHT);
@@ -95,7 +116,7 @@ public class NodeTest {
 		Diagnostics diag = new Diagnostics();
 		diag.formatRoutingTable(System.out, node);
 		
-		RoutingTableEntry homeBucket = Arrays.stream(table.entries).filter(e -> e.homeBucket).findAny().get();
+		RoutingTableEntry homeBucket = table.stream().filter(e -> e.homeBucket).findAny().get();
 		
 		KBucketEntry replacement = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0),  13), homeBucket.prefix.createRandomKeyFromPrefix());
 		homeBucket.bucket.insertInReplacementBucket(replacement);
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+public class PackedEntriesTest {
+
+	static void assertSameState(KBucketEntry expected, KBucketEntry actual) {
+		assertEquals(expected, actual);
+		assertEquals(expected.getAddress(), actual.getAddress());
+		assertEquals(expected.getCreationTime(), actual.getCreationTime());
+		assertEquals(expected.getLastSeen(), actual.getLastSeen());
+		assertEquals(expected.lastSendTime(), actual.lastSendTime());
+		assertEquals(expected.getFailedQueries(), actual.getFailedQueries());
+		assertEquals(expected.getRTT(), actual.getRTT());
+		assertEquals(expected.verifiedReachable(), actual.verifiedReachable());
+		assertArrayEquals(expected.rawVersion(), actual.rawVersion());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		PackedEntries packed = new PackedEntries(4);
+
+		KBucketEntry v4 = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), Key.createRandomKey());
+		v4.signalScheduledRequest();
+		v4.signalResponse(123);
+		v4.setVersion(new byte[] {'L', 'T', 1, 2});
+		KBucketEntry v6 = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV6_DHT, (byte) 0), 65535), Key.createRandomKey());
+		v6.signalRequestTimeout();
+
+		packed.set(0, v4);
+		packed.set(3, v6);
+
+		assertSameState(v4, packed.get(0));
+		assertSameState(v6, packed.get(3));
+		assertNull(packed.get(1));
+		assertTrue(packed.neverContacted(3));
+		assertFalse(packed.neverContacted(0));
+		assertEquals(v4.eligibleForNodesList(), packed.eligibleForNodesList(0));
+		assertEquals(v6.eligibleForNodesList(), packed.eligibleForNodesList(3));
+
+		// same IP, different port and ID
+		KBucketEntry sameIp = new KBucketEntry(new InetSocketAddress(v4.getAddress().getAddress(), 1), Key.createRandomKey());
+		assertTrue(packed.matchIPorID(0, sameIp));
+		assertFalse(packed.matches(0, sameIp));
+		assertFalse(packed.hasAddress(0, sameIp.getAddress()));
+		assertTrue(packed.matches(3, v6));
+		assertFalse(packed.matchIPorID(3, v4));
+
+		KBucketEntry update = new KBucketEntry(v6.getAddress(), v6.getID(), v6.getLastSeen() + 1000);
+		update.signalResponse(50);
+		packed.mergeInTimestamps(3, update);
+		v6.mergeInTimestamps(update);
+		assertSameState(v6, packed.get(3));
+
+		packed.clear(0);
+		assertTrue(packed.isEmpty(0));
+		assertFalse(packed.matchIPorID(0, v4));
+	}
+
+}
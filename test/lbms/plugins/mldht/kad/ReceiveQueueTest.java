@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.ReceiveQueue.PacketClass;
+import lbms.plugins.mldht.kad.messages.ErrorMessage;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+import lbms.plugins.mldht.kad.messages.PingResponse;
+import lbms.plugins.mldht.kad.utils.TransactionTable;
+import lbms.plugins.mldht.utils.PacketBufferPool;
+import lbms.plugins.mldht.utils.PacketBufferPool.OverflowPolicy;
+import lbms.plugins.mldht.utils.PacketBufferPool.Packet;
+
+public class ReceiveQueueTest {
+
+	static final byte[] MTID = {1, 2, 3, 4, 5, 6};
+
+	PacketBufferPool pool = new PacketBufferPool(16, 1500, OverflowPolicy.DROP, p -> {});
+
+	static ByteBuffer encode(MessageBase msg) throws Exception {
+		DHTConstants.setVersion(1);
+		msg.setMTID(MTID);
+		msg.setID(Key.createRandomKey());
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		msg.encode(buf);
+		return buf;
+	}
+
+	Packet packet() {
+		return pool.acquire(ByteBuffer.wrap(new byte[] {'d', 'e'}), new InetSocketAddress(1234));
+	}
+
+	@Test
+	public void testPeek() throws Exception {
+		assertEquals('q', ReceiveQueue.peekType(encode(new PingRequest())));
+		assertEquals('r', ReceiveQueue.peekType(encode(new PingResponse(MTID))));
+		assertEquals('e', ReceiveQueue.peekType(encode(new ErrorMessage(MTID, 201, "foo"))));
+		assertEquals(TransactionTable.pack(MTID), ReceiveQueue.peekMTID(encode(new PingResponse(MTID))));
+
+		// non-canonical order
+		assertEquals('r', ReceiveQueue.peekType(ByteBuffer.wrap("d1:y1:r1:t6:abcdef1:rd2:id0:ee".getBytes("ISO-8859-1"))));
+		assertEquals(0, ReceiveQueue.peekType(ByteBuffer.wrap("d1:t6:abcdefe".getBytes("ISO-8859-1"))));
+		assertEquals(-1, ReceiveQueue.peekMTID(ByteBuffer.wrap("d1:t2:abe".getBytes("ISO-8859-1"))));
+	}
+
+	@Test
+	public void testPriority() {
+		ReceiveQueue q = new ReceiveQueue(16, 0);
+		Packet other = packet();
+		Packet known = packet();
+		Packet error = packet();
+		Packet response = packet();
+
+		assertTrue(q.offer(other, PacketClass.OTHER));
+		assertTrue(q.offer(known, PacketClass.ROUTING_TABLE_REQUEST));
+		assertTrue(q.offer(error, PacketClass.ERROR));
+		assertTrue(q.offer(response, PacketClass.RESPONSE));
+
+		assertSame(response, q.poll());
+		assertSame(error, q.poll());
+		assertSame(known, q.poll());
+		assertSame(other, q.poll());
+		assertNull(q.poll());
+	}
+
+	@Test
+	public void testShedding() throws InterruptedException {
+		ReceiveQueue q = new ReceiveQueue(2, 1);
+		Packet other = packet();
+		Packet known = packet();
+
+		assertTrue(q.offer(other, PacketClass.OTHER));
+		assertTrue(q.offer(known, PacketClass.ROUTING_TABLE_REQUEST));
+		assertTrue(q.offer(packet(), PacketClass.ROUTING_TABLE_REQUEST));
+		assertFalse(q.offer(packet(), PacketClass.ROUTING_TABLE_REQUEST));
+		assertEquals(1, q.drops(PacketClass.ROUTING_TABLE_REQUEST));
+
+		Thread.sleep(5);
+
+		// over budget, but only the lowest class gets shed
+		assertSame(known, q.poll());
+		assertTrue(q.poll() != null);
+		assertNull(q.poll());
+		assertEquals(1, q.drops(PacketClass.OTHER));
+		assertEquals(0, q.size());
+	}
+
+}
@@ -6,9 +6,11 @@
 package lbms.plugins.mldht.kad;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -29,8 +31,8 @@ public class RoutingTableTest {
 			Set<RoutingTableEntry> toRemove = new HashSet<>(10);
 			List<RoutingTableEntry> toAdd = new ArrayList<>(20);
 			
-			assertEquals(table.entries[0], f.apply(Key.MIN_KEY));
-			assertEquals(table.entries[table.entries.length-1], f.apply(Key.MAX_KEY));
+			assertEquals(table.get(0), f.apply(Key.MIN_KEY));
+			assertEquals(table.get(table.size()-1), f.apply(Key.MAX_KEY));
 			
 			for(int j=0;j<7;j++) {
 				Key k = Key.createRandomKey();
@@ -60,5 +62,44 @@ public class RoutingTableTest {
 		
 		test((k) -> table.entryForId(k));
 	}
+	
+	@Test
+	public void testIndex() {
+		table = new RoutingTable();
+		
+		test((k) -> table.get(table.indexForId(k)));
+	}
+	
+	@Test
+	public void testMergeAndSharing() {
+		RoutingTable initial = new RoutingTable();
+		RoutingTableEntry root = initial.get(0);
+		RoutingTableEntry low = new RoutingTableEntry(root.prefix.splitPrefixBranch(false), new KBucket(), (x) -> false);
+		RoutingTableEntry high = new RoutingTableEntry(root.prefix.splitPrefixBranch(true), new KBucket(), (x) -> false);
+		
+		RoutingTable split = initial.modify(Arrays.asList(root), Arrays.asList(low, high));
+		RoutingTableEntry lowLow = new RoutingTableEntry(low.prefix.splitPrefixBranch(false), new KBucket(), (x) -> false);
+		RoutingTableEntry lowHigh = new RoutingTableEntry(low.prefix.splitPrefixBranch(true), new KBucket(), (x) -> false);
+		RoutingTable deeper = split.modify(Arrays.asList(low), Arrays.asList(lowLow, lowHigh));
+		
+		assertEquals(Arrays.asList(lowLow, lowHigh, high), deeper.list());
+		// old versions are unaffected
+		assertEquals(Arrays.asList(low, high), split.list());
+		assertEquals(1, initial.size());
+		// untouched subtrees are shared
+		assertSame(split.root.high, deeper.root.high);
+		
+		RoutingTableEntry merged = new RoutingTableEntry(low.prefix, new KBucket(), (x) -> false);
+		RoutingTable mergedTable = deeper.modify(Arrays.asList(lowLow, lowHigh), Arrays.asList(merged));
+		assertEquals(Arrays.asList(merged, high), mergedTable.list());
+		assertEquals(1, mergedTable.indexForId(Key.MAX_KEY));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncompleteSplit() {
+		RoutingTable initial = new RoutingTable();
+		RoutingTableEntry root = initial.get(0);
+		initial.modify(Arrays.asList(root), Arrays.asList(new RoutingTableEntry(root.prefix.splitPrefixBranch(false), new KBucket(), (x) -> false)));
+	}
 
 }
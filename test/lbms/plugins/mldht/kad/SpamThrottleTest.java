@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SpamThrottleTest {
+
+	AtomicLong time = new AtomicLong();
+	SpamThrottle throttle = new SpamThrottle(1024, time::get);
+
+	static InetAddress addr(String str) throws UnknownHostException {
+		return InetAddress.getByName(str);
+	}
+
+	@Test
+	public void testBurstAndDecay() throws UnknownHostException {
+		InetAddress a = addr("192.0.2.1");
+		InetAddress b = addr("2001:db8::1");
+
+		for(int i=0;i<9;i++) {
+			assertFalse(throttle.addAndTest(a));
+			assertFalse(throttle.addAndTest(b));
+		}
+		assertTrue(throttle.addAndTest(a));
+		assertTrue(throttle.addAndTest(b));
+		assertTrue(throttle.test(a));
+		assertFalse(throttle.test(addr("192.0.2.2")));
+
+		// saturated, 2 per second decay
+		for(int i=0;i<20;i++)
+			throttle.addAndTest(a);
+		time.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+		assertFalse(throttle.test(a));
+		assertTrue(throttle.addAndTest(a));
+
+		time.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		assertFalse(throttle.test(a));
+		assertFalse(throttle.test(b));
+		assertEquals(1, throttle.saturatingAdd(b));
+	}
+
+	@Test
+	public void testRemoveAndDelay() throws UnknownHostException {
+		InetAddress a = addr("192.0.2.1");
+
+		for(int i=0;i<10;i++)
+			assertEquals(0, throttle.calculateDelayAndAdd(a));
+		assertEquals(500, throttle.calculateDelayAndAdd(a));
+		assertEquals(1000, throttle.calculateDelayAndAdd(a));
+		throttle.saturatingDec(a);
+		assertEquals(1000, throttle.calculateDelayAndAdd(a));
+
+		throttle.remove(a);
+		assertFalse(throttle.test(a));
+		assertEquals(1, throttle.saturatingAdd(a));
+	}
+
+	@Test
+	public void testFixedMemoryUnderFlood() throws UnknownHostException {
+		byte[] raw = new byte[4];
+		// far more sources than counters, each hitting only once
+		for(int i=0;i<100_000;i++) {
+			raw[0] = (byte) (i >>> 24 | 0x80);
+			raw[1] = (byte) (i >>> 16);
+			raw[2] = (byte) (i >>> 8);
+			raw[3] = (byte) i;
+			throttle.addAndTest(InetAddress.getByAddress(raw));
+			if(i % 1000 == 0)
+				time.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+		}
+
+		assertFalse(throttle.test(addr("192.0.2.1")));
+	}
+
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
+
+public class TableJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	TableJournal journal(Path dir) {
+		return new TableJournal(dir.resolve("table.snapshot"), dir.resolve("table.journal"));
+	}
+
+	static List<String> prefixes(Node node) {
+		return node.table().stream().map(e -> e.prefix.toString()).collect(Collectors.toList());
+	}
+
+	static Set<KBucketEntry> mainEntries(Node node) {
+		return node.table().stream().flatMap(e -> e.bucket.entriesStream()).collect(Collectors.toSet());
+	}
+
+	Node restore(Node node, Path dir) throws IOException {
+		Files.write(dir.resolve("baseID.config"), Collections.singleton(node.getRootID().toString(false)));
+		DHT dht = NodeFactory.buildDHT(DHTtype.IPV4_DHT);
+		Node restored = dht.getNode();
+		restored.initKey(new DHTConfiguration() {
+			@Override
+			public boolean isPersistingID() {
+				return true;
+			}
+
+			@Override
+			public Path getStoragePath() {
+				return dir;
+			}
+
+			@Override
+			public int getListeningPort() {
+				return 0;
+			}
+
+			@Override
+			public boolean noRouterBootstrap() {
+				return false;
+			}
+
+			@Override
+			public boolean allowMultiHoming() {
+				return false;
+			}
+		});
+		assertEquals(node.getRootID(), restored.getRootID());
+
+		restored.openJournal(journal(dir), dir.resolve("table.cache"));
+		return restored;
+	}
+
+	@Test
+	public void testRestore() throws IOException {
+		Path dir = folder.getRoot().toPath();
+
+		Node node = NodeFactory.buildDHT(DHTtype.IPV4_DHT).getNode();
+		node.initKey(null);
+		NodeFactory.fillTable(node);
+		node.openJournal(journal(dir), dir.resolve("table.cache"));
+
+		assertTrue(Files.isRegularFile(dir.resolve("table.snapshot")));
+
+		RoutingTableEntry tableEntry = node.table().stream().filter(e -> e.bucket.getNumEntries() > 1).findAny().get();
+		KBucketEntry removed = tableEntry.bucket.getEntries().get(0);
+		KBucketEntry added = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), tableEntry.prefix.createRandomKeyFromPrefix());
+		added.signalResponse(50);
+		tableEntry.bucket.modifyMainBucket(removed, added);
+
+		KBucketEntry refreshed = tableEntry.bucket.getEntries().get(0);
+		KBucketEntry update = new KBucketEntry(refreshed.getAddress(), refreshed.getID(), refreshed.getLastSeen() + 1000);
+		update.signalResponse(123);
+		tableEntry.bucket.refresh(update);
+
+		node.flushJournal();
+		// simulate a torn write
+		Files.write(dir.resolve("table.journal"), new byte[] {0, 0, 0, 42, TableJournal.OP_ADD, 1, 2}, StandardOpenOption.APPEND);
+
+		Node restored = restore(node, dir);
+
+		// buckets are restored as-is
+		assertEquals(prefixes(node), prefixes(restored));
+		assertEquals(mainEntries(node), mainEntries(restored));
+		assertEquals(mainEntries(node).size(), restored.getNumEntriesInRoutingTable());
+		assertTrue(restored.isRoutingTableAddress(added.getAddress().getAddress()));
+		assertFalse(restored.isRoutingTableAddress(removed.getAddress().getAddress()));
+
+		KBucketEntry refreshedCopy = restored.table().entryForId(refreshed.getID()).bucket.findByIPorID(null, refreshed.getID()).get();
+		assertEquals(refreshed.getLastSeen(), refreshedCopy.getLastSeen());
+		assertEquals(refreshed.getRTT(), refreshedCopy.getRTT());
+	}
+
+	@Test
+	public void testFailedCompaction() throws IOException {
+		Path dir = folder.getRoot().toPath();
+
+		Node node = NodeFactory.buildDHT(DHTtype.IPV4_DHT).getNode();
+		node.initKey(null);
+		NodeFactory.fillTable(node);
+		TableJournal journal = journal(dir);
+		node.openJournal(journal, dir.resolve("table.cache"));
+
+		RoutingTableEntry tableEntry = node.table().stream().filter(e -> e.bucket.getNumEntries() > 1).findAny().get();
+		KBucketEntry removed = tableEntry.bucket.getEntries().get(0);
+		KBucketEntry added = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), tableEntry.prefix.createRandomKeyFromPrefix());
+		added.signalResponse(50);
+		tableEntry.bucket.modifyMainBucket(removed, added);
+
+		// a non-empty directory in place of the snapshot makes the final move fail
+		Path snapshot = dir.resolve("table.snapshot");
+		byte[] previousSnapshot = Files.readAllBytes(snapshot);
+		Files.delete(snapshot);
+		Files.createDirectories(snapshot.resolve("blocker"));
+		try {
+			journal.compact(node);
+			fail("snapshot should not have been written");
+		} catch (IOException e) {
+			// expected
+		}
+		Files.delete(snapshot.resolve("blocker"));
+		Files.delete(snapshot);
+		Files.write(snapshot, previousSnapshot);
+
+		// the change was neither in the failed snapshot nor discarded
+		node.flushJournal();
+		Node restored = restore(node, dir);
+		assertEquals(mainEntries(node), mainEntries(restored));
+		assertTrue(restored.isRoutingTableAddress(added.getAddress().getAddress()));
+		assertFalse(restored.isRoutingTableAddress(removed.getAddress().getAddress()));
+	}
+
+	@Test
+	public void testMissingDirectory() throws IOException {
+		Path dir = folder.getRoot().toPath().resolve("missing");
+
+		Node node = NodeFactory.buildDHT(DHTtype.IPV4_DHT).getNode();
+		node.initKey(null);
+		NodeFactory.fillTable(node);
+		TableJournal journal = journal(dir);
+		node.openJournal(journal, dir.resolve("table.cache"));
+		assertFalse(journal.isOpen());
+
+		RoutingTableEntry tableEntry = node.table().stream().filter(e -> e.bucket.getNumEntries() > 1).findAny().get();
+		KBucketEntry added = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0), 1337), tableEntry.prefix.createRandomKeyFromPrefix());
+		added.signalResponse(50);
+		tableEntry.bucket.modifyMainBucket(tableEntry.bucket.getEntries().get(0), added);
+		node.saveTable(dir.resolve("table.cache"));
+
+		// nothing accumulates in memory
+		assertEquals(0, journal.backlog());
+		assertFalse(Files.exists(dir));
+	}
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.messages.PingRequest;
+
+public class TimeoutWheelTest {
+
+	RPCCall sentCall(TimeoutWheel wheel, long sentAgo) {
+		RPCCall c = new RPCCall(new PingRequest());
+		c.state = RPCState.SENT;
+		c.sentTime = System.currentTimeMillis() - sentAgo;
+		c.wheel = wheel;
+		return c;
+	}
+
+	@Test
+	public void testStallThenTimeout() throws InterruptedException {
+		TimeoutWheel wheel = new TimeoutWheel();
+
+		RPCCall fresh = sentCall(wheel, 0);
+		RPCCall old = sentCall(wheel, DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		RPCCall responded = sentCall(wheel, DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		responded.state = RPCState.RESPONDED;
+
+		wheel.schedule(fresh, 0);
+		wheel.schedule(old, 0);
+		wheel.schedule(responded, 0);
+		// not due yet
+		wheel.schedule(sentCall(wheel, 0), DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		assertEquals(4, wheel.occupancy());
+
+		Thread.sleep(TimeoutWheel.TICK_MILLIS);
+		wheel.tick();
+
+		assertEquals(RPCState.STALLED, fresh.state());
+		assertEquals(RPCState.TIMEOUT, old.state());
+		assertEquals(RPCState.RESPONDED, responded.state());
+		// the stalled call got re-scheduled for its timeout
+		assertEquals(2, wheel.occupancy());
+	}
+
+	@Test
+	public void testClockGoesBackwards() {
+		AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toMillis(2));
+		TimeoutWheel wheel = new TimeoutWheel(clock::get);
+
+		RPCCall c = sentCall(wheel, 0);
+		wheel.schedule(c, DHTConstants.RPC_CALL_TIMEOUT_MAX);
+		wheel.tick();
+
+		clock.addAndGet(-TimeUnit.HOURS.toMillis(1));
+		wheel.tick();
+		assertEquals(RPCState.SENT, c.state());
+
+		// fires within the original delay instead of once the clock has caught up again
+		clock.addAndGet(DHTConstants.RPC_CALL_TIMEOUT_MAX + TimeoutWheel.TICK_MILLIS);
+		wheel.tick();
+		assertEquals(RPCState.STALLED, c.state());
+	}
+
+}
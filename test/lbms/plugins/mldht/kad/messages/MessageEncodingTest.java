@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import the8472.bencode.BEncoder;
+import the8472.bencode.Utils;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageEncodingTest {
+
+	@Before
+	public void setup() {
+		DHTConstants.setVersion(0x0102);
+	}
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	static <T extends MessageBase> T prepare(T msg) {
+		if(msg.getMTID() == null)
+			msg.setMTID(random(6));
+		msg.setID(Key.createRandomKey());
+		return msg;
+	}
+
+	static void assertSameAsMapEncoding(MessageBase msg) throws Exception {
+		ByteBuffer direct = ByteBuffer.allocate(1500);
+		msg.encode(direct);
+
+		ByteBuffer viaMap = ByteBuffer.allocate(1500);
+		new BEncoder().encodeInto(msg.getBase(), viaMap);
+
+		assertArrayEquals(Utils.buf2ary(viaMap), Utils.buf2ary(direct));
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		assertSameAsMapEncoding(prepare(new PingRequest()));
+
+		FindNodeRequest fn = prepare(new FindNodeRequest(Key.createRandomKey()));
+		assertSameAsMapEncoding(fn);
+		fn.setWant4(true);
+		fn.setWant6(true);
+		assertSameAsMapEncoding(fn);
+
+		GetPeersRequest gp = prepare(new GetPeersRequest(Key.createRandomKey()));
+		gp.setWant6(true);
+		assertSameAsMapEncoding(gp);
+		gp.setNoSeeds(true);
+		gp.setScrape(true);
+		assertSameAsMapEncoding(gp);
+
+		AnnounceRequest ar = prepare(new AnnounceRequest(Key.createRandomKey(), 6881, random(8)));
+		assertSameAsMapEncoding(ar);
+		ar.setSeed(true);
+		ar.setName(ByteBuffer.wrap(Utils.str2ary("name")));
+		assertSameAsMapEncoding(ar);
+
+		assertSameAsMapEncoding(prepare(new SampleRequest(Key.createRandomKey())));
+
+		GetRequest get = prepare(new GetRequest(Key.createRandomKey()));
+		assertSameAsMapEncoding(get);
+		get.setSeq(Long.MAX_VALUE);
+		assertSameAsMapEncoding(get);
+
+		PutRequest put = prepare(new PutRequest());
+		put.setToken(random(4));
+		put.setValue(ByteBuffer.wrap(Utils.str2ary("4:test")));
+		assertSameAsMapEncoding(put);
+		put.setPubkey(random(32));
+		put.setSignature(random(64));
+		put.setSalt(random(10));
+		put.setSequenceNumber(5);
+		put.setExpectedSequenceNumber(4);
+		assertSameAsMapEncoding(put);
+	}
+
+	@Test
+	public void testResponses() throws Exception {
+		PingResponse ping = prepare(new PingResponse(random(6)));
+		assertSameAsMapEncoding(ping);
+		ping.setPublicIP(new InetSocketAddress("127.0.0.1", 1234));
+		assertSameAsMapEncoding(ping);
+
+		assertSameAsMapEncoding(prepare(new AnnounceResponse(random(6))));
+		assertSameAsMapEncoding(prepare(new PutResponse(random(6))));
+
+		FindNodeResponse fn = prepare(new FindNodeResponse(random(6)));
+		fn.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(random(26 * 8)), AddressType.V4));
+		assertSameAsMapEncoding(fn);
+		fn.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(random(38 * 2)), AddressType.V6));
+		assertSameAsMapEncoding(fn);
+
+		GetPeersResponse gp = prepare(new GetPeersResponse(random(6)));
+		gp.setToken(random(4));
+		gp.setNodes(NodeList.fromBuffer(ByteBuffer.wrap(random(26 * 2)), AddressType.V4));
+		assertSameAsMapEncoding(gp);
+		gp.setPeerItems(Arrays.asList(new PeerAddressDBItem(random(6), false), new PeerAddressDBItem(random(18), false)));
+		gp.setScrapePeers(random(256));
+		assertSameAsMapEncoding(gp);
+		gp.setScrapeSeeds(random(256));
+		assertSameAsMapEncoding(gp);
+
+		SampleResponse smp = prepare(new SampleResponse(random(6)));
+		smp.setSamples(ByteBuffer.wrap(random(20 * 3)));
+		smp.setNum(100);
+		smp.setInterval(300);
+		assertSameAsMapEncoding(smp);
+
+		GetResponse get = prepare(new GetResponse(random(6)));
+		get.setToken(random(4));
+		assertSameAsMapEncoding(get);
+		get.setRawValue(ByteBuffer.wrap(Utils.str2ary("d1:ai1ee")));
+		get.setKey(random(32));
+		get.setSignature(random(64));
+		get.setSequenceNumber(7);
+		assertSameAsMapEncoding(get);
+	}
+
+	@Test
+	public void testError() throws Exception {
+		assertSameAsMapEncoding(new ErrorMessage(random(6), 203, "invalid bencoding"));
+		assertSameAsMapEncoding(new ErrorMessage(random(6), -1, ""));
+	}
+
+}
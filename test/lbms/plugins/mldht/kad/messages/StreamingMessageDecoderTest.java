@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static the8472.bencode.Utils.str2ary;
+
+import the8472.bencode.BDecoder;
+import the8472.bencode.BEncoder;
+import the8472.bencode.Utils;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class StreamingMessageDecoderTest {
+
+	StreamingMessageDecoder fast = new StreamingMessageDecoder();
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	static ByteBuffer encode(Map<String, Object> root) {
+		return new BEncoder().encode(root, 1500);
+	}
+
+	static Map<String, Object> request(String method, Map<String, Object> args) {
+		Map<String, Object> root = new TreeMap<>();
+		root.put("t", random(6));
+		root.put("y", "q");
+		root.put("q", method);
+		root.put("v", "ml\u0001\u0002");
+		args.put("id", random(20));
+		root.put("a", args);
+		return root;
+	}
+
+	static Map<String, Object> response(Map<String, Object> body) {
+		Map<String, Object> root = new TreeMap<>();
+		root.put("t", random(6));
+		root.put("y", "r");
+		root.put("ip", random(6));
+		body.put("id", random(20));
+		root.put("r", body);
+		return root;
+	}
+
+	static byte[] reencode(MessageBase msg) {
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		new BEncoder().encodeInto(msg.getBase(), buf);
+		return Utils.buf2ary(buf);
+	}
+
+	MessageBase assertSameAsMapPath(ByteBuffer raw, Method method) throws Exception {
+		Function<byte[], Optional<Method>> mapper = mtid -> Optional.of(method);
+
+		MessageBase streamed = fast.decode(raw, mapper, DHTtype.IPV4_DHT);
+		assertNotNull(streamed);
+		assertEquals(0, raw.position());
+
+		MessageDecoder dec = new MessageDecoder(mapper, DHTtype.IPV4_DHT);
+		dec.toDecode(raw, new BDecoder().decode(raw.duplicate()));
+		MessageBase generic = dec.parseMessage();
+
+		assertEquals(generic.getClass(), streamed.getClass());
+		assertEquals(generic.toString(), streamed.toString());
+		assertEquals(generic.getID(), streamed.getID());
+		assertEquals(generic.getPublicIP(), streamed.getPublicIP());
+		assertArrayEquals(generic.getMTID(), streamed.getMTID());
+		assertArrayEquals(generic.getVersion().orElse(null), streamed.getVersion().orElse(null));
+		assertArrayEquals(reencode(generic), reencode(streamed));
+
+		return streamed;
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		assertSameAsMapPath(encode(request("ping", new TreeMap<>())), Method.UNKNOWN);
+
+		Map<String, Object> args = new TreeMap<>();
+		args.put("target", random(20));
+		args.put("want", Arrays.asList("n4", "n6"));
+		FindNodeRequest fn = (FindNodeRequest) assertSameAsMapPath(encode(request("find_node", args)), Method.UNKNOWN);
+		assertEquals(true, fn.doesWant6());
+
+		args = new TreeMap<>();
+		args.put("info_hash", random(20));
+		args.put("noseed", 1);
+		args.put("scrape", 1);
+		args.put("unknown", Arrays.asList(1, new TreeMap<>()));
+		GetPeersRequest gp = (GetPeersRequest) assertSameAsMapPath(encode(request("get_peers", args)), Method.UNKNOWN);
+		assertEquals(true, gp.isScrape());
+
+		args = new TreeMap<>();
+		args.put("info_hash", random(20));
+		args.put("port", 6881);
+		args.put("token", random(8));
+		args.put("seed", 1);
+		args.put("name", "foo");
+		AnnounceRequest ar = (AnnounceRequest) assertSameAsMapPath(encode(request("announce_peer", args)), Method.UNKNOWN);
+		assertEquals("foo", ar.getNameUTF8().get());
+
+		args = new TreeMap<>();
+		args.put("target", random(20));
+		assertSameAsMapPath(encode(request("sample_infohashes", args)), Method.UNKNOWN);
+	}
+
+	@Test
+	public void testResponses() throws Exception {
+		assertSameAsMapPath(encode(response(new TreeMap<>())), Method.PING);
+
+		Map<String, Object> body = new TreeMap<>();
+		body.put("nodes", random(26 * 8));
+		assertSameAsMapPath(encode(response(body)), Method.FIND_NODE);
+
+		body = new TreeMap<>();
+		body.put("nodes", random(26 * 2));
+		body.put("token", random(4));
+		body.put("values", Arrays.asList(random(6), random(18), random(5)));
+		body.put("BFpe", random(256));
+		GetPeersResponse gp = (GetPeersResponse) assertSameAsMapPath(encode(response(body)), Method.GET_PEERS);
+		assertEquals(2, gp.getPeerItems().size());
+
+		body = new TreeMap<>();
+		body.put("samples", random(20 * 3));
+		body.put("num", 50);
+		body.put("interval", 60);
+		SampleResponse smp = (SampleResponse) assertSameAsMapPath(encode(response(body)), Method.SAMPLE_INFOHASHES);
+		assertEquals(3, smp.getSamples().size());
+	}
+
+	@Test
+	public void testFallback() {
+		Function<byte[], Optional<Method>> mapper = mtid -> Optional.of(Method.GET_PEERS);
+
+		Map<String, Object> error = new TreeMap<>();
+		error.put("t", random(6));
+		error.put("y", "e");
+		error.put("e", Arrays.asList(201, "error"));
+		assertNull(fast.decode(encode(error), mapper, DHTtype.IPV4_DHT));
+
+		// get requests, unknown methods and invalid arguments are left to the map path
+		Map<String, Object> args = new TreeMap<>();
+		args.put("target", random(20));
+		assertNull(fast.decode(encode(request("get", args)), mapper, DHTtype.IPV4_DHT));
+		assertNull(fast.decode(encode(request("foo", args)), mapper, DHTtype.IPV4_DHT));
+		args.put("target", random(19));
+		assertNull(fast.decode(encode(request("find_node", args)), mapper, DHTtype.IPV4_DHT));
+
+		Map<String, Object> body = new TreeMap<>();
+		body.put("nodes", random(27));
+		assertNull(fast.decode(encode(response(body)), mapper, DHTtype.IPV4_DHT));
+
+		// unsorted and duplicate keys
+		assertNull(fast.decode(ByteBuffer.wrap(str2ary("d1:y1:q1:t2:aa1:q4:ping1:ad2:id20:aaaaaaaaaaaaaaaaaaaaee")), mapper, DHTtype.IPV4_DHT));
+		assertNull(fast.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:aaaaaaaaaaaaaaaaaaaae1:q4:ping1:t2:aa1:t2:bb1:y1:qe")), mapper, DHTtype.IPV4_DHT));
+		assertNotNull(fast.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:aaaaaaaaaaaaaaaaaaaae1:q4:ping1:t2:aa1:y1:qe")), mapper, DHTtype.IPV4_DHT));
+
+		// broken bencoding and non-dictionary roots
+		assertNull(fast.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:aaaa")), mapper, DHTtype.IPV4_DHT));
+		assertNull(fast.decode(ByteBuffer.wrap(str2ary("4:ping")), mapper, DHTtype.IPV4_DHT));
+		assertNull(fast.decode(ByteBuffer.wrap(str2ary("li1ee")), mapper, DHTtype.IPV4_DHT));
+	}
+
+}
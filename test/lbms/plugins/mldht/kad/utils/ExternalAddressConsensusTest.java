@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExternalAddressConsensusTest {
+
+	List<InetSocketAddress> changes = new ArrayList<>();
+	ExternalAddressConsensus consensus = new ExternalAddressConsensus(8, 4, changes::add);
+
+	InetSocketAddress a = new InetSocketAddress("203.0.113.1", 1000);
+	InetSocketAddress b = new InetSocketAddress("203.0.113.2", 2000);
+
+	static InetAddress voter(int i) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i});
+	}
+
+	@Test
+	public void testQuorumAndPlurality() throws UnknownHostException {
+		consensus.vote(voter(1), b);
+		consensus.vote(voter(2), a);
+		consensus.vote(voter(3), a);
+		consensus.vote(voter(4), a);
+		assertNull(consensus.get());
+
+		// repeated votes don't count
+		consensus.vote(voter(1), b);
+		assertEquals(4, consensus.size());
+		assertNull(consensus.get());
+
+		// the 5th vote is for the minority, but the first election picks the plurality
+		consensus.vote(voter(5), b);
+		assertEquals(a, consensus.get());
+		assertEquals(1, changes.size());
+	}
+
+	@Test
+	public void testEvictionAndChangedVotes() throws UnknownHostException {
+		for(int i=0;i<8;i++)
+			consensus.vote(voter(i), a);
+		assertEquals(a, consensus.get());
+
+		// changing a vote retracts the old one, ties keep the incumbent
+		for(int i=0;i<4;i++)
+			consensus.vote(voter(i), b);
+		assertEquals(8, consensus.size());
+		assertEquals(a, consensus.get());
+
+		// new voters evict the oldest votes for a
+		consensus.vote(voter(100), b);
+		assertEquals(8, consensus.size());
+		assertEquals(b, consensus.get());
+		assertEquals(2, changes.size());
+
+		// evicted voters count as new again
+		consensus.vote(voter(4), a);
+		assertEquals(b, consensus.get());
+	}
+
+}
@@ -0,0 +1,68 @@
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class TransactionTableTest {
+
+	@Test
+	public void testPack() {
+		assertEquals(-1, TransactionTable.pack(new byte[4]));
+		assertEquals(-1, TransactionTable.pack(null));
+		assertEquals(TransactionTable.PRESENT, TransactionTable.pack(new byte[6]));
+		assertEquals(TransactionTable.PRESENT | 0x0102_0304_05FFL, TransactionTable.pack(new byte[] {1, 2, 3, 4, 5, (byte) 0xFF}));
+	}
+
+	@Test
+	public void testInsertLookupRemove() {
+		TransactionTable<Object> table = new TransactionTable<>(256);
+
+		byte[] mtid = new byte[6];
+		ThreadLocalRandom.current().nextBytes(mtid);
+		long key = TransactionTable.pack(mtid);
+		Object a = new Object();
+		Object b = new Object();
+
+		assertTrue(table.putIfAbsent(key, a));
+		assertFalse(table.putIfAbsent(key, b));
+		assertSame(a, table.get(key));
+		assertEquals(1, table.size());
+
+		// wrong value
+		assertFalse(table.remove(key, b));
+		assertTrue(table.remove(key, a));
+		assertNull(table.get(key));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testCapacity() {
+		TransactionTable<Object> table = new TransactionTable<>(256);
+		byte[] mtid = new byte[6];
+		int inserted = 0;
+		int attempts = 0;
+
+		while(inserted < 256) {
+			ThreadLocalRandom.current().nextBytes(mtid);
+			if(table.putIfAbsent(TransactionTable.pack(mtid), mtid.clone()))
+				inserted++;
+			attempts++;
+		}
+
+		// full buckets should be rare at this load factor
+		assertTrue(attempts < 300);
+		assertEquals(256, table.size());
+		assertEquals(256, table.values().count());
+
+		ThreadLocalRandom.current().nextBytes(mtid);
+		assertFalse(table.putIfAbsent(TransactionTable.pack(mtid), new Object()));
+	}
+
+}
@@ -0,0 +1,70 @@
+package lbms.plugins.mldht.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.utils.PacketBufferPool.OverflowPolicy;
+import lbms.plugins.mldht.utils.PacketBufferPool.Packet;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PacketBufferPoolTest {
+
+	static final InetSocketAddress SOURCE = new InetSocketAddress("127.0.0.1", 1234);
+
+	@Test
+	public void testRecycling() {
+		AtomicInteger handled = new AtomicInteger();
+		PacketBufferPool pool = new PacketBufferPool(2, 16, OverflowPolicy.ALLOCATE, p -> {
+			assertEquals(4, p.buffer().remaining());
+			assertSame(SOURCE, p.source());
+			handled.incrementAndGet();
+		});
+
+		Packet a = pool.acquire(ByteBuffer.wrap(new byte[] {'d', 'e', 'e', 'e'}), SOURCE);
+		Packet b = pool.acquire(ByteBuffer.wrap(new byte[] {'d', 'e', 'e', 'e'}), SOURCE);
+		assertTrue(a.isPooled());
+		assertTrue(b.isPooled());
+
+		// exhausted
+		Packet c = pool.acquire(ByteBuffer.wrap(new byte[] {'d', 'e', 'e', 'e'}), SOURCE);
+		assertFalse(c.isPooled());
+
+		a.run();
+		b.run();
+		c.run();
+		assertEquals(3, handled.get());
+
+		// released slots get handed out again
+		Packet d = pool.acquire(ByteBuffer.wrap(new byte[] {'d', 'e', 'e', 'e'}), SOURCE);
+		assertTrue(d == a || d == b);
+
+		assertEquals(3, pool.hits());
+		assertEquals(1, pool.misses());
+	}
+
+	@Test
+	public void testDropPolicy() {
+		PacketBufferPool pool = new PacketBufferPool(1, 8, OverflowPolicy.DROP, p -> {});
+
+		// oversized
+		assertNull(pool.acquire(ByteBuffer.allocate(9), SOURCE));
+
+		Packet p = pool.acquire(ByteBuffer.allocate(8), SOURCE);
+		assertNotNull(p);
+		assertNull(pool.acquire(ByteBuffer.allocate(8), SOURCE));
+		p.release();
+		assertNotNull(pool.acquire(ByteBuffer.allocate(8), SOURCE));
+
+		assertEquals(2, pool.drops());
+	}
+
+}
@@ -5,6 +5,7 @@
  ******************************************************************************/
 package the8472.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -12,10 +13,15 @@ import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.NodeFactory;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -45,5 +51,56 @@ public class Bep42 {
 		assertFalse(new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV6_DHT, (byte) 1), 1), Key.createRandomKey()).hasSecureID());
 		
 	}
+	
+	@Test
+	public void testCachedAndBatched() throws UnknownHostException {
+		if(KBucketEntry.crc32c == null)
+			return;
+		
+		KBucketEntry[] vectors = {
+			new KBucketEntry(new InetSocketAddress(InetAddress.getByName("124.31.75.21"), 1), new Key("5fbfbff10c5d6a4ec8a88e4c6ab4c28b95eee401")),
+			new KBucketEntry(new InetSocketAddress(InetAddress.getByName("21.75.31.124"), 1), new Key("5a3ce9c14e7a08645677bbd1cfe7d8f956d53256")),
+			new KBucketEntry(new InetSocketAddress(InetAddress.getByName("65.23.51.170"), 1), new Key("a5d43220bc8f112a3d426c84764f8c2a1150e616")),
+			// same address, r differs
+			new KBucketEntry(new InetSocketAddress(InetAddress.getByName("124.31.75.21"), 1), new Key("5fbfbff10c5d6a4ec8a88e4c6ab4c28b95eee402")),
+			// top bits of the ID differ
+			new KBucketEntry(new InetSocketAddress(InetAddress.getByName("65.23.51.170"), 1), new Key("a5d43a20bc8f112a3d426c84764f8c2a1150e616")),
+		};
+		boolean[] expected = {true, true, true, false, false};
+		
+		// churn the cache with unrelated addresses in between, results must not change
+		for(int round=0;round<3;round++) {
+			for(int i=0;i<vectors.length;i++)
+				assertEquals(expected[i], vectors[i].hasSecureID());
+			for(int i=0;i<10000;i++)
+				new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(i % 2 == 0 ? DHTtype.IPV4_DHT : DHTtype.IPV6_DHT, (byte) 1), 1), Key.createRandomKey()).hasSecureID();
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate(vectors.length * DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH);
+		NodeList list = new NodeList() {
+			@Override
+			public AddressType type() {
+				return AddressType.V4;
+			}
+			
+			@Override
+			public Stream<KBucketEntry> entries() {
+				return Stream.of(vectors);
+			}
+			
+			@Override
+			public int packedSize() {
+				return buf.capacity();
+			}
+		};
+		list.writer().writeTo(buf);
+		buf.flip();
+		
+		BitSet secure = new BitSet();
+		for(int i=0;i<expected.length;i++)
+			secure.set(i, expected[i]);
+		assertEquals(secure, list.secureIDs());
+		assertEquals(secure, NodeList.fromBuffer(buf, AddressType.V4).secureIDs());
+	}
 
 }
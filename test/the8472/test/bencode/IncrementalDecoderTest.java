@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.test.bencode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static the8472.bencode.Utils.str2ary;
+import static the8472.bencode.Utils.str2buf;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import the8472.bencode.BDecoder;
+import the8472.bencode.Tokenizer.BDecodingException;
+
+public class IncrementalDecoderTest {
+
+	static final String INPUT = "d3:fool3:bari-1337ed1:xi0eee4:spam0:3:zzz20:aaaaaaaaaaaaaaaaaaaae";
+
+	BDecoder.Incremental decoder = new BDecoder.Incremental(256, Long.MAX_VALUE);
+
+	void check(Map<String, Object> map) {
+		assertEquals(3, map.size());
+		List<Object> list = (List<Object>) map.get("foo");
+		assertArrayEquals(str2ary("bar"), (byte[]) list.get(0));
+		assertEquals(-1337L, list.get(1));
+		assertEquals(0L, ((Map<String, Object>) list.get(2)).get("x"));
+		assertEquals(0, ((byte[]) map.get("spam")).length);
+		assertArrayEquals(str2ary("aaaaaaaaaaaaaaaaaaaa"), (byte[]) map.get("zzz"));
+	}
+
+	@Test
+	public void testFragments() {
+		byte[] input = str2ary(INPUT);
+
+		for(int fragmentSize : new int[] {1, 2, 7, input.length}) {
+			boolean done = false;
+			for(int i=0;i<input.length;i+=fragmentSize) {
+				assertFalse(done);
+				ByteBuffer fragment = ByteBuffer.wrap(input, i, Math.min(fragmentSize, input.length - i));
+				done = decoder.feed(fragment);
+				assertFalse(fragment.hasRemaining());
+			}
+			assertTrue(done);
+			check(decoder.takeMap());
+		}
+	}
+
+	@Test
+	public void testTrailingBytesAndRootValues() {
+		ByteBuffer buf = str2buf("i42e3:abc");
+		assertTrue(decoder.feed(buf));
+		assertEquals(42L, decoder.take());
+		assertEquals(4, buf.position());
+
+		assertTrue(decoder.feed(buf));
+		assertEquals(str2buf("abc"), decoder.take());
+	}
+
+	void assertRejected(BDecoder.Incremental dec, String input) {
+		try {
+			dec.feed(str2buf(input));
+		} catch (BDecodingException e) {
+			return;
+		}
+		throw new AssertionError("expected " + input + " to be rejected");
+	}
+
+	@Test
+	public void testErrorsAndLimits() {
+		assertRejected(decoder, "i01e");
+		assertRejected(decoder, "ie");
+		assertRejected(decoder, "di1ei2ee");
+		assertRejected(decoder, "d1:ae");
+		assertRejected(decoder, "i99999999999999999999e");
+		assertRejected(decoder, "x");
+
+		// rejected as soon as the length prefix is known
+		BDecoder.Incremental limited = new BDecoder.Incremental(4, 16);
+		assertRejected(limited, "20:");
+		assertRejected(limited, "lllle");
+		assertRejected(limited, "li1ei2ei3ei4ei5ee");
+		assertTrue(limited.feed(str2buf("l3:abce")));
+	}
+
+}
@@ -5,10 +5,13 @@
  ******************************************************************************/
 package the8472.test.bencode;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static the8472.utils.Functional.tap;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
@@ -50,6 +53,35 @@ public class KeyTest {
 		assertEquals(13, Key.setBit(13).leadingOneBit());
 	}
 	
+	@Test
+	public void testByteLayout() {
+		byte[] raw = new byte[20];
+		for(int i=0;i<raw.length;i++)
+			raw[i] = (byte) (0xF0 + i);
+		Key k = new Key(raw);
+		
+		assertArrayEquals(raw, k.getHash());
+		assertEquals(k, new Key(ByteBuffer.wrap(raw)));
+		assertEquals(k, new Key(k.toString(false)));
+		assertEquals(ByteBuffer.wrap(raw), k.asBuffer());
+		assertEquals(k, new Key(k.asBuffer().order(ByteOrder.LITTLE_ENDIAN)));
+		assertEquals(0xF0F1F2F3, k.getInt(0));
+		assertEquals(0xF3F4F5F6, k.getInt(3));
+		assertEquals(0xF7F8F9FA, k.getInt(7));
+		assertEquals((0xF0 + 19) & 0xFF, k.getRadix(19));
+		assertEquals((byte) 0xF8, k.getByte(8));
+		assertEquals(1, Key.setBit(159).getRadix(19));
+		assertEquals(1, Key.setBit(63).getBit(63));
+		assertEquals(0, Key.setBit(63).getBit(64));
+	}
+	
+	@Test
+	public void testAdd() {
+		assertEquals(Key.setBit(127), new Key("00000000000000000000000000000000ffffffff").add(Key.setBit(159)));
+		assertEquals(Key.MIN_KEY, Key.MAX_KEY.add(Key.setBit(159)));
+		assertEquals(Key.setBit(63), new Key("0000000000000000ffffffffffffffffffffffff").add(Key.setBit(159)));
+	}
+	
 	@Test
 	public void testHashCode() {
 		
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.test.bencode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static the8472.bencode.Utils.buf2str;
+import static the8472.bencode.Utils.str2ary;
+import static the8472.bencode.Utils.str2buf;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import the8472.bencode.BDecoder;
+import the8472.bencode.LazyBDecoder;
+import the8472.bencode.LazyBDecoder.DictView;
+
+public class LazyDecoderTest {
+
+	static final String INPUT = "d3:fool3:bari-1337ed1:xi0eee4:spam0:3:zzz3:baze";
+
+	LazyBDecoder decoder = new LazyBDecoder();
+
+	@Test
+	public void testViews() {
+		ByteBuffer buf = str2buf(INPUT);
+		DictView root = decoder.decode(buf);
+		assertFalse(buf.hasRemaining());
+
+		assertEquals(3, root.size());
+		assertTrue(root.containsKey("spam"));
+		assertNull(root.get("fo"));
+
+		List<Object> list = (List<Object>) root.get("foo");
+		assertEquals(3, list.size());
+		ByteBuffer bar = (ByteBuffer) list.get(0);
+		assertTrue(bar.isReadOnly());
+		assertEquals("bar", buf2str(bar));
+		assertEquals(-1337L, list.get(1));
+		assertEquals(0L, ((Map<String, Object>) list.get(2)).get("x"));
+
+		assertEquals(0, ((ByteBuffer) root.get("spam")).remaining());
+		assertEquals("baz", buf2str((ByteBuffer) root.get("zzz")));
+		assertEquals(INPUT, buf2str(root.raw()));
+
+		assertArrayEquals(new Object[] {"foo", "spam", "zzz"}, root.keySet().toArray());
+	}
+
+	@Test
+	public void testDetach() {
+		Map<String, Object> detached = root(INPUT).detach();
+		Map<String, Object> eager = new BDecoder().decode(str2buf(INPUT));
+
+		assertEquals(eager.keySet(), detached.keySet());
+		assertArrayEquals(str2ary("baz"), (byte[]) detached.get("zzz"));
+		List<Object> list = (List<Object>) detached.get("foo");
+		assertArrayEquals(str2ary("bar"), (byte[]) list.get(0));
+		assertEquals(-1337L, list.get(1));
+
+		assertEquals(42L, decoder.decodeAny(str2buf("i42e")));
+		assertArrayEquals(str2ary("abc"), (byte[]) LazyBDecoder.detach(decoder.decodeAny(str2buf("3:abc"))));
+	}
+
+	DictView root(String str) {
+		return decoder.decode(str2buf(str));
+	}
+
+}
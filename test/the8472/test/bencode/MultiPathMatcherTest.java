@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.test.bencode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static the8472.bencode.Utils.str2buf;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import org.junit.Test;
+
+import the8472.bencode.MultiPathMatcher;
+import the8472.bencode.Tokenizer.TokenType;
+
+public class MultiPathMatcherTest {
+
+	@Test
+	public void testMultiplePaths() {
+		MultiPathMatcher m = new MultiPathMatcher();
+		int info = m.add("info");
+		int name = m.add("info", "name");
+		int length = m.add("info", "length");
+		int files = m.add("info", "files");
+		int missing = m.add("info", "pieces");
+		int nested = m.add("info", "files", "length");
+
+		ByteBuffer input = str2buf("d8:announce3:foo4:infod5:filesld6:lengthi5eee6:lengthi-42e4:name3:baree");
+		m.match(input);
+		assertFalse(input.hasRemaining());
+
+		assertEquals(TokenType.DICT, m.type(info));
+		assertEquals(Optional.of(str2buf("d5:filesld6:lengthi5eee6:lengthi-42e4:name3:bare")), m.raw(info));
+
+		assertEquals(TokenType.STRING, m.type(name));
+		assertEquals(Optional.of(str2buf("bar")), m.string(name));
+		assertEquals(Optional.of(str2buf("3:bar")), m.raw(name));
+
+		assertEquals(OptionalLong.of(-42), m.number(length));
+		assertEquals(Optional.of(str2buf("i-42e")), m.raw(length));
+		assertEquals(Optional.empty(), m.string(length));
+
+		assertEquals(TokenType.LIST, m.type(files));
+		assertEquals(Optional.of(str2buf("ld6:lengthi5eee")), m.raw(files));
+
+		assertNull(m.type(missing));
+		// list elements are not traversed
+		assertNull(m.type(nested));
+
+		// results get cleared between inputs
+		m.match(str2buf("d4:infod4:name3:bazee"));
+		assertEquals(Optional.of(str2buf("baz")), m.string(name));
+		assertFalse(m.found(length));
+	}
+
+	@Test
+	public void testKeysAndDuplicates() {
+		MultiPathMatcher m = new MultiPathMatcher();
+		int a = m.add("a");
+		int root = m.add();
+
+		// a value equal to the key name must not be mistaken for a key, first occurrence wins
+		m.match(str2buf("d1:b1:a1:ai1e1:ai2ee"));
+		assertEquals(OptionalLong.of(1), m.number(a));
+		assertEquals(TokenType.DICT, m.type(root));
+
+		m.match(str2buf("l1:ae"));
+		assertFalse(m.found(a));
+		assertEquals(TokenType.LIST, m.type(root));
+	}
+
+}
@@ -5,6 +5,7 @@
  ******************************************************************************/
 package the8472.test.bencode;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static the8472.utils.Functional.tap;
@@ -39,5 +40,22 @@ public class PrefixTest {
 		assertFalse(p.isPrefixOf(new Key(tap(new byte[20], b -> b[0] = (byte) 0x7f))));
 		
 	}
+	
+	@Test
+	public void testBoundaries() {
+		Key k = Key.createRandomKey();
+		Prefix deep = new Prefix(k, 100);
+		
+		assertTrue(deep.isPrefixOf(k));
+		assertTrue(deep.isPrefixOf(deep.last()));
+		assertTrue(deep.isPrefixOf(deep.first()));
+		assertFalse(deep.isPrefixOf(deep.last().add(Key.setBit(159))));
+		assertEquals(100 + 1, deep.last().distance(deep.first()).leadingOneBit());
+		
+		assertEquals(new Prefix(k, 159), Prefix.getCommonPrefix(Arrays.asList(k)));
+		Prefix common = Prefix.getCommonPrefix(Arrays.asList(deep.first(), k, deep.last()));
+		assertEquals(100, common.getDepth());
+		assertEquals(deep, common);
+	}
 
 }
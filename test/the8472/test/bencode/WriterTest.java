@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.test.bencode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static the8472.bencode.Utils.buf2ary;
+import static the8472.bencode.Utils.str2ary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import the8472.bencode.BEncoder;
+import the8472.bencode.BEncoder.StringWriter;
+import the8472.bencode.BEncodingWriter;
+
+public class WriterTest {
+
+	@Test
+	public void testSameAsBEncoder() throws IOException {
+		byte[] large = new byte[1000];
+		Arrays.fill(large, (byte) 'x');
+
+		Map<String, Object> nested = new HashMap<>();
+		nested.put("b", 1L);
+		nested.put("a", Arrays.asList("foo", -5L, large));
+
+		Map<String, Object> root = new HashMap<>();
+		root.put("zzz", nested);
+		root.put("aaa", "bar");
+		root.put("mmm", Long.MIN_VALUE);
+
+		byte[] expected = buf2ary(new BEncoder().encode(root, 4096));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// smaller than the large string, exercises chunk flushing and bypass
+		try(BEncodingWriter writer = new BEncodingWriter(out, 64)) {
+			writer.value(root);
+		}
+		assertArrayEquals(expected, out.toByteArray());
+
+		out.reset();
+		try(BEncodingWriter writer = new BEncodingWriter(out, 64)) {
+			writer.beginDict();
+			writer.key("aaa").value("bar");
+			writer.key("mmm").value(Long.MIN_VALUE);
+			writer.key("zzz").beginDict();
+			writer.key("a").beginList().value("foo").value(-5L).value(large).endList();
+			writer.key("b").value(1);
+			writer.endDict();
+			writer.endDict();
+			assertEquals(expected.length, writer.position());
+		}
+		assertArrayEquals(expected, out.toByteArray());
+	}
+
+	@Test
+	public void testStreams() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(BEncodingWriter writer = new BEncodingWriter(out, 32)) {
+			writer.value(Stream.of("a", "b"));
+		}
+		assertArrayEquals(str2ary("l1:a1:be"), out.toByteArray());
+	}
+
+	@Test
+	public void testStringWriterNearChunkSize() throws IOException {
+		// the length prefix plus the data may not fit into the chunk even if the data alone does
+		for(int len=48;len<=72;len++) {
+			byte[] data = new byte[len];
+			Arrays.fill(data, (byte) 'x');
+			StringWriter w = new StringWriter() {
+				@Override
+				public void writeTo(ByteBuffer buf) {
+					buf.put(data);
+				}
+
+				@Override
+				public int length() {
+					return data.length;
+				}
+			};
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try(BEncodingWriter writer = new BEncodingWriter(out, 64)) {
+				writer.beginList().value("a").value(w).endList();
+			}
+			assertArrayEquals(str2ary("l1:a" + len + ":" + new String(data, StandardCharsets.ISO_8859_1) + "e"), out.toByteArray());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnsortedKeys() throws IOException {
+		BEncodingWriter writer = new BEncodingWriter(new ByteArrayOutputStream(), 32);
+		writer.beginDict().key("b").value(1).key("a");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMissingValue() throws IOException {
+		BEncodingWriter writer = new BEncodingWriter(new ByteArrayOutputStream(), 32);
+		writer.beginDict().key("a").endDict();
+	}
+
+}